@@ -0,0 +1,23 @@
+#!/bin/sh
+# Builds the benchmarks and runs them with the allocation profiler, writing the results as JSON to
+# bench/results/<version>.json so that runs of different versions can be compared.
+# Extra arguments go to JMH, e.g. "bench/run.sh -p operation=edge-json-decode,cloud-log".
+set -e
+cd "$(dirname "$0")/.."
+mvn -B -q -DskipTests package
+version=$(git describe --always --dirty 2>/dev/null || date +%Y%m%d%H%M%S)
+mkdir -p bench/results
+results="$(pwd)/bench/results/$version.json"
+jar="$(pwd)/bench/target/benchmarks.jar"
+# The in-process EdgeDevice keeps its cache in the working directory, the in-process CloudComponent its files where
+# these variables point; the forked benchmark JVMs inherit them
+workdir=$(mktemp -d)
+export LOG_FILE="$workdir/cloud_component.log"
+export TSDB_DIR="$workdir/tsdb"
+export WARNING_CACHE_FILE="$workdir/warning_cache.txt"
+export RULES_FILE="$workdir/rules.conf"
+cd "$workdir"
+java -jar "$jar" -prof gc -rf json -rff "$results" "$@"
+cd - > /dev/null
+rm -rf "$workdir"
+echo "Results: $results"
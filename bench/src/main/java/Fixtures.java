@@ -0,0 +1,313 @@
+import benchmarks.Operation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The operations measured by {@link benchmarks.HotPathBenchmark}. This class is in the unnamed package, like the
+ * components, so that it can use their package-private nested classes.
+ */
+public final class Fixtures {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss")
+            .withZone(ZoneId.systemDefault());
+    private static final int BATCH_SIZE = 500; // EdgeDevice.MAX_BATCH_SIZE
+    private static final int CACHE_BACKLOG = 1000; // Records waiting in the cache while the cloud is unreachable
+
+    private Fixtures() {
+    }
+
+    public static Operation create(String name) throws Exception {
+        switch (name) {
+            case "edge-json-decode": {
+                // A sensor reading as it arrives at the EdgeDevice's /data
+                byte[] json = EdgeDevice.SensorDataCodec.encode(new EdgeDevice.SensorData("1", 27.318, timestamp(0)));
+                return () -> EdgeDevice.SensorDataCodec.decode(json);
+            }
+            case "edge-json-encode": {
+                // A window summary as the EdgeDevice caches it
+                EdgeDevice.SensorData summary = new EdgeDevice.SensorData("average", 27.318, timestamp(0), 120, 20.1, 34.9, 18.75);
+                return () -> EdgeDevice.SensorDataCodec.encode(summary);
+            }
+            case "edge-binary-batch-encode": {
+                List<EdgeDevice.SensorData> batch = edgeBatch();
+                return () -> EdgeDevice.BinaryCodec.encodeBatch(batch);
+            }
+            case "cloud-json-batch-decode": {
+                StringBuilder json = new StringBuilder("[");
+                for (EdgeDevice.SensorData data : edgeBatch()) {
+                    if (json.length() > 1) {
+                        json.append(',');
+                    }
+                    json.append(new String(EdgeDevice.SensorDataCodec.encode(data), StandardCharsets.UTF_8));
+                }
+                byte[] body = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+                return () -> CloudComponent.SensorDataCodec.decodeArray(body, 0, body.length);
+            }
+            case "cloud-binary-batch-decode": {
+                byte[] body = EdgeDevice.BinaryCodec.encodeBatch(edgeBatch());
+                return () -> CloudComponent.BinaryCodec.decode(body, 0, body.length);
+            }
+            case "window-aggregation":
+                return windowAggregation();
+            case "cache-segmented-log":
+                return segmentedLog();
+            case "cache-rewrite-first-line":
+                return rewriteFirstLine();
+            case "cloud-log":
+                return cloudLog();
+            case "edge-data-request":
+                return edgeDataRequest();
+            case "cloud-data-request":
+                return cloudDataRequest();
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    private static String timestamp(long offsetMillis) {
+        return TIMESTAMP_FORMAT.format(Instant.now().plusMillis(offsetMillis));
+    }
+
+    /**
+     * A full batch of raw readings from 50 sensors, one per second.
+     */
+    private static List<EdgeDevice.SensorData> edgeBatch() {
+        List<EdgeDevice.SensorData> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new EdgeDevice.SensorData("sensor_" + (i % 50), 20 + (i % 150) / 10.0, timestamp(1000L * (i / 50))));
+        }
+        return batch;
+    }
+
+    /**
+     * One 5 second window of 1000 readings from 100 sensors, folded into the aggregator and then closed. Event time
+     * advances by one window per operation.
+     */
+    private static Operation windowAggregation() {
+        long windowMillis = 5000;
+        EdgeDevice.WindowAggregator aggregator = new EdgeDevice.WindowAggregator(windowMillis, windowMillis, 1000);
+        String[] sensorIds = new String[100];
+        for (int i = 0; i < sensorIds.length; i++) {
+            sensorIds[i] = "sensor_" + i;
+        }
+        long start = (System.currentTimeMillis() / windowMillis + 2) * windowMillis;
+        return new Operation() {
+            private long window;
+
+            @Override
+            public Object run() {
+                long windowStart = start + window++ * windowMillis;
+                for (int s = 0; s < 5; s++) {
+                    String timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(windowStart + s * 1000L));
+                    for (int i = 0; i < 200; i++) {
+                        aggregator.add(new EdgeDevice.SensorData(sensorIds[i % sensorIds.length], 20 + (i % 150) / 10.0, timestamp));
+                    }
+                }
+                return aggregator.closeWindows(windowStart + windowMillis + 1000);
+            }
+        };
+    }
+
+    /**
+     * Caching one record and acknowledging the oldest, with CACHE_BACKLOG records waiting, in the segmented log.
+     */
+    private static Operation segmentedLog() throws IOException {
+        Path directory = Files.createTempDirectory("bench-cache");
+        EdgeDevice.SegmentedLog cache = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("legacy.txt").toString());
+        byte[] record = EdgeDevice.SensorDataCodec.encode(new EdgeDevice.SensorData("average", 27.318, timestamp(0), 120, 20.1, 34.9, 18.75));
+        for (int i = 0; i < CACHE_BACKLOG; i++) {
+            cache.append(record, 0, record.length);
+        }
+        return new Operation() {
+            @Override
+            public Object run() throws IOException {
+                cache.append(record, 0, record.length);
+                EdgeDevice.SegmentedLog.Entry oldest = cache.peek(1).get(0);
+                cache.ack(oldest);
+                return oldest;
+            }
+
+            @Override
+            public void close() throws IOException {
+                deleteRecursively(directory);
+            }
+        };
+    }
+
+    /**
+     * The same with the original cache file, which removed an acknowledged record by rewriting the whole file
+     * (deleteFirstLine).
+     */
+    private static Operation rewriteFirstLine() throws IOException {
+        Path directory = Files.createTempDirectory("bench-cache");
+        File file = directory.resolve("data_cache.txt").toFile();
+        String record = new String(EdgeDevice.SensorDataCodec.encode(
+                new EdgeDevice.SensorData("average", 27.318, timestamp(0), 120, 20.1, 34.9, 18.75)), StandardCharsets.UTF_8);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < CACHE_BACKLOG; i++) {
+                bw.write(record);
+                bw.newLine();
+            }
+        }
+        return new Operation() {
+            @Override
+            public Object run() throws IOException {
+                try (BufferedWriter bw = new BufferedWriter(new FileWriter(file, true))) {
+                    bw.write(record);
+                    bw.newLine();
+                }
+                String oldest;
+                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                    oldest = br.readLine();
+                }
+                deleteFirstLine(file);
+                return oldest;
+            }
+
+            @Override
+            public void close() throws IOException {
+                deleteRecursively(directory);
+            }
+        };
+    }
+
+    private static void deleteFirstLine(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            boolean firstLineSkipped = false;
+
+            while ((line = br.readLine()) != null) {
+                if (!firstLineSkipped) {
+                    firstLineSkipped = true;
+                    continue; // Skip the first line
+                }
+                lines.add(line);
+            }
+        }
+
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (String line : lines) {
+                bw.write(line);
+                bw.newLine();
+            }
+        }
+    }
+
+    /**
+     * One "Received data" line through the CloudComponent's asynchronous log, with the LOG_* settings of the
+     * environment. The writer thread runs concurrently, so a sustained rate above its throughput makes the
+     * producer wait.
+     */
+    private static Operation cloudLog() throws IOException {
+        Path directory = Files.createTempDirectory("bench-log");
+        CloudComponent.AsyncLog log = new CloudComponent.AsyncLog(directory.resolve("cloud_component.log").toString());
+        String line = "Received data: sensor_7, 27.318, " + timestamp(0);
+        return new Operation() {
+            @Override
+            public Object run() {
+                log.log(line);
+                return line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                log.close();
+                deleteRecursively(directory);
+            }
+        };
+    }
+
+    /**
+     * One numbered sensor reading POSTed to an in-process EdgeDevice's /data over loopback, as a Sensor sends it:
+     * the HTTP exchange, decoding, dedup, the ingest buffer and rule evaluation. The EdgeDevice listens on port 8000
+     * and keeps its cache in the working directory; its cloud component is not reachable, so its batches stay cached.
+     */
+    private static Operation edgeDataRequest() throws IOException {
+        new EdgeDevice();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:8000/data");
+        return new Operation() {
+            private long seq;
+
+            @Override
+            public Object run() throws IOException, InterruptedException {
+                seq++;
+                String sensorId = "sensor_" + (seq % 100);
+                byte[] body = EdgeDevice.SensorDataCodec.encode(new EdgeDevice.SensorData(sensorId, 20 + (seq % 150) / 10.0, timestamp(0)));
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .header("X-Producer-Id", sensorId)
+                        .header("X-Producer-Epoch", "1")
+                        .header("X-Seq", Long.toString(seq))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                        .build();
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200 && response.statusCode() != 429) {
+                    throw new IOException("Unexpected response " + response.statusCode());
+                }
+                return response;
+            }
+        };
+    }
+
+    /**
+     * One numbered reading POSTed to an in-process CloudComponent's /data over loopback, as an EdgeDevice in raw
+     * mode sends it: the HTTP exchange, dedup and the ingest queue, while the shards parse, log, store and check
+     * the readings concurrently. The CloudComponent listens on port 8089 and takes its file locations from the
+     * environment (see bench/run.sh). The values stay below the default alert rule, so no warnings are queued.
+     */
+    private static Operation cloudDataRequest() throws IOException {
+        CloudComponent.main(new String[0]);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:8089/data");
+        return new Operation() {
+            private long seq;
+
+            @Override
+            public Object run() throws IOException, InterruptedException {
+                seq++;
+                byte[] body = EdgeDevice.SensorDataCodec.encode(new EdgeDevice.SensorData("sensor_" + (seq % 100), 20 + (seq % 50) / 10.0, timestamp(0)));
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .header("X-Edge-Id", "bench")
+                        .header("X-Producer-Epoch", "1")
+                        .header("X-Seq", Long.toString(seq))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                        .build();
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200 && response.statusCode() != 503) {
+                    throw new IOException("Unexpected response " + response.statusCode());
+                }
+                return response;
+            }
+        };
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
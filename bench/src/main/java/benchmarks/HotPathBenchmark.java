@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per operation of the components' hot paths. Every operation runs in its own forked JVM; see
+ * {@code Fixtures} for what each one does. Run with {@code -prof gc} to also get the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotPathBenchmark {
+    @Param({
+            "edge-json-decode",
+            "edge-json-encode",
+            "edge-binary-batch-encode",
+            "cloud-json-batch-decode",
+            "cloud-binary-batch-decode",
+            "window-aggregation",
+            "cache-segmented-log",
+            "cache-rewrite-first-line",
+            "cloud-log",
+            "edge-data-request",
+            "cloud-data-request"
+    })
+    public String operation;
+
+    private Operation op;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        op = (Operation) Class.forName("Fixtures").getMethod("create", String.class).invoke(null, operation);
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        return op.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        op.close();
+    }
+}
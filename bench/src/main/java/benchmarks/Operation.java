@@ -0,0 +1,17 @@
+package benchmarks;
+
+/**
+ * One measured operation of {@link HotPathBenchmark}. The components live in the unnamed package, which JMH's
+ * generated code cannot refer to, so the operations are built by the unnamed-package {@code Fixtures} class and
+ * handed over through this interface.
+ */
+public interface Operation extends AutoCloseable {
+    /**
+     * Runs the operation once; the result is consumed so that the work cannot be optimized away.
+     */
+    Object run() throws Exception;
+
+    @Override
+    default void close() throws Exception {
+    }
+}
@@ -2,68 +2,390 @@ import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
 
 public class CloudComponent {
-    private static final String LOG_FILE = "/var/log/cloud_component.log";
-    private static final String CACHE_FILE = "/usr/src/myapp/warning_cache.txt";
+    private static final Metrics METRICS = new Metrics();
+    private static final Metrics.Histogram PROCESSING_DURATION = METRICS.histogram("cloud_ingest_processing_duration_seconds",
+            "Time an ingest shard spent on one message");
+    private static final Metrics.Histogram QUEUE_WAIT = METRICS.histogram("cloud_ingest_queue_wait_seconds",
+            "Time a message waited in its ingest shard's queue");
+    private static final LongAdder RECORDS = METRICS.counter("cloud_ingest_records_total", "Records stored");
+    private static final LongAdder DUPLICATE_RECORDS = METRICS.counter("cloud_ingest_duplicate_records_total",
+            "Records skipped because their edge had already sent them");
+    private static final LongAdder WARNINGS_DELIVERED = METRICS.counter("cloud_warnings_sent_total", "Warning deliveries to edge devices", "result", "delivered");
+    private static final LongAdder WARNINGS_FAILED = METRICS.counter("cloud_warnings_sent_total", "Warning deliveries to edge devices", "result", "failed");
+    private static final Metrics.Histogram WARNING_DURATION = METRICS.histogram("cloud_warning_send_duration_seconds",
+            "Time until an edge device answered a warning");
+    private static final Metrics.Histogram TRACE_LATENCY = METRICS.histogram("cloud_trace_sensor_to_cloud_seconds",
+            "Time from a traced sensor sending a reading until it was stored here (includes clock skew)");
+    private static final String LOG_FILE = System.getenv().getOrDefault("LOG_FILE", "/var/log/cloud_component.log");
+    private static final AsyncLog LOG = new AsyncLog(LOG_FILE);
+    private static final String CACHE_FILE = System.getenv().getOrDefault("WARNING_CACHE_FILE", "/usr/src/myapp/warning_cache.txt");
     private static final String EDGE_DEVICE_URL = System.getenv("EDGE_DEVICE_URL");
+    private static final IngestPipeline PIPELINE = new IngestPipeline(
+            (int) envLong("INGEST_SHARDS", Runtime.getRuntime().availableProcessors()),
+            (int) envLong("SHARD_QUEUE_CAPACITY", 10000));
+    private static final EdgeRegistry EDGES = new EdgeRegistry((int) envLong("EDGE_QUEUE_CAPACITY", 1000));
+    private static final DateTimeFormatter WARNING_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss")
+            .withZone(ZoneId.systemDefault());
+    private static final String DEFAULT_EDGE = "default";
+    private static final byte[] EDGE_TOKEN = System.getenv().getOrDefault("EDGE_TOKEN", "").trim().getBytes(StandardCharsets.UTF_8);
+    private static final List<String> EDGE_CALLBACK_HOSTS = envList("EDGE_CALLBACK_HOSTS");
+    private static final long DOWNLINK_HEARTBEAT_MS = envLong("DOWNLINK_HEARTBEAT_MS", 15000);
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_SEQUENCE_RANGE = 100000; // Larger X-Seq ranges are ignored, the batch is then not deduplicated
+    private static final Map<String, DedupWindow> DEDUP_WINDOWS = new ConcurrentHashMap<>();
+    private static final int QUERY_THREADS = (int) envLong("QUERY_THREADS", 2);
+    private static final ExecutorService QUERY_EXECUTOR = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>((int) envLong("QUERY_QUEUE_CAPACITY", 16)),
+            Thread.ofPlatform().name("query-", 0).priority(Thread.MIN_PRIORITY).factory());
+    private static final long QUERY_MAX_BUCKETS = envLong("QUERY_MAX_BUCKETS", 100000);
+    private static final int QUERY_CHUNK_BUCKETS = 1000;
+    private static WarningOutbox outbox;
+    private static TimeSeriesStore store;
+    private static RuleEngine rules;
+    private static final String DEFAULT_RULES = "temperature * value > 25\n";
 
 
     public static void main(String[] args) throws IOException {
+        outbox = new WarningOutbox(CACHE_FILE, (int) envLong("WARNING_OUTBOX_MAX", 1000),
+                envLong("WARNING_BACKOFF_BASE_MS", 1000), envLong("WARNING_BACKOFF_MAX_MS", 60000));
+        store = new TimeSeriesStore(System.getenv().getOrDefault("TSDB_DIR", "/usr/src/myapp/tsdb"),
+                (int) envLong("TSDB_BLOCK_POINTS", 4096), envLong("TSDB_BLOCK_SPAN_MS", TimeUnit.HOURS.toMillis(2)),
+                TimeUnit.DAYS.toMillis(envLong("TSDB_RETENTION_DAYS", 400)));
+        rules = new RuleEngine(System.getenv().getOrDefault("RULES_FILE", "/usr/src/myapp/rules.conf"), DEFAULT_RULES);
+        rules.startReloading(envLong("RULES_RELOAD_MS", 2000));
+        PIPELINE.start(CloudComponent::processMessage);
+        registerMetrics();
+        if (EDGE_DEVICE_URL != null) {
+            // Edges that do not register themselves receive their warnings here
+            EDGES.register(DEFAULT_EDGE, EDGE_DEVICE_URL);
+        }
+
+        // Without TCP_NODELAY a small response waits for the delayed ACK of the request, about 40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(8089), 0);
-        server.createContext("/data", new DataHandler());
-        server.setExecutor(null); // creates a default executor
+        server.createContext("/data", METRICS.instrument("data", new DataHandler()));
+        server.createContext("/data/batch", METRICS.instrument("batch", new BatchHandler()));
+        server.createContext("/edges", METRICS.instrument("edges", new RegistrationHandler()));
+        server.createContext("/query", METRICS.instrument("query", new QueryHandler()));
+        server.createContext("/rules", METRICS.instrument("rules", new RulesHandler()));
+        server.createContext("/alerts", METRICS.instrument("alerts", new AlertsHandler()));
+        server.createContext("/downlink", METRICS.instrument("downlink", new DownlinkHandler()));
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(createServerExecutor());
         server.start();
         log("Cloud component HTTP server started on port 8089");
         log("Edge device URL: " + EDGE_DEVICE_URL);
+        if (EDGE_TOKEN.length == 0) {
+            log("EDGE_TOKEN is not set, edge devices can neither register nor open a downlink");
+        }
+        log("HTTP executor: " + System.getenv().getOrDefault("HTTP_EXECUTOR", "virtual"));
+        log("Ingest shards: " + PIPELINE.getShardCount());
+        log("Pending warnings in outbox: " + outbox.size());
+    }
 
+    private static void registerMetrics() {
+        METRICS.gauge("cloud_ingest_queue_messages", "Messages waiting in the ingest shards' queues", PIPELINE::depth);
+        METRICS.gauge("cloud_query_queue_requests", "Queries waiting for a query thread",
+                () -> ((ThreadPoolExecutor) QUERY_EXECUTOR).getQueue().size());
+        METRICS.gauge("cloud_warning_outbox_pending", "Undelivered warnings in the outbox", outbox::size);
+        METRICS.counter("cloud_warning_outbox_evicted_total", "Warnings dropped because the outbox was full", outbox::getEvicted);
+        METRICS.gauges("cloud_edge_queue_warnings", "Warnings waiting in an edge device's queue", "edge", () -> {
+            Map<String, Integer> depths = new TreeMap<>();
+            for (EdgeEndpoint edge : EDGES.list()) {
+                depths.put(edge.getId(), edge.getQueueSize());
+            }
+            return depths;
+        });
+        METRICS.gauge("cloud_dedup_producers", "Edge devices with a dedup window", DEDUP_WINDOWS::size);
+        METRICS.gauge("cloud_downlinks_connected", "Edge devices with an open downlink",
+                () -> EDGES.list().stream().filter(EdgeEndpoint::isConnected).count());
+    }
+
+    private static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] response = METRICS.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            }
+        }
+    }
 
-        // Start retry mechanism in a separate thread
-        new Thread(CloudComponent::retryCachedMessages).start();
+    /**
+     * Executor for the HTTP server, selected with the HTTP_EXECUTOR environment variable: "virtual" (default)
+     * runs every request on its own virtual thread, "fixed" uses a pool of HTTP_EXECUTOR_THREADS platform
+     * threads and "dispatcher" handles requests one by one on the server's dispatcher thread.
+     */
+    private static Executor createServerExecutor() {
+        String mode = System.getenv().getOrDefault("HTTP_EXECUTOR", "virtual");
+        switch (mode) {
+            case "dispatcher":
+                return null;
+            case "fixed":
+                return Executors.newFixedThreadPool((int) envLong("HTTP_EXECUTOR_THREADS", 2L * Runtime.getRuntime().availableProcessors()));
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            default:
+                log("Unknown HTTP_EXECUTOR " + mode + ", using virtual threads");
+                return Executors.newVirtualThreadPerTaskExecutor();
+        }
     }
 
     private static void log(String message) {
-        try (FileWriter fw = new FileWriter(LOG_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            pw.println(message);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (LOG == null) {
+            // Only while the logger itself is being set up
+            System.err.println(message);
+            return;
         }
+        LOG.log(message);
     }
 
     private static class DataHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "utf-8"));
-                StringBuilder requestBody = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    requestBody.append(line);
+                acceptForProcessing(exchange, false);
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            }
+        }
+    }
+
+    /**
+     * Accepts an array of readings and acknowledges all of them with a single response.
+     */
+    private static class BatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                acceptForProcessing(exchange, true);
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            }
+        }
+    }
+
+    /**
+     * Edge devices register the URL on which they accept warnings by POSTing it with their X-Edge-Id header.
+     * They repeat this periodically, which also restores the registry after a restart. GET lists all edges.
+     * Registering needs the shared EDGE_TOKEN, and the URL's host must be one of EDGE_CALLBACK_HOSTS, or, without
+     * that list, must not resolve to a loopback, link-local or private address.
+     */
+    private static class RegistrationHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String response;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                if (!isAuthorizedEdge(exchange)) {
+                    exchange.sendResponseHeaders(401, -1); // Unauthorized
+                    return;
+                }
+                String edgeId = exchange.getRequestHeaders().getFirst("X-Edge-Id");
+                String url = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).trim();
+                if (!EdgeRegistry.isValidId(edgeId) || !EdgeRegistry.isValidUrl(url)) {
+                    exchange.sendResponseHeaders(400, -1); // Bad Request
+                    return;
+                }
+                if (!EdgeRegistry.isAllowedHost(url, EDGE_CALLBACK_HOSTS)) {
+                    log("Refused callback URL of edge device " + edgeId + ": " + url);
+                    exchange.sendResponseHeaders(403, -1); // Forbidden
+                    return;
+                }
+                if (EDGES.register(edgeId, url)) {
+                    log("Registered edge device " + edgeId + " at " + url);
                 }
+                response = "Registered";
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                StringBuilder sb = new StringBuilder();
+                for (EdgeEndpoint edge : EDGES.list()) {
+                    sb.append(edge.getId()).append(' ').append(edge.getUrl() != null ? edge.getUrl() : "-");
+                    if (edge.isConnected()) {
+                        sb.append(" downlink");
+                    }
+                    sb.append('\n');
+                }
+                response = sb.toString();
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                return;
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    /**
+     * Serves the alert rules to edge devices, which evaluate them locally. The ETag lets an edge poll cheaply:
+     * a request with the current ETag in If-None-Match is answered with 304.
+     */
+    private static class RulesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                return;
+            }
+            String text = rules.getText();
+            String etag = rulesEtag();
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1); // Not Modified
+                return;
+            }
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+    }
 
-                String requestData = requestBody.toString();
-                log("Received data: " + requestData);
+    private static String rulesEtag() {
+        return "\"" + Integer.toHexString(rules.getText().hashCode()) + "\"";
+    }
 
-                // Process the received data (this is where you can add your logic to handle the data)
-                // Ensure no exception is thrown here
-                SensorData data = SensorData.fromJson(requestData);
-                if (data != null && data.getTemperature() > 25.0) {
-                    String warningMessage = String.format("Warning: Average temperature %.2f exceeds 25 degrees.", data.getTemperature());
-                    if (!sendWarningToEdgeDevice(warningMessage)) {
-                        cacheWarningMessage(warningMessage);
+    /**
+     * Persistent downlink to edge devices. An edge opens it with GET and keeps the response open; warnings and
+     * rule changes are then pushed to it as lines of a chunked response (see {@link Downlink}), so they need
+     * neither a connection from the cloud to the edge nor a tunnel. The edge acknowledges warnings with POST, one
+     * sequence number per line; a warning stays in flight, or in the outbox, until then. Both need the shared
+     * EDGE_TOKEN.
+     */
+    private static class DownlinkHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String edgeId = exchange.getRequestHeaders().getFirst("X-Edge-Id");
+            if (!EdgeRegistry.isValidId(edgeId)) {
+                exchange.sendResponseHeaders(400, -1); // Bad Request
+                return;
+            }
+            // Without this anyone could take over an edge's downlink, or acknowledge its warnings, by its id
+            if (!isAuthorizedEdge(exchange)) {
+                exchange.sendResponseHeaders(401, -1); // Unauthorized
+                return;
+            }
+            if ("GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.getResponseHeaders().set("X-Producer-Epoch", Long.toString(outbox.getEpoch()));
+                exchange.getResponseHeaders().set("X-Heartbeat-Ms", Long.toString(DOWNLINK_HEARTBEAT_MS));
+                exchange.sendResponseHeaders(200, 0); // Chunked, open until either side closes it
+                exchange.getResponseBody().flush();
+                // The edge's worker writes to the response from now on; the handler returns without closing it
+                EDGES.connect(edgeId, new Downlink(exchange));
+                log("Edge device " + edgeId + " opened its downlink");
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                // Acknowledgments for warnings numbered before the outbox lost its counter do not apply any more
+                if (String.valueOf(outbox.getEpoch()).equals(exchange.getRequestHeaders().getFirst("X-Producer-Epoch"))) {
+                    EdgeEndpoint edge = EDGES.get(edgeId);
+                    for (String line : body.split("\n")) {
+                        try {
+                            long seq = Long.parseLong(line.trim());
+                            if (edge != null) {
+                                edge.acknowledge(seq);
+                            } else {
+                                outbox.acknowledge(edgeId, seq);
+                            }
+                        } catch (NumberFormatException e) {
+                            // Blank or malformed line
+                        }
                     }
                 }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            }
+        }
+    }
+
+    /**
+     * Receives the alerts that edge devices raised locally.
+     */
+    private static class AlertsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String alert = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                log("Alert from edge device " + senderKey(exchange) + ": " + alert);
 
-                String response = "Data processed successfully";
+                String response = "Alert received";
                 exchange.sendResponseHeaders(200, response.getBytes().length);
                 OutputStream os = exchange.getResponseBody();
                 os.write(response.getBytes());
@@ -74,135 +396,4543 @@ public class CloudComponent {
         }
     }
 
-    private static boolean sendWarningToEdgeDevice(String warningMessage) {
+    /**
+     * Answers GET /query?sensor=&edge=&from=&to=&step=&agg= with the count, min, max and average of a sensor's
+     * stored temperatures per step. Queries run on their own small pool of low-priority threads, so dashboards do
+     * not slow down ingest; when the pool's queue is full the request is answered with 503.
+     */
+    private static class QueryHandler implements Metrics.AsyncHandler {
+        @Override
+        public void handle(HttpExchange exchange, Runnable done) throws IOException {
+            boolean queued = false;
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                    return;
+                }
+                QUERY_EXECUTOR.execute(() -> {
+                    try {
+                        runQuery(exchange);
+                    } finally {
+                        done.run();
+                    }
+                });
+                queued = true;
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1); // Service Unavailable
+            } finally {
+                if (!queued) {
+                    done.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Buckets are aligned to multiples of the step, so steps of whole minutes, hours or days are answered from the
+     * rollups. The range is processed and streamed in chunks of buckets; empty buckets are left out.
+     */
+    private static void runQuery(HttpExchange exchange) {
         try {
-            URL url = new URL(EDGE_DEVICE_URL);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "text/plain"); // Set content type to text/plain
+            Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+            String sensorId = params.get("sensor");
+            String edgeId = params.get("edge");
+            long step;
+            long from;
+            long to;
+            List<String> aggregates;
+            boolean sketches = false;
+            try {
+                if (sensorId == null || sensorId.isEmpty()) {
+                    throw new IllegalArgumentException("sensor is required");
+                }
+                step = parseDuration(params.getOrDefault("step", "1m"));
+                to = params.containsKey("to") ? parseTime(params.get("to")) : System.currentTimeMillis();
+                from = params.containsKey("from") ? parseTime(params.get("from")) : to - TimeUnit.HOURS.toMillis(1);
+                aggregates = List.of(params.getOrDefault("agg", "count,min,max,avg").split(","));
+                for (String aggregate : aggregates) {
+                    if (!List.of("count", "min", "max", "avg", "sensors").contains(aggregate) && !aggregate.matches("p\\d{1,2}(\\.\\d+)?")) {
+                        throw new IllegalArgumentException("agg must be a list of count, min, max, avg, pNN and sensors");
+                    }
+                    sketches |= aggregate.equals("sensors") || aggregate.startsWith("p");
+                }
+                if (sketches && step % SketchLog.BUCKET_MILLIS != 0) {
+                    throw new IllegalArgumentException("pNN and sensors need a step that is a multiple of 1h");
+                }
+                from = Math.floorDiv(from, step) * step;
+                to = Math.floorDiv(to + step - 1, step) * step;
+                if (to <= from || (to - from) / step > QUERY_MAX_BUCKETS) {
+                    throw new IllegalArgumentException("from must be before to, with at most " + QUERY_MAX_BUCKETS + " steps in between");
+                }
+            } catch (IllegalArgumentException e) {
+                byte[] message = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length); // Bad Request
+                exchange.getResponseBody().write(message);
+                exchange.close();
+                return;
+            }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = warningMessage.getBytes("utf-8");
-                os.write(input, 0, input.length);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0); // Chunked
+            OutputStream os = exchange.getResponseBody();
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"from\":").append(from).append(",\"to\":").append(to).append(",\"step\":").append(step).append(",\"buckets\":[");
+            boolean first = true;
+            for (long chunkFrom = from; chunkFrom < to; chunkFrom += step * QUERY_CHUNK_BUCKETS) {
+                long chunkTo = Math.min(to, chunkFrom + step * QUERY_CHUNK_BUCKETS);
+                Aggregate[] buckets = new Aggregate[(int) ((chunkTo - chunkFrom) / step)];
+                Arrays.setAll(buckets, i -> new Aggregate());
+                store.aggregate(edgeId, sensorId, chunkFrom, chunkTo, step, buckets);
+                QuantileSketch[] quantiles = new QuantileSketch[sketches ? buckets.length : 0];
+                HyperLogLog[] sensors = new HyperLogLog[quantiles.length];
+                if (sketches) {
+                    Arrays.setAll(quantiles, i -> new QuantileSketch());
+                    Arrays.setAll(sensors, i -> new HyperLogLog());
+                    store.mergeSketches(edgeId, sensorId, chunkFrom, chunkTo, step, quantiles, sensors);
+                }
+                for (int i = 0; i < buckets.length; i++) {
+                    if (buckets[i].getCount() == 0) {
+                        continue;
+                    }
+                    sb.append(first ? "\n" : ",\n").append("{\"start\":").append(chunkFrom + i * step);
+                    for (String aggregate : aggregates) {
+                        sb.append(",\"").append(aggregate).append("\":");
+                        switch (aggregate) {
+                            case "count" -> sb.append(buckets[i].getCount());
+                            case "min" -> appendNumber(sb, buckets[i].getMin());
+                            case "max" -> appendNumber(sb, buckets[i].getMax());
+                            case "avg" -> appendNumber(sb, buckets[i].getAverage());
+                            // Only window summaries carry sketches; buckets without any have no estimate
+                            case "sensors" -> sb.append(quantiles[i].getCount() > 0 ? Long.toString(sensors[i].estimate()) : "null");
+                            default -> appendNumber(sb, quantiles[i].quantile(Double.parseDouble(aggregate.substring(1)) / 100));
+                        }
+                    }
+                    sb.append('}');
+                    first = false;
+                }
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                sb.setLength(0);
             }
+            os.write("\n]}\n".getBytes(StandardCharsets.UTF_8));
+            os.close();
+        } catch (IOException | RuntimeException e) {
+            log("Error answering query: " + e);
+            exchange.close();
+        }
+    }
 
-            int responseCode = connection.getResponseCode();
-            if (responseCode == 200) {
-                log("Warning sent to edge device successfully.");
-                return true;
-            } else {
-                log("Failed to send warning to edge device. Response code: " + responseCode);
-                return false;
+    private static Map<String, String> queryParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
             }
-        } catch (IOException e) {
-            log("Error sending warning to edge device: " + e.getMessage());
-            return false;
         }
+        return params;
     }
 
-    private static void cacheWarningMessage(String warningMessage) {
-        try (FileWriter fw = new FileWriter(CACHE_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-            pw.println(timeStamp + " " + warningMessage);
-            log("Cached warning message: " + warningMessage);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Epoch milliseconds or a yyyy.MM.dd.HH.mm.ss timestamp.
+     */
+    private static long parseTime(String value) {
+        if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
         }
+        return SensorData.parseTimestamp(value);
     }
 
-    private static void retryCachedMessages() {
-        File file = new File(CACHE_FILE);
+    /**
+     * Milliseconds, or a number with one of the units ms, s, m, h and d.
+     */
+    private static long parseDuration(String value) {
+        int unitStart = 0;
+        while (unitStart < value.length() && Character.isDigit(value.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0 || unitStart > 12) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+        long amount = Long.parseLong(value.substring(0, unitStart));
+        long duration = switch (value.substring(unitStart)) {
+            case "", "ms" -> amount;
+            case "s" -> TimeUnit.SECONDS.toMillis(amount);
+            case "m" -> TimeUnit.MINUTES.toMillis(amount);
+            case "h" -> TimeUnit.HOURS.toMillis(amount);
+            case "d" -> TimeUnit.DAYS.toMillis(amount);
+            default -> throw new IllegalArgumentException("Invalid duration: " + value);
+        };
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+        return duration;
+    }
 
-        while (true) {
-            try {
-                TimeUnit.SECONDS.sleep(5); // Retry every 60 seconds
-                List<String> lines = new ArrayList<>();
+    private static void appendNumber(StringBuilder sb, double value) {
+        if (Double.isFinite(value)) {
+            sb.append(value);
+        } else {
+            sb.append("null");
+        }
+    }
 
-                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        lines.add(line);
+    /**
+     * Reads the request body and hands it to the ingest shard of its sender. Parsing and evaluation happen on
+     * the shard, so the acknowledgment does not wait for them. With EDGE_TOKEN set, only requests that carry it are
+     * accepted, since the sender key and the dedup window are taken from headers the sender chooses.
+     */
+    private static void acceptForProcessing(HttpExchange exchange, boolean batch) throws IOException {
+        if (EDGE_TOKEN.length > 0 && !isAuthorizedEdge(exchange)) {
+            exchange.sendResponseHeaders(401, -1); // Unauthorized
+            return;
+        }
+        byte[] requestBody = exchange.getRequestBody().readAllBytes();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            try {
+                requestBody = gunzip(requestBody);
+            } catch (IOException e) {
+                log("Ignoring undecodable request body: " + e.getMessage());
+                exchange.sendResponseHeaders(400, -1); // Bad Request
+                return;
+            }
+        }
+        String edgeId = senderKey(exchange);
+        // Edges that evaluate the alert rules themselves say so, their readings are then only stored
+        boolean alertsEvaluated = "local".equals(exchange.getRequestHeaders().getFirst("X-Edge-Alerts"));
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        long[] range = sequenceRange(exchange.getRequestHeaders().getFirst("X-Seq"));
+        if (range != null && range[1] - range[0] + 1 != recordCount(requestBody, contentType, batch)) {
+            // The numbers cannot be matched to the records, so the message is stored without dedup
+            log("Not deduplicating " + (batch ? "batch" : "data") + " from edge device " + edgeId + ": X-Seq " + range[0] + "-" + range[1]
+                    + " does not match its records");
+            range = null;
+        }
+        Map<Integer, Trace> traces = traces(exchange);
+        boolean submitted;
+        if (range == null) {
+            submitted = PIPELINE.submit(edgeId, new IngestMessage(edgeId, requestBody, contentType, batch, alertsEvaluated, null, traces));
+        } else {
+            // Records this producer already sent are marked, so that a retried batch is not stored twice
+            DedupWindow window = dedupWindow(exchange, edgeId);
+            synchronized (window) {
+                BitSet duplicates = new BitSet();
+                for (long seq = range[0]; seq <= range[1]; seq++) {
+                    if (!window.isNew(seq)) {
+                        duplicates.set((int) (seq - range[0]));
                     }
                 }
-
-                List<String> remainingLines = new ArrayList<>();
-                for (String line : lines) {
-                    String[] parts = line.split(" ", 2);
-                    String timeStamp = parts[0];
-                    String warningMessage = parts[1] + " (from cache, sent at " + timeStamp + ")";
-
-                    if (!sendWarningMessage(warningMessage)) {
-                        remainingLines.add(line); // Keep in cache if sending fails
+                int count = (int) (range[1] - range[0] + 1);
+                DUPLICATE_RECORDS.add(duplicates.cardinality());
+                if (duplicates.cardinality() == count) {
+                    log("Ignoring redelivered " + (batch ? "batch" : "data") + " from edge device " + edgeId + ": " + range[0] + "-" + range[1]);
+                    submitted = true;
+                } else {
+                    submitted = PIPELINE.submit(edgeId, new IngestMessage(edgeId, requestBody, contentType, batch, alertsEvaluated,
+                            duplicates.isEmpty() ? null : duplicates, traces));
+                }
+                if (submitted) {
+                    for (long seq = range[0]; seq <= range[1]; seq++) {
+                        window.mark(seq);
                     }
                 }
+                exchange.getResponseHeaders().set("X-Ack", Long.toString(window.getContiguous()));
+            }
+        }
+        if (!submitted) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1); // Service Unavailable
+            return;
+        }
 
-                try (PrintWriter pw = new PrintWriter(new FileWriter(file, false))) {
-                    for (String remainingLine : remainingLines) {
-                        pw.println(remainingLine);
-                    }
+        String response = batch ? "Batch received" : "Data received";
+        exchange.sendResponseHeaders(200, response.getBytes().length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response.getBytes());
+        os.close();
+    }
+
+    /**
+     * Inflates a gzip-compressed body, refusing bodies that inflate to more than MAX_BODY_BYTES.
+     */
+    private static byte[] gunzip(byte[] body) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] inflated = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (inflated.length > MAX_BODY_BYTES) {
+                throw new IOException("Body inflates to more than " + MAX_BODY_BYTES + " bytes");
+            }
+            return inflated;
+        }
+    }
+
+    /**
+     * The traces of the records in a request by index: from X-Trace for a batch, from X-Trace-Id and
+     * X-Trace-Start for a single reading. Null if there are none.
+     */
+    private static Map<Integer, Trace> traces(HttpExchange exchange) {
+        String list = exchange.getRequestHeaders().getFirst("X-Trace");
+        if (list != null) {
+            Map<Integer, Trace> traces = Trace.parseList(list);
+            return traces.isEmpty() ? null : traces;
+        }
+        Trace trace = Trace.fromHeaders(exchange.getRequestHeaders().getFirst("X-Trace-Id"), exchange.getRequestHeaders().getFirst("X-Trace-Start"));
+        return trace != null ? Map.of(0, trace) : null;
+    }
+
+    /**
+     * Parses an X-Seq header, "n" or "first-last"; null if it is missing or invalid.
+     */
+    private static long[] sequenceRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        try {
+            long first = Long.parseLong(dash < 0 ? value.trim() : value.substring(0, dash).trim());
+            long last = dash < 0 ? first : Long.parseLong(value.substring(dash + 1).trim());
+            if (first <= 0 || last < first || last - first >= MAX_SEQUENCE_RANGE) {
+                return null;
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The dedup window of the producer of a numbered message, named by its X-Producer-Id header: a sensor that
+     * sends here directly has its own counter. Edge devices number per edge and send no X-Producer-Id, so they fall
+     * back to their sender key. A new epoch means the producer's counter started again at 1, so it also starts a
+     * new window.
+     */
+    private static DedupWindow dedupWindow(HttpExchange exchange, String senderKey) {
+        String producerId = exchange.getRequestHeaders().getFirst("X-Producer-Id");
+        String epoch = String.valueOf(exchange.getRequestHeaders().getFirst("X-Producer-Epoch"));
+        return DEDUP_WINDOWS.compute(producerId != null ? producerId : senderKey,
+                (id, window) -> window != null && window.getEpoch().equals(epoch) ? window : new DedupWindow(epoch));
+    }
+
+    /**
+     * The number of records in a request body, counted without decoding them; -1 if the body is malformed.
+     */
+    private static int recordCount(byte[] body, String contentType, boolean batch) {
+        if (BinaryCodec.isBinary(contentType)) {
+            return BinaryCodec.recordCount(body, 0, body.length);
+        }
+        return batch ? SensorDataCodec.countArray(body, 0, body.length) : 1;
+    }
+
+    private static String senderKey(HttpExchange exchange) {
+        String edgeId = exchange.getRequestHeaders().getFirst("X-Edge-Id");
+        return EdgeRegistry.isValidId(edgeId) ? edgeId : exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private static void processMessage(IngestMessage message) {
+        long start = System.nanoTime();
+        QUEUE_WAIT.observeNanos(start - message.getReceivedNanos());
+        try {
+            processRecords(message);
+        } finally {
+            PROCESSING_DURATION.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    private static void processRecords(IngestMessage message) {
+        // Process the received data (this is where you can add your logic to handle the data)
+        try {
+            List<SensorData> records;
+            if (BinaryCodec.isBinary(message.getContentType())) {
+                records = BinaryCodec.decode(message.getBody(), 0, message.getBody().length);
+            } else if (message.isBatch()) {
+                records = SensorDataCodec.decodeArray(message.getBody(), 0, message.getBody().length);
+            } else {
+                log("Received data: " + new String(message.getBody(), StandardCharsets.UTF_8));
+                processData(message, SensorDataCodec.decode(message.getBody()));
+                traceStored(message, 0);
+                return;
+            }
+
+            if (message.isBatch()) {
+                log("Received batch of " + records.size() + " records");
+            }
+            for (int i = 0; i < records.size(); i++) {
+                if (message.isDuplicate(i)) {
+                    continue;
                 }
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+                SensorData data = records.get(i);
+                log("Received data: " + describe(data));
+                processData(message, data);
+                traceStored(message, i);
             }
+        } catch (IllegalArgumentException e) {
+            log((message.isBatch() ? "Ignoring malformed batch: " : "Ignoring malformed data: ") + e.getMessage());
+        }
+    }
+
+    private static void traceStored(IngestMessage message, int index) {
+        Trace trace = message.getTrace(index);
+        if (trace != null) {
+            long latency = System.currentTimeMillis() - trace.getStartMillis();
+            TRACE_LATENCY.observeMicros(latency * 1000);
+            log("Trace " + trace.getId() + ": stored for edge device " + message.getEdgeId() + " " + latency + " ms after the sensor sent it");
+        }
+    }
+
+    private static String describe(SensorData data) {
+        String description = data.getSensorId() + ", " + data.getTemperature() + ", " + data.getTimestamp();
+        if (data.isSummary()) {
+            description += " (count " + data.getCount() + ", min " + data.getMin() + ", max " + data.getMax()
+                    + ", variance " + data.getVariance() + ")";
         }
+        if (data.getQuantiles() != null) {
+            description += " (p50 " + data.getQuantiles().quantile(0.5) + ", p95 " + data.getQuantiles().quantile(0.95)
+                    + ", p99 " + data.getQuantiles().quantile(0.99) + ")";
+        }
+        if (data.getSensors() != null) {
+            description += " (about " + data.getSensors().estimate() + " sensors)";
+        }
+        return description;
     }
 
-    private static boolean sendWarningMessage(String warningMessage) {
+    /**
+     * Stores the reading and, unless its edge evaluates the rules itself, evaluates the alert rules on it. Alerts
+     * go to the edge that sent the reading, or to the default edge if that one is not registered; alerts for an edge
+     * that is not known at all are kept in the outbox until it registers.
+     */
+    private static void processData(IngestMessage message, SensorData data) {
+        if (data == null) {
+            return;
+        }
+        String edgeId = message.getEdgeId();
+        long timestamp;
+        try {
+            timestamp = SensorData.parseTimestamp(data.getTimestamp());
+        } catch (IllegalArgumentException e) {
+            log("Ignoring reading: " + e.getMessage());
+            return;
+        }
         try {
-            URL url = new URL(EDGE_DEVICE_URL);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "text/plain");
+            store.append(edgeId, data.getSensorId(), timestamp, data.getTemperature());
+            if (data.getQuantiles() != null && data.getSensors() != null) {
+                store.appendSketches(edgeId, data.getSensorId(), timestamp, data.getQuantiles(), data.getSensors());
+            }
+            RECORDS.increment();
+        } catch (IOException e) {
+            log("Error storing reading: " + e.getMessage());
+        }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = warningMessage.getBytes("utf-8");
-                os.write(input, 0, input.length);
+        if (message.isAlertsEvaluated()) {
+            return;
+        }
+        QuantileSketch quantiles = data.getQuantiles();
+        for (Alert alert : rules.evaluate(edgeId, data.getSensorId(), data.getTemperature(), quantiles != null ? quantiles::quantile : null,
+                timestamp)) {
+            EdgeEndpoint edge = EDGES.route(edgeId);
+            long seq;
+            try {
+                seq = outbox.nextSequence();
+            } catch (IOException e) {
+                log("Error numbering warning, dropping it: " + e.getMessage());
+                continue;
             }
+            Warning warning = new Warning(seq, edge != null ? edge.getId() : edgeId, alert.getKey(), alert.getMessage(),
+                    WARNING_TIMESTAMP.format(Instant.now()));
+            if (edge == null || !edge.offer(warning)) {
+                cacheWarningMessage(warning);
+            }
+        }
+    }
 
-            int responseCode = connection.getResponseCode();
-            return responseCode == 200;
+    private static void cacheWarningMessage(Warning warning) {
+        try {
+            outbox.add(warning.seq, warning.destination, warning.key, warning.message, warning.createdAt);
+            log("Cached warning message: " + warning.message);
         } catch (IOException e) {
-            return false;
+            log("Error caching warning message: " + e.getMessage());
         }
     }
 
-    static class SensorData {
-        private final String sensorId;
-        private final double temperature;
-        private final String timestamp;
+    /**
+     * Whether the request carries the shared EDGE_TOKEN in its X-Edge-Token header. Without a configured token no
+     * request does, so edges can neither register nor open a downlink; EDGE_DEVICE_URL still receives the warnings
+     * then.
+     */
+    private static boolean isAuthorizedEdge(HttpExchange exchange) {
+        String token = exchange.getRequestHeaders().getFirst("X-Edge-Token");
+        return EDGE_TOKEN.length > 0 && token != null
+                && MessageDigest.isEqual(EDGE_TOKEN, token.trim().getBytes(StandardCharsets.UTF_8));
+    }
 
-        public SensorData(String sensorId, double temperature, String timestamp) {
-            this.sensorId = sensorId;
-            this.temperature = temperature;
-            this.timestamp = timestamp;
+    private static List<String> envList(String name) {
+        List<String> values = new ArrayList<>();
+        for (String value : System.getenv().getOrDefault(name, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim().toLowerCase());
+            }
         }
+        return values;
+    }
 
-        public String getSensorId() {
-            return sensorId;
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
         }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
 
-        public double getTemperature() {
-            return temperature;
+    /**
+     * Asynchronous file logger. {@link #log} only publishes the line into a lock-free ring buffer; a single
+     * writer thread drains it in batches into one reused FileChannel, rotates the file by size and age, and
+     * forces it to disk according to the fsync policy: "never", "interval" (at most every
+     * LOG_FSYNC_INTERVAL_MS) or "always" (after every batch). Producers only wait if the buffer is full.
+     */
+    static class AsyncLog {
+        private final Path path;
+        private final AtomicReferenceArray<String> lines;
+        private final AtomicLongArray sequences;
+        private final int capacity;
+        private final AtomicLong tail = new AtomicLong();
+        private long head; // Only used by the writer thread
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final long maxBytes;
+        private final int maxFiles;
+        private final long rotateIntervalMillis;
+        private final String fsyncPolicy;
+        private final long fsyncIntervalMillis;
+        private final Thread writer;
+        private volatile boolean closed;
+
+        private FileChannel channel;
+        private long fileSize;
+        private long openedAt;
+        private long lastSync;
+
+        AsyncLog(String file) {
+            this.path = Path.of(file);
+            this.capacity = 1 << 16;
+            this.lines = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            this.maxBytes = envLong("LOG_MAX_BYTES", 64L * 1024 * 1024);
+            this.maxFiles = (int) envLong("LOG_MAX_FILES", 5);
+            this.rotateIntervalMillis = envLong("LOG_ROTATE_INTERVAL_MS", TimeUnit.DAYS.toMillis(1));
+            this.fsyncPolicy = System.getenv().getOrDefault("LOG_FSYNC", "interval");
+            this.fsyncIntervalMillis = envLong("LOG_FSYNC_INTERVAL_MS", 1000);
+            this.writer = new Thread(this::writeLoop, "log-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
         }
 
-        public String getTimestamp() {
-            return timestamp;
+        void log(String line) {
+            while (!tryOffer(line)) {
+                if (closed) {
+                    System.err.println(line);
+                    return;
+                }
+                LockSupport.parkNanos(50_000);
+            }
         }
 
-        public static SensorData fromJson(String jsonString) {
+        /**
+         * Stops accepting lines and waits until everything buffered is on disk.
+         */
+        void close() {
+            closed = true;
             try {
-                String[] parts = jsonString.replace("{", "").replace("}", "").split(",");
-                String sensorId = parts[0].split(":")[1].replace("\"", "").trim();
-                double temperature = Double.parseDouble(parts[1].split(":")[1].trim());
-                String timestamp = parts[2].split(":")[1].trim().replace("\"", "").trim();
-                return new SensorData(sensorId, temperature, timestamp);
-            } catch (Exception e) {
-                e.printStackTrace();
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean tryOffer(String line) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & (capacity - 1));
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        lines.set(index, line);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false; // Full
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        private String poll() {
+            int index = (int) (head & (capacity - 1));
+            if (sequences.get(index) != head + 1) {
                 return null;
             }
+            String line = lines.get(index);
+            lines.set(index, null);
+            sequences.set(index, head + capacity);
+            head++;
+            return line;
+        }
+
+        private void writeLoop() {
+            while (true) {
+                boolean wasClosed = closed;
+                try {
+                    if (channel == null) {
+                        open();
+                    }
+                    int written = 0;
+                    String line;
+                    while ((line = poll()) != null) {
+                        append(line);
+                        written++;
+                        if (fileSize + buffer.position() >= maxBytes) {
+                            flushBuffer();
+                            rotate();
+                        }
+                    }
+                    if (written > 0) {
+                        flushBuffer();
+                    }
+                    sync(written > 0);
+                    if (fileSize > 0 && (fileSize >= maxBytes || System.currentTimeMillis() - openedAt >= rotateIntervalMillis)) {
+                        rotate();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing log file " + path + ": " + e.getMessage());
+                    buffer.clear();
+                    closeChannel();
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                }
+                if (wasClosed) {
+                    closeChannel();
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+
+        private void append(String line) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length + 1 > buffer.remaining()) {
+                flushBuffer();
+            }
+            if (bytes.length + 1 > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                writeFully(ByteBuffer.wrap(new byte[]{'\n'}));
+                return;
+            }
+            buffer.put(bytes).put((byte) '\n');
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                fileSize += channel.write(data);
+            }
+        }
+
+        private void sync(boolean wroteBatch) throws IOException {
+            long now = System.currentTimeMillis();
+            boolean due = "always".equals(fsyncPolicy) ? wroteBatch
+                    : "interval".equals(fsyncPolicy) && now - lastSync >= fsyncIntervalMillis;
+            if (due) {
+                channel.force(false);
+                lastSync = now;
+            }
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void rotate() throws IOException {
+            closeChannel();
+            Files.deleteIfExists(Path.of(path + "." + maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = Path.of(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Path.of(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, Path.of(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+
+        private void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing log file " + path + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Concurrent registry of the edge devices that warnings are sent to, keyed by edge id.
+     */
+    static class EdgeRegistry {
+        private static final Pattern ID = Pattern.compile("[A-Za-z0-9._:-]{1,64}");
+        private final Map<String, EdgeEndpoint> edges = new ConcurrentHashMap<>();
+        private final int queueCapacity;
+
+        EdgeRegistry(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        static boolean isValidId(String edgeId) {
+            return edgeId != null && ID.matcher(edgeId).matches();
+        }
+
+        static boolean isValidUrl(String url) {
+            try {
+                URI uri = URI.create(url);
+                return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && uri.getHost() != null;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Whether warnings may be sent to this URL's host: it is in {@code allowedHosts}, where an entry starting
+         * with a dot also allows all subdomains, or, if that list is empty, none of its addresses is a loopback,
+         * link-local, private or wildcard address, so a registration cannot aim the cloud at its own network.
+         */
+        static boolean isAllowedHost(String url, List<String> allowedHosts) {
+            String host = URI.create(url).getHost().toLowerCase();
+            if (!allowedHosts.isEmpty()) {
+                for (String allowed : allowedHosts) {
+                    if (host.equals(allowed) || allowed.startsWith(".") && (host.endsWith(allowed) || host.equals(allowed.substring(1)))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            try {
+                for (InetAddress address : InetAddress.getAllByName(host)) {
+                    if (address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+                            || address.isAnyLocalAddress() || address.isMulticastAddress()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (UnknownHostException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Adds an edge or updates its URL. Returns whether anything changed.
+         */
+        boolean register(String edgeId, String url) {
+            EdgeEndpoint edge = edges.computeIfAbsent(edgeId, id -> new EdgeEndpoint(id, queueCapacity));
+            boolean changed = !url.equals(edge.getUrl());
+            edge.setUrl(url);
+            edge.start();
+            return changed;
+        }
+
+        /**
+         * Adds an edge that opened its downlink, or hands the new downlink to the known edge.
+         */
+        void connect(String edgeId, Downlink downlink) {
+            EdgeEndpoint edge = edges.computeIfAbsent(edgeId, id -> new EdgeEndpoint(id, queueCapacity));
+            edge.attach(downlink);
+            edge.start();
+        }
+
+        EdgeEndpoint get(String edgeId) {
+            return edges.get(edgeId);
+        }
+
+        EdgeEndpoint route(String edgeId) {
+            EdgeEndpoint edge = edgeId != null ? edges.get(edgeId) : null;
+            return edge != null ? edge : edges.get(DEFAULT_EDGE);
+        }
+
+        List<EdgeEndpoint> list() {
+            return new ArrayList<>(edges.values());
+        }
+    }
+
+    /**
+     * A registered edge device. Every edge has its own warning queue, worker thread and HTTP client, so a slow or
+     * unreachable edge only delays its own warnings. The worker also redelivers the edge's warnings from the outbox.
+     * While the edge holds its downlink open, warnings are pushed over it instead of being posted to its URL; they
+     * stay in flight until the edge acknowledges them, and go back to the outbox if the downlink closes first.
+     */
+    static class EdgeEndpoint {
+        private final String id;
+        private final BlockingQueue<Warning> queue;
+        private final HttpTransport transport = new HttpTransport();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final AtomicReference<Downlink> downlink = new AtomicReference<>();
+        private final Map<Long, Long> inFlight = new ConcurrentHashMap<>(); // Pushed warnings by sequence number: push time
+        private final Map<Long, Warning> unacked = new ConcurrentHashMap<>(); // Pushed warnings that are not in the outbox
+        private Downlink active; // The downlink the worker writes to; only used by the worker
+        private volatile String url;
+
+        EdgeEndpoint(String id, int queueCapacity) {
+            this.id = id;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        void setUrl(String url) {
+            this.url = url;
+        }
+
+        boolean offer(Warning warning) {
+            return queue.offer(warning);
+        }
+
+        int getQueueSize() {
+            return queue.size();
+        }
+
+        boolean isConnected() {
+            Downlink current = downlink.get();
+            return current != null && current.isOpen();
+        }
+
+        /**
+         * Switches to a newly opened downlink. The worker picks it up and resends what was in flight on the old one.
+         */
+        void attach(Downlink link) {
+            Downlink previous = downlink.getAndSet(link);
+            if (previous != null) {
+                previous.close();
+            }
+            outbox.retryNow(id);
+        }
+
+        /**
+         * Completes the delivery of a pushed warning.
+         */
+        void acknowledge(long seq) throws IOException {
+            Long pushedAt = inFlight.remove(seq);
+            if (pushedAt != null) {
+                WARNING_DURATION.observeNanos(System.nanoTime() - pushedAt);
+                WARNINGS_DELIVERED.increment();
+            }
+            unacked.remove(seq);
+            outbox.acknowledge(id, seq);
+        }
+
+        void start() {
+            if (started.compareAndSet(false, true)) {
+                Thread.ofVirtual().name("edge-" + id).start(this::dispatch);
+            }
+        }
+
+        private void dispatch() {
+            while (true) {
+                try {
+                    Warning warning = queue.poll(1, TimeUnit.SECONDS);
+                    serviceDownlink();
+                    if (warning != null) {
+                        // Warnings already waiting in the outbox go first
+                        if (outbox.hasPending(id)) {
+                            cacheWarningMessage(warning);
+                        } else if (!push(warning.seq, warning.message, warning) && !send(warning.seq, warning.message)) {
+                            outbox.failed(id);
+                            cacheWarningMessage(warning);
+                        }
+                    }
+                    redeliver();
+                } catch (IOException e) {
+                    log("Error updating warning outbox: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Sends the edge's warnings from the outbox, oldest first, until one fails or none are left. Over the
+         * downlink, at most 100 of them are in flight; they leave the outbox when the edge acknowledges them.
+         */
+        private void redeliver() throws IOException {
+            while (outbox.isDue(id, System.currentTimeMillis())) {
+                boolean sent = false;
+                for (WarningOutbox.Entry entry : outbox.due(id, 100)) {
+                    if (inFlight.containsKey(entry.getId())) {
+                        continue;
+                    }
+                    String message = entry.getMessage() + " (from cache, sent at " + entry.getCreatedAt() + ")";
+                    if (!push(entry.getId(), message, null)) {
+                        boolean delivered = send(entry.getId(), message);
+                        outbox.recordAttempt(entry, delivered);
+                        if (!delivered) {
+                            return;
+                        }
+                    }
+                    sent = true;
+                }
+                if (!sent) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Picks up a new downlink, pushes changed rules or a heartbeat on the active one, and once it is closed
+         * moves the warnings that were in flight on it back to the outbox.
+         */
+        private void serviceDownlink() {
+            Downlink current = downlink.get();
+            if (current != active) {
+                requeue();
+                active = current;
+            }
+            if (active == null) {
+                return;
+            }
+            String etag = rulesEtag();
+            if (!etag.equals(active.getRulesEtag())) {
+                if (active.write("rules " + etag)) {
+                    active.setRulesEtag(etag);
+                }
+            } else if (System.currentTimeMillis() - active.getLastWriteMillis() >= DOWNLINK_HEARTBEAT_MS) {
+                active.write("ping");
+            }
+            if (!active.isOpen()) {
+                log("Downlink of edge device " + id + " closed");
+                requeue();
+                downlink.compareAndSet(active, null);
+                active = null;
+            }
+        }
+
+        /**
+         * Forgets what was pushed on the active downlink: warnings from the outbox are sent again from there, the
+         * others are added to it.
+         */
+        private void requeue() {
+            inFlight.clear();
+            for (Warning warning : unacked.values()) {
+                cacheWarningMessage(warning);
+            }
+            unacked.clear();
+        }
+
+        /**
+         * Writes a warning to the active downlink. The warning is passed if it is not in the outbox, so that it
+         * can be added there should the downlink close before the edge acknowledges it.
+         */
+        private boolean push(long seq, String warningMessage, Warning warning) {
+            if (active == null) {
+                return false;
+            }
+            inFlight.put(seq, System.nanoTime());
+            if (warning != null) {
+                unacked.put(seq, warning);
+            }
+            if (!active.write("warning " + seq + " " + warningMessage.replace('\n', ' ').replace('\r', ' '))) {
+                inFlight.remove(seq);
+                unacked.remove(seq);
+                return false;
+            }
+            log("Warning pushed to edge device " + id + " over its downlink.");
+            return true;
+        }
+
+        /**
+         * Sends a warning under its sequence number, so that the edge shows it only once if the response is lost.
+         */
+        private boolean send(long seq, String warningMessage) {
+            if (url == null) {
+                return false; // Only reachable over its downlink
+            }
+            long start = System.nanoTime();
+            return transport.postAsync(url, "text/plain", warningMessage.getBytes(StandardCharsets.UTF_8),
+                            "X-Producer-Id", "cloud", "X-Producer-Epoch", Long.toString(outbox.getEpoch()), "X-Seq", Long.toString(seq))
+                    .handle((response, e) -> {
+                        WARNING_DURATION.observeNanos(System.nanoTime() - start);
+                        if (e != null) {
+                            log("Error sending warning to edge device " + id + ": " + e.getMessage());
+                            WARNINGS_FAILED.increment();
+                            return false;
+                        }
+                        if (response.statusCode() == 200) {
+                            log("Warning sent to edge device " + id + " successfully.");
+                            WARNINGS_DELIVERED.increment();
+                            return true;
+                        } else {
+                            log("Failed to send warning to edge device " + id + ". Response code: " + response.statusCode());
+                            WARNINGS_FAILED.increment();
+                            return false;
+                        }
+                    })
+                    .join();
+        }
+    }
+
+    /**
+     * A warning on its way to an edge device, identified by its edge id. The key (the alert's rule and sensor)
+     * identifies warnings that supersede each other; the sequence number identifies this warning on every attempt.
+     */
+    static class Warning {
+        private final long seq;
+        private final String destination;
+        private final String key;
+        private final String message;
+        private final String createdAt;
+
+        Warning(long seq, String destination, String key, String message, String createdAt) {
+            this.seq = seq;
+            this.destination = destination;
+            this.key = key;
+            this.message = message;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * An edge device's open GET /downlink response. Lines are "warning &lt;seq&gt; &lt;message&gt;", "rules &lt;etag&gt;"
+     * when the alert rules changed, and "ping" after DOWNLINK_HEARTBEAT_MS without other traffic, which both keeps
+     * the connection alive and lets either side detect that it is gone. Only the edge's worker writes to it.
+     */
+    static class Downlink {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private volatile boolean open = true;
+        private long lastWriteMillis = System.currentTimeMillis();
+        private String rulesEtag = "";
+
+        Downlink(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        /**
+         * Writes and flushes one line; false if the connection is closed or breaks.
+         */
+        boolean write(String line) {
+            if (!open) {
+                return false;
+            }
+            try {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                lastWriteMillis = System.currentTimeMillis();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        void close() {
+            open = false;
+            exchange.close();
+        }
+
+        long getLastWriteMillis() {
+            return lastWriteMillis;
+        }
+
+        String getRulesEtag() {
+            return rulesEtag;
+        }
+
+        void setRulesEtag(String rulesEtag) {
+            this.rulesEtag = rulesEtag;
+        }
+    }
+
+    /**
+     * Durable outbox for warnings that could not be delivered. Records are appended to a log file as
+     * "+" (pending warning) and "-" (delivered or superseded) lines, and an in-memory index of the pending
+     * warnings is rebuilt from it on startup. A new warning for a destination and key that is still pending
+     * replaces the old one, so an unreachable edge device accumulates at most one warning per key. The outbox
+     * is bounded (oldest warnings are evicted) and the log is compacted once most of its lines are obsolete.
+     * Every destination has its own exponential backoff with jitter. Warnings are keyed by their sequence number,
+     * taken from a counter stored next to the log. Each line starts with a CRC-32C of the rest of the line; lines
+     * that fail it on replay, such as the torn last line after a power loss, are moved to a ".corrupt" file beside
+     * the log, which is rewritten without them.
+     */
+    static class WarningOutbox {
+        private final Path path;
+        private final int maxEntries;
+        private final long baseBackoffMillis;
+        private final long maxBackoffMillis;
+        private final Map<Long, Entry> pending = new LinkedHashMap<>();
+        private final Map<String, Long> pendingByKey = new HashMap<>();
+        private final Map<String, Backoff> backoffs = new HashMap<>();
+        private final SequenceCounter sequence;
+        private BufferedWriter writer;
+        private long obsoleteLines;
+        private long evicted;
+
+        WarningOutbox(String file, int maxEntries, long baseBackoffMillis, long maxBackoffMillis) throws IOException {
+            this.path = Path.of(file);
+            this.maxEntries = maxEntries;
+            this.baseBackoffMillis = baseBackoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            this.sequence = new SequenceCounter(new File(file + ".seq"));
+            if (Files.exists(path)) {
+                replay();
+            }
+            compact();
+        }
+
+        /**
+         * The sequence number of a new warning.
+         */
+        long nextSequence() throws IOException {
+            return sequence.next();
+        }
+
+        long getEpoch() {
+            return sequence.getEpoch();
+        }
+
+        /**
+         * Stores a warning, replacing a pending one with the same destination and key.
+         */
+        synchronized void add(long seq, String destination, String key, String message, String createdAt) throws IOException {
+            Long previous = pendingByKey.remove(destination + '\u0000' + key);
+            if (previous != null) {
+                pending.remove(previous);
+                appendLine("-\t" + previous);
+                obsoleteLines += 2;
+            }
+            Entry entry = new Entry(seq, destination, key, sanitize(message), createdAt);
+            index(entry);
+            appendLine("+\t" + entry.id + "\t" + entry.destination + "\t" + sanitize(entry.key) + "\t" + entry.createdAt + "\t" + entry.message);
+            while (pending.size() > maxEntries) {
+                Entry oldest = pending.values().iterator().next();
+                remove(oldest);
+                evicted++;
+                log("Outbox full, dropped warning: " + oldest.message);
+            }
+            writer.flush();
+            compactIfWorthwhile();
+        }
+
+        /**
+         * The oldest pending warnings of a destination.
+         */
+        synchronized List<Entry> due(String destination, int limit) {
+            List<Entry> due = new ArrayList<>();
+            for (Entry entry : pending.values()) {
+                if (due.size() >= limit) {
+                    break;
+                }
+                if (entry.destination.equals(destination)) {
+                    due.add(entry);
+                }
+            }
+            return due;
+        }
+
+        synchronized boolean isDue(String destination, long now) {
+            Backoff backoff = backoffs.get(destination);
+            return backoff == null || backoff.nextAttempt <= now;
+        }
+
+        /**
+         * True while warnings for the destination are waiting in the outbox; new warnings should then be added
+         * here too instead of being sent directly.
+         */
+        synchronized boolean hasPending(String destination) {
+            return backoffs.containsKey(destination);
+        }
+
+        /**
+         * Records a delivery attempt: removes the warning on success, otherwise backs off the destination.
+         */
+        synchronized void recordAttempt(Entry entry, boolean delivered) throws IOException {
+            if (delivered) {
+                if (pending.containsKey(entry.id)) {
+                    remove(entry);
+                    writer.flush();
+                }
+                if (pending.values().stream().noneMatch(e -> e.destination.equals(entry.destination))) {
+                    backoffs.remove(entry.destination);
+                }
+                compactIfWorthwhile();
+            } else {
+                failed(entry.destination);
+            }
+        }
+
+        /**
+         * Removes a warning that its destination acknowledged; unknown sequence numbers are ignored.
+         */
+        synchronized void acknowledge(String destination, long seq) throws IOException {
+            Entry entry = pending.get(seq);
+            if (entry != null && entry.destination.equals(destination)) {
+                recordAttempt(entry, true);
+            }
+        }
+
+        /**
+         * Makes the destination's pending warnings due now, e.g. because it just connected.
+         */
+        synchronized void retryNow(String destination) {
+            Backoff backoff = backoffs.get(destination);
+            if (backoff != null) {
+                backoff.failures = 0;
+                backoff.nextAttempt = 0;
+            }
+        }
+
+        /**
+         * Backs off a destination after a failed delivery: base * 2^failures, capped, with up to 50% jitter.
+         */
+        synchronized void failed(String destination) {
+            Backoff backoff = backoffs.computeIfAbsent(destination, d -> new Backoff());
+            long delay = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(backoff.failures, 20));
+            delay -= (long) (delay * 0.5 * ThreadLocalRandom.current().nextDouble());
+            backoff.failures++;
+            backoff.nextAttempt = System.currentTimeMillis() + delay;
+        }
+
+        synchronized int size() {
+            return pending.size();
+        }
+
+        synchronized long getEvicted() {
+            return evicted;
+        }
+
+        private void remove(Entry entry) throws IOException {
+            pending.remove(entry.id);
+            pendingByKey.remove(entry.destination + '\u0000' + entry.key);
+            appendLine("-\t" + entry.id);
+            obsoleteLines += 2;
+        }
+
+        private void index(Entry entry) {
+            pending.put(entry.id, entry);
+            pendingByKey.put(entry.destination + '\u0000' + entry.key, entry.id);
+            // Everything already in the outbox is waiting for a retry
+            backoffs.putIfAbsent(entry.destination, new Backoff());
+        }
+
+        private void replay() throws IOException {
+            // Unlike Files.newBufferedReader, this replaces invalid UTF-8 instead of failing, so such lines fail the checksum
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8))) {
+                String raw;
+                while ((raw = br.readLine()) != null) {
+                    String line = verified(raw);
+                    if (line == null) {
+                        quarantine(raw);
+                        continue;
+                    }
+                    String[] parts = line.split("\t", 6);
+                    try {
+                        if (parts[0].equals("+") && parts.length == 6) {
+                            Entry entry = new Entry(Long.parseLong(parts[1]), parts[2], parts[3], parts[5], parts[4]);
+                            Long previous = pendingByKey.get(entry.destination + '\u0000' + entry.key);
+                            if (previous != null) {
+                                pending.remove(previous);
+                            }
+                            index(entry);
+                        } else if (parts[0].equals("-") && parts.length == 2) {
+                            Entry entry = pending.remove(Long.parseLong(parts[1]));
+                            if (entry != null) {
+                                pendingByKey.remove(entry.destination + '\u0000' + entry.key);
+                            }
+                        } else if (!line.isBlank() && line.indexOf('\t') < 0) {
+                            // Line from the old "timestamp message" cache format
+                            String[] legacy = line.split(" ", 2);
+                            if (legacy.length == 2) {
+                                long seq = sequence.next();
+                                index(new Entry(seq, DEFAULT_EDGE, "legacy-" + seq, legacy[1], legacy[0]));
+                            }
+                        } else {
+                            log("Skipping malformed outbox line: " + line);
+                        }
+                    } catch (NumberFormatException e) {
+                        log("Skipping malformed outbox line: " + line);
+                    }
+                }
+            }
+        }
+
+        private void compactIfWorthwhile() throws IOException {
+            if (obsoleteLines > 1000 && obsoleteLines > 2L * pending.size()) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrites the log with only the pending warnings.
+         */
+        private void compact() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+            Path temp = Path.of(path + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Entry entry : pending.values()) {
+                    out.write(withChecksum("+\t" + entry.id + "\t" + entry.destination + "\t" + sanitize(entry.key) + "\t" + entry.createdAt
+                            + "\t" + entry.message));
+                    out.newLine();
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            obsoleteLines = 0;
+        }
+
+        private void appendLine(String line) throws IOException {
+            writer.write(withChecksum(line));
+            writer.newLine();
+        }
+
+        private static String withChecksum(String line) {
+            return String.format("%08x", checksum(line)) + "\t" + line;
+        }
+
+        private static int checksum(String line) {
+            CRC32C crc = new CRC32C();
+            crc.update(line.getBytes(StandardCharsets.UTF_8));
+            return (int) crc.getValue();
+        }
+
+        /**
+         * The line without its checksum, or null if the checksum does not match. Lines written before the log had
+         * checksums are returned as they are.
+         */
+        private static String verified(String line) {
+            if (line.length() < 9 || line.charAt(8) != '\t' || line.charAt(0) == '+' || line.charAt(0) == '-') {
+                return line;
+            }
+            try {
+                return Integer.parseUnsignedInt(line, 0, 8, 16) == checksum(line.substring(9)) ? line.substring(9) : null;
+            } catch (NumberFormatException e) {
+                return line;
+            }
+        }
+
+        private void quarantine(String line) throws IOException {
+            Files.writeString(Path.of(path + ".corrupt"), line + System.lineSeparator(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            log("Quarantined corrupt outbox line to " + path + ".corrupt: " + line);
+        }
+
+        private static String sanitize(String value) {
+            return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+
+        private static class Backoff {
+            private int failures;
+            private long nextAttempt;
+        }
+
+        static class Entry {
+            private final long id;
+            private final String destination;
+            private final String key;
+            private final String message;
+            private final String createdAt;
+
+            Entry(long id, String destination, String key, String message, String createdAt) {
+                this.id = id;
+                this.destination = destination;
+                this.key = key;
+                this.message = message;
+                this.createdAt = createdAt;
+            }
+
+            public long getId() {
+                return id;
+            }
+
+            public String getDestination() {
+                return destination;
+            }
+
+            public String getMessage() {
+                return message;
+            }
+
+            public String getCreatedAt() {
+                return createdAt;
+            }
+        }
+    }
+
+    /**
+     * Evaluates alert rules on every reading. Rules are read from a file that is reloaded when it changes; each
+     * non-empty line that does not start with '#' is one rule:
+     * <pre>
+     * name  sensor-pattern  metric  comparison  threshold  [clear=v] [for=n/m] [repeat=duration]
+     * hot   sensor_*        avg(1m) >           25         clear=24.5 for=2/3
+     * </pre>
+     * The pattern matches sensor ids, with '*' for any characters. Metrics are {@code value} (the reading),
+     * {@code rate} (change per second since the previous reading) and {@code avg(d)}, {@code min(d)} and {@code max(d)}
+     * over the readings of the last duration d; comparisons are &gt;, &gt;=, &lt; and &lt;=. An alert fires when n of
+     * the last m readings breach the threshold (default 1/1) and is then not repeated until it has cleared, which
+     * happens once the metric is back beyond the clear value (default: the threshold). With repeat it is repeated at
+     * that interval while it stays active. Firing and clearing each produce one {@link Alert}.
+     */
+    static class RuleEngine {
+        private final Path file;
+        private final String defaultRules;
+        private final Map<String, SensorRules> sensors = new ConcurrentHashMap<>();
+        private volatile RuleSet rules;
+        private long loadedModified;
+
+        RuleEngine(String file, String defaultRules) {
+            this.file = Path.of(file);
+            this.defaultRules = defaultRules;
+            this.rules = RuleSet.parse(defaultRules);
+            reloadIfChanged();
+        }
+
+        /**
+         * Checks the file for changes at the given interval on a background thread.
+         */
+        void startReloading(long intervalMillis) {
+            Thread reloader = new Thread(() -> {
+                while (true) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(intervalMillis);
+                        reloadIfChanged();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }, "rule-reloader");
+            reloader.setDaemon(true);
+            reloader.start();
+        }
+
+        /**
+         * Replaces the rules if the file was changed, created or deleted. A file with errors is logged and ignored,
+         * so the previous rules stay in effect.
+         */
+        synchronized void reloadIfChanged() {
+            try {
+                long modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+                if (modified == loadedModified) {
+                    return;
+                }
+                String text = modified != 0 ? Files.readString(file, StandardCharsets.UTF_8) : defaultRules;
+                rules = RuleSet.parse(text);
+                loadedModified = modified;
+                log("Loaded " + rules.size() + " alert rules" + (modified != 0 ? " from " + file : " (defaults)"));
+            } catch (IOException | IllegalArgumentException e) {
+                log("Keeping previous alert rules, cannot load " + file + ": " + e.getMessage());
+            }
+        }
+
+        String getText() {
+            return rules.getText();
+        }
+
+        /**
+         * Evaluates all rules that match the sensor. Readings of one edge must be passed in from one thread at a time.
+         *
+         * @param quantiles the quantiles of the values summarized by a window summary, or null for a single reading
+         */
+        List<Alert> evaluate(String edgeId, String sensorId, double value, DoubleUnaryOperator quantiles, long timestamp) {
+            RuleSet current = rules;
+            SensorRules state = sensors.computeIfAbsent(edgeId + '\u0000' + sensorId, k -> new SensorRules());
+            synchronized (state) {
+                if (state.ruleSet != current) {
+                    state.update(current, current.match(sensorId));
+                }
+                List<Alert> alerts = null;
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < state.rules.length; i++) {
+                    Alert alert = state.rules[i].evaluate(state.states[i], sensorId, value, quantiles, timestamp, now);
+                    if (alert != null) {
+                        if (alerts == null) {
+                            alerts = new ArrayList<>();
+                        }
+                        alerts.add(alert);
+                    }
+                }
+                return alerts != null ? alerts : List.of();
+            }
+        }
+
+        /**
+         * The rules matching one sensor of one edge with their state. Rules that are unchanged by a reload keep their state.
+         */
+        private static class SensorRules {
+            private RuleSet ruleSet;
+            private Rule[] rules = new Rule[0];
+            private RuleState[] states = new RuleState[0];
+
+            void update(RuleSet ruleSet, Rule[] rules) {
+                RuleState[] states = new RuleState[rules.length];
+                for (int i = 0; i < rules.length; i++) {
+                    for (int j = 0; j < this.rules.length && states[i] == null; j++) {
+                        if (this.rules[j].getDefinition().equals(rules[i].getDefinition())) {
+                            states[i] = this.states[j];
+                        }
+                    }
+                    if (states[i] == null) {
+                        states[i] = new RuleState();
+                    }
+                }
+                this.ruleSet = ruleSet;
+                this.rules = rules;
+                this.states = states;
+            }
+        }
+    }
+
+    /**
+     * A parsed rule file. Rules for an exact sensor id are looked up in a map, patterns are tried in order,
+     * and the result per sensor id is cached.
+     */
+    static class RuleSet {
+        private final String text;
+        private final List<Rule> rules;
+        private final Map<String, Rule[]> matches = new ConcurrentHashMap<>();
+
+        private RuleSet(String text, List<Rule> rules) {
+            this.text = text;
+            this.rules = rules;
+        }
+
+        static RuleSet parse(String text) {
+            List<Rule> rules = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            String[] lines = text.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    Rule rule = Rule.parse(line);
+                    if (!names.add(rule.getName())) {
+                        throw new IllegalArgumentException("duplicate rule name " + rule.getName());
+                    }
+                    rules.add(rule);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+                }
+            }
+            return new RuleSet(text, rules);
+        }
+
+        int size() {
+            return rules.size();
+        }
+
+        String getText() {
+            return text;
+        }
+
+        Rule[] match(String sensorId) {
+            return matches.computeIfAbsent(sensorId, id -> rules.stream().filter(rule -> rule.matches(id)).toArray(Rule[]::new));
+        }
+    }
+
+    static class Rule {
+        enum Metric { VALUE, RATE, AVG, MIN, MAX, QUANTILE }
+
+        private final String name;
+        private final String definition;
+        private final String sensorId; // Exact id, or null if the pattern has wildcards
+        private final Pattern sensorPattern;
+        private final Metric metric;
+        private final String metricLabel;
+        private final long windowMillis;
+        private final double quantile;
+        private final String comparison;
+        private final double threshold;
+        private final String thresholdText;
+        private final double clear;
+        private final int breaches;
+        private final int of;
+        private final long repeatMillis;
+
+        private Rule(String name, String definition, String sensorId, Pattern sensorPattern, Metric metric, String metricLabel,
+                     long windowMillis, double quantile, String comparison, String thresholdText, double clear, int breaches, int of,
+                     long repeatMillis) {
+            this.name = name;
+            this.definition = definition;
+            this.sensorId = sensorId;
+            this.sensorPattern = sensorPattern;
+            this.metric = metric;
+            this.metricLabel = metricLabel;
+            this.windowMillis = windowMillis;
+            this.quantile = quantile;
+            this.comparison = comparison;
+            this.threshold = Double.parseDouble(thresholdText);
+            this.thresholdText = thresholdText;
+            this.clear = clear;
+            this.breaches = breaches;
+            this.of = of;
+            this.repeatMillis = repeatMillis;
+        }
+
+        static Rule parse(String line) {
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 5) {
+                throw new IllegalArgumentException("expected: name sensor-pattern metric comparison threshold [options]");
+            }
+            String name = tokens[0];
+            String pattern = tokens[1];
+            Pattern sensorPattern = null;
+            if (pattern.contains("*")) {
+                StringBuilder regex = new StringBuilder();
+                for (String part : pattern.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(part));
+                }
+                sensorPattern = Pattern.compile(regex.toString());
+            }
+
+            String metricLabel = tokens[2];
+            Metric metric;
+            long windowMillis = 0;
+            double quantile = Double.NaN;
+            if (metricLabel.equals("value")) {
+                metric = Metric.VALUE;
+            } else if (metricLabel.equals("rate")) {
+                metric = Metric.RATE;
+            } else if (metricLabel.matches("(avg|min|max)\\(\\w+\\)")) {
+                metric = Metric.valueOf(metricLabel.substring(0, 3).toUpperCase());
+                windowMillis = parseDuration(metricLabel.substring(4, metricLabel.length() - 1));
+            } else if (metricLabel.matches("p\\d{1,2}(\\.\\d+)?")) {
+                metric = Metric.QUANTILE;
+                quantile = Double.parseDouble(metricLabel.substring(1)) / 100;
+            } else {
+                throw new IllegalArgumentException("unknown metric " + metricLabel);
+            }
+
+            String comparison = tokens[3];
+            if (!List.of(">", ">=", "<", "<=").contains(comparison)) {
+                throw new IllegalArgumentException("unknown comparison " + comparison);
+            }
+            double threshold = parseNumber(tokens[4]);
+            double clear = threshold;
+            int breaches = 1;
+            int of = 1;
+            long repeatMillis = 0;
+            for (int i = 5; i < tokens.length; i++) {
+                String option = tokens[i];
+                if (option.startsWith("clear=")) {
+                    clear = parseNumber(option.substring(6));
+                } else if (option.matches("for=\\d{1,2}/\\d{1,2}")) {
+                    String[] parts = option.substring(4).split("/");
+                    breaches = Integer.parseInt(parts[0]);
+                    of = Integer.parseInt(parts[1]);
+                    if (breaches < 1 || breaches > of || of > 64) {
+                        throw new IllegalArgumentException("for needs 1 <= n <= m <= 64");
+                    }
+                } else if (option.startsWith("repeat=")) {
+                    repeatMillis = parseDuration(option.substring(7));
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+            if (comparison.startsWith(">") ? clear > threshold : clear < threshold) {
+                throw new IllegalArgumentException("clear must not be beyond the threshold");
+            }
+            return new Rule(name, String.join(" ", tokens), sensorPattern == null ? pattern : null, sensorPattern,
+                    metric, metricLabel, windowMillis, quantile, comparison, tokens[4], clear, breaches, of, repeatMillis);
+        }
+
+        private static double parseNumber(String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid number " + value);
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getDefinition() {
+            return definition;
+        }
+
+        boolean matches(String id) {
+            return sensorPattern != null ? sensorPattern.matcher(id).matches() : sensorId.equals(id);
+        }
+
+        /**
+         * @param quantiles the quantiles of the values summarized by a window summary, or null for a single reading
+         */
+        Alert evaluate(RuleState state, String sensor, double value, DoubleUnaryOperator quantiles, long timestamp, long now) {
+            double current = state.update(this, value, quantiles, timestamp);
+            if (Double.isNaN(current)) {
+                return null;
+            }
+            if (!state.active) {
+                boolean breach = switch (comparison) {
+                    case ">" -> current > threshold;
+                    case ">=" -> current >= threshold;
+                    case "<" -> current < threshold;
+                    default -> current <= threshold;
+                };
+                state.history = (state.history << 1 | (breach ? 1 : 0)) & (of == 64 ? -1L : (1L << of) - 1);
+                if (Long.bitCount(state.history) >= breaches) {
+                    state.active = true;
+                    state.history = 0;
+                    state.lastNotified = now;
+                    return new Alert(this, sensor, current, true);
+                }
+            } else if (comparison.startsWith(">") ? current < clear : current > clear) {
+                state.active = false;
+                return new Alert(this, sensor, current, false);
+            } else if (repeatMillis > 0 && now - state.lastNotified >= repeatMillis) {
+                state.lastNotified = now;
+                return new Alert(this, sensor, current, true);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Per rule and sensor: whether the alert is active, which of the recent readings breached, the previous
+     * reading for rate rules and the readings in the window for windowed rules.
+     */
+    static class RuleState {
+        private boolean active;
+        private long history;
+        private long lastNotified;
+        private long previousTimestamp;
+        private double previousValue = Double.NaN;
+        private long[] windowTimes = new long[8];
+        private double[] windowValues = new double[8];
+        private int windowStart;
+        private int windowSize;
+
+        /**
+         * Adds the reading and returns the rule's metric, or NaN if it is not known yet. The quantile of a single
+         * reading is its value.
+         */
+        double update(Rule rule, double value, DoubleUnaryOperator quantiles, long timestamp) {
+            switch (rule.metric) {
+                case VALUE:
+                    return value;
+                case QUANTILE:
+                    return quantiles != null ? quantiles.applyAsDouble(rule.quantile) : value;
+                case RATE:
+                    double rate = Double.NaN;
+                    if (!Double.isNaN(previousValue) && timestamp > previousTimestamp) {
+                        rate = (value - previousValue) * 1000 / (timestamp - previousTimestamp);
+                    }
+                    if (Double.isNaN(previousValue) || timestamp > previousTimestamp) {
+                        previousValue = value;
+                        previousTimestamp = timestamp;
+                    }
+                    return rate;
+                default:
+                    addToWindow(value, timestamp, rule.windowMillis);
+                    double result = rule.metric == Rule.Metric.MIN ? Double.POSITIVE_INFINITY
+                            : rule.metric == Rule.Metric.MAX ? Double.NEGATIVE_INFINITY : 0;
+                    for (int i = 0; i < windowSize; i++) {
+                        double v = windowValues[(windowStart + i) % windowValues.length];
+                        result = rule.metric == Rule.Metric.MIN ? Math.min(result, v)
+                                : rule.metric == Rule.Metric.MAX ? Math.max(result, v) : result + v;
+                    }
+                    return rule.metric == Rule.Metric.AVG ? result / windowSize : result;
+            }
+        }
+
+        private void addToWindow(double value, long timestamp, long windowMillis) {
+            if (windowSize == windowTimes.length) {
+                long[] times = new long[windowTimes.length * 2];
+                double[] values = new double[times.length];
+                for (int i = 0; i < windowSize; i++) {
+                    times[i] = windowTimes[(windowStart + i) % windowTimes.length];
+                    values[i] = windowValues[(windowStart + i) % windowValues.length];
+                }
+                windowTimes = times;
+                windowValues = values;
+                windowStart = 0;
+            }
+            int end = (windowStart + windowSize) % windowTimes.length;
+            windowTimes[end] = timestamp;
+            windowValues[end] = value;
+            windowSize++;
+            while (windowSize > 1 && windowTimes[windowStart] <= timestamp - windowMillis) {
+                windowStart = (windowStart + 1) % windowTimes.length;
+                windowSize--;
+            }
+        }
+    }
+
+    static class Alert {
+        private final Rule rule;
+        private final String sensorId;
+        private final double value;
+        private final boolean firing;
+
+        Alert(Rule rule, String sensorId, double value, boolean firing) {
+            this.rule = rule;
+            this.sensorId = sensorId;
+            this.value = value;
+            this.firing = firing;
+        }
+
+        /**
+         * Identifies the alert, so that an undelivered notification is replaced by a newer one for the same alert.
+         */
+        public String getKey() {
+            return rule.getName() + "/" + sensorId;
+        }
+
+        public boolean isFiring() {
+            return firing;
+        }
+
+        public String getMessage() {
+            if (firing) {
+                return String.format("Warning: %s for %s: %s %.2f %s %s.", rule.getName(), sensorId, rule.metricLabel,
+                        value, rule.comparison, rule.thresholdText);
+            }
+            return String.format("Cleared: %s for %s: %s %.2f.", rule.getName(), sensorId, rule.metricLabel, value);
+        }
+    }
+
+    /**
+     * Embedded time-series store for the received readings. Every series (an edge id and a sensor id) has its own
+     * directory of immutable, memory-mapped block files plus a small in-memory head block for recent points. Blocks
+     * are columnar: timestamps are delta-of-delta encoded and values XOR encoded (as in Facebook's Gorilla), so
+     * regular readings take a few bits each. The head is backed by a write-ahead log of raw points, which makes an
+     * append one small write no matter how much history is stored.
+     */
+    static class TimeSeriesStore {
+        private final Path dir;
+        private final int blockMaxPoints;
+        private final long blockMaxSpanMillis;
+        private final long retentionMillis;
+        private final Map<String, Series> series = new ConcurrentHashMap<>();
+        private final Map<String, SketchLog> sketchLogs = new ConcurrentHashMap<>();
+
+        TimeSeriesStore(String dir, int blockMaxPoints, long blockMaxSpanMillis, long retentionMillis) throws IOException {
+            this.dir = Path.of(dir);
+            this.blockMaxPoints = blockMaxPoints;
+            this.blockMaxSpanMillis = blockMaxSpanMillis;
+            this.retentionMillis = retentionMillis;
+            Files.createDirectories(this.dir);
+        }
+
+        void append(String edgeId, String sensorId, long timestamp, double value) throws IOException {
+            series(edgeId, sensorId, true).append(timestamp, value);
+        }
+
+        /**
+         * Calls the consumer for every point of the series with from <= timestamp < to. Points are passed block by
+         * block, in the order in which they were stored.
+         */
+        void scan(String edgeId, String sensorId, long from, long to, PointConsumer consumer) throws IOException {
+            Series s = series(edgeId, sensorId, false);
+            if (s != null) {
+                s.scan(from, to, consumer);
+            }
+        }
+
+        /**
+         * Aggregates a sensor of one edge, or of all edges that have it if edgeId is null, into buckets of the
+         * given step; buckets[0] starts at from, which must be a multiple of the step.
+         */
+        void aggregate(String edgeId, String sensorId, long from, long to, long step, Aggregate[] buckets) throws IOException {
+            List<String> edgeIds = edgeId != null ? List.of(edgeId) : edgesWith(sensorId);
+            for (String id : edgeIds) {
+                Series s = series(id, sensorId, false);
+                if (s != null) {
+                    s.aggregate(from, to, step, buckets);
+                }
+            }
+        }
+
+        /**
+         * Adds the sketches of a window summary that ends at the timestamp. The series must exist.
+         */
+        void appendSketches(String edgeId, String sensorId, long timestamp, QuantileSketch quantiles, HyperLogLog sensors) throws IOException {
+            sketchLog(edgeId, sensorId, true).append(timestamp - 1, quantiles, sensors);
+        }
+
+        /**
+         * Merges the summary sketches of a sensor of one edge, or of all edges that have it if edgeId is null, into
+         * sketches of the given step, a multiple of SketchLog.BUCKET_MILLIS; index 0 starts at from.
+         */
+        void mergeSketches(String edgeId, String sensorId, long from, long to, long step, QuantileSketch[] quantiles,
+                           HyperLogLog[] sensors) throws IOException {
+            List<String> edgeIds = edgeId != null ? List.of(edgeId) : edgesWith(sensorId);
+            for (String id : edgeIds) {
+                SketchLog log = sketchLog(id, sensorId, false);
+                if (log != null) {
+                    log.merge(from, to, step, quantiles, sensors);
+                }
+            }
+        }
+
+        private SketchLog sketchLog(String edgeId, String sensorId, boolean create) throws IOException {
+            Path path = dir.resolve(encodeName(edgeId)).resolve(encodeName(sensorId)).resolve("sketches.log");
+            String key = path.toString();
+            SketchLog existing = sketchLogs.get(key);
+            if (existing != null || (!create && !Files.exists(path))) {
+                return existing;
+            }
+            try {
+                return sketchLogs.computeIfAbsent(key, k -> {
+                    try {
+                        return new SketchLog(path, retentionMillis);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private List<String> edgesWith(String sensorId) throws IOException {
+            List<String> result = new ArrayList<>();
+            String name = encodeName(sensorId);
+            try (var edges = Files.newDirectoryStream(dir, Files::isDirectory)) {
+                for (Path edge : edges) {
+                    if (Files.isDirectory(edge.resolve(name))) {
+                        result.add(decodeName(edge.getFileName().toString()));
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * All stored series as {edge id, sensor id} pairs.
+         */
+        List<String[]> list() throws IOException {
+            List<String[]> result = new ArrayList<>();
+            try (var edges = Files.newDirectoryStream(dir, Files::isDirectory)) {
+                for (Path edge : edges) {
+                    try (var sensors = Files.newDirectoryStream(edge, Files::isDirectory)) {
+                        for (Path sensor : sensors) {
+                            result.add(new String[]{decodeName(edge.getFileName().toString()),
+                                    decodeName(sensor.getFileName().toString())});
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private Series series(String edgeId, String sensorId, boolean create) throws IOException {
+            Path path = dir.resolve(encodeName(edgeId)).resolve(encodeName(sensorId));
+            String key = path.toString();
+            Series existing = series.get(key);
+            if (existing != null || (!create && !Files.isDirectory(path))) {
+                return existing;
+            }
+            try {
+                return series.computeIfAbsent(key, k -> {
+                    try {
+                        return new Series(path, blockMaxPoints, blockMaxSpanMillis, retentionMillis);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Ids become directory names: letters, digits, '-' and '_' are kept, every other byte is percent-encoded.
+         */
+        static String encodeName(String id) {
+            if (id.isEmpty()) {
+                throw new IllegalArgumentException("Empty series id");
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+                if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                    sb.append((char) b);
+                } else {
+                    sb.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                            .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+                }
+            }
+            return sb.toString();
+        }
+
+        static String decodeName(String name) {
+            return URLDecoder.decode(name, StandardCharsets.UTF_8);
+        }
+
+        interface PointConsumer {
+            void accept(long timestamp, double value);
+        }
+    }
+
+    /**
+     * The quantile and distinct sensor sketches of the window summaries of one series, merged into buckets of
+     * BUCKET_MILLIS. They are kept in memory and in {@code sketches.log}, one line per summary with the bucket start
+     * and the base64 sketches; replaying the log merges the lines of each bucket again. When the log has grown to
+     * more than twice as many lines as there are buckets, it is rewritten with one line per bucket and expired
+     * buckets are dropped.
+     */
+    static class SketchLog {
+        static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+        private final Path file;
+        private final long retentionMillis;
+        private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+        private FileChannel log;
+        private long lines;
+
+        SketchLog(Path file, long retentionMillis) throws IOException {
+            this.file = file;
+            this.retentionMillis = retentionMillis;
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t");
+                    try {
+                        if (fields.length == 3) {
+                            bucket(Long.parseLong(fields[0])).merge(QuantileSketch.fromBytes(Base64.getDecoder().decode(fields[1])),
+                                    HyperLogLog.fromBytes(Base64.getDecoder().decode(fields[2])));
+                            lines++;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // A line cut short by a crash
+                    }
+                }
+            }
+            this.log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        synchronized void append(long timestamp, QuantileSketch quantiles, HyperLogLog sensors) throws IOException {
+            long start = Math.floorDiv(timestamp, BUCKET_MILLIS) * BUCKET_MILLIS;
+            bucket(start).merge(quantiles, sensors);
+            write(log, start, quantiles, sensors);
+            if (++lines > 2L * buckets.size() + 1000) {
+                compact();
+            }
+        }
+
+        /**
+         * Merges the buckets with from <= start < to into sketches of the given step, a multiple of BUCKET_MILLIS;
+         * index 0 starts at from.
+         */
+        synchronized void merge(long from, long to, long step, QuantileSketch[] quantiles, HyperLogLog[] sensors) {
+            for (Map.Entry<Long, Bucket> entry : buckets.subMap(from, to).entrySet()) {
+                int i = (int) ((entry.getKey() - from) / step);
+                quantiles[i].merge(entry.getValue().quantiles);
+                sensors[i].merge(entry.getValue().sensors);
+            }
+        }
+
+        private Bucket bucket(long start) {
+            return buckets.computeIfAbsent(start, k -> new Bucket());
+        }
+
+        private void compact() throws IOException {
+            if (retentionMillis > 0) {
+                buckets.headMap(System.currentTimeMillis() - retentionMillis).clear();
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                    write(out, entry.getKey(), entry.getValue().quantiles, entry.getValue().sensors);
+                }
+                out.force(true);
+            }
+            log.close();
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            lines = buckets.size();
+        }
+
+        private static void write(FileChannel out, long start, QuantileSketch quantiles, HyperLogLog sensors) throws IOException {
+            String line = start + "\t" + Base64.getEncoder().encodeToString(quantiles.toBytes())
+                    + "\t" + Base64.getEncoder().encodeToString(sensors.toBytes()) + "\n";
+            ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+
+        private static class Bucket {
+            private final QuantileSketch quantiles = new QuantileSketch();
+            private final HyperLogLog sensors = new HyperLogLog();
+
+            void merge(QuantileSketch otherQuantiles, HyperLogLog otherSensors) {
+                quantiles.merge(otherQuantiles);
+                sensors.merge(otherSensors);
+            }
+        }
+    }
+
+    /**
+     * One series on disk: numbered block files ({@code %020d.blk}) and {@code head.wal}. The log starts with the
+     * number of the block its points will be flushed to; if that block already exists the log is stale and dropped,
+     * so a crash between writing a block and truncating the log does not duplicate points.
+     */
+    static class Series {
+        private static final String BLOCK_SUFFIX = ".blk";
+        private static final int WAL_HEADER = 8;
+        private static final int WAL_RECORD = 16;
+        private static final long[] ROLLUP_RESOLUTIONS = {TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+        private final Path dir;
+        private final int maxPoints;
+        private final long maxSpanMillis;
+        private final long retentionMillis;
+        private final List<Block> blocks = new ArrayList<>();
+        private final List<Rollup> rollups = new ArrayList<>();
+        private final ByteBuffer walRecord = ByteBuffer.allocate(WAL_RECORD);
+        private final FileChannel wal;
+        private GorillaEncoder head = new GorillaEncoder();
+        private long nextSeq;
+
+        Series(Path dir, int maxPoints, long maxSpanMillis, long retentionMillis) throws IOException {
+            this.dir = dir;
+            this.maxPoints = maxPoints;
+            this.maxSpanMillis = maxSpanMillis;
+            this.retentionMillis = retentionMillis;
+            Files.createDirectories(dir);
+            try (var files = Files.list(dir)) {
+                for (Path path : files.filter(p -> p.getFileName().toString().endsWith(BLOCK_SUFFIX)).sorted().toList()) {
+                    String name = path.getFileName().toString();
+                    long seq = Long.parseLong(name.substring(0, name.length() - BLOCK_SUFFIX.length()));
+                    blocks.add(Block.open(path));
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                }
+            }
+            for (long resolution : ROLLUP_RESOLUTIONS) {
+                Rollup rollup = new Rollup(dir.resolve("rollup-" + resolution + ".dat"), resolution);
+                if (rollup.getNextSeq() != nextSeq) {
+                    rollup.rebuild(blocks, nextSeq);
+                }
+                rollups.add(rollup);
+            }
+
+            this.wal = FileChannel.open(dir.resolve("head.wal"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long records = 0;
+            if (wal.size() >= WAL_HEADER) {
+                ByteBuffer buf = ByteBuffer.allocate((int) wal.size());
+                while (buf.hasRemaining() && wal.read(buf, buf.position()) >= 0) {
+                    // Read the whole log
+                }
+                buf.flip();
+                if (buf.getLong() == nextSeq) {
+                    for (; buf.remaining() >= WAL_RECORD; records++) {
+                        head.append(buf.getLong(), buf.getDouble());
+                    }
+                }
+            }
+            // Drops a stale log as well as a partly written last record
+            resetWal(records);
+        }
+
+        synchronized void append(long timestamp, double value) throws IOException {
+            if (head.getCount() >= maxPoints
+                    || (head.getCount() > 0 && Math.abs(timestamp - head.getFirstTimestamp()) >= maxSpanMillis)) {
+                flush();
+            }
+            walRecord.clear();
+            walRecord.putLong(timestamp).putDouble(value).flip();
+            while (walRecord.hasRemaining()) {
+                wal.write(walRecord);
+            }
+            head.append(timestamp, value);
+        }
+
+        /**
+         * Writes the head into a new block and starts an empty head.
+         */
+        synchronized void flush() throws IOException {
+            if (head.getCount() == 0) {
+                return;
+            }
+            Path path = dir.resolve(String.format("%020d", nextSeq) + BLOCK_SUFFIX);
+            Path temp = dir.resolve(path.getFileName() + ".tmp");
+            ByteBuffer block = head.toBlock();
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (block.hasRemaining()) {
+                    out.write(block);
+                }
+                out.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            blocks.add(Block.open(path));
+            nextSeq++;
+            for (Rollup rollup : rollups) {
+                rollup.merge(block, nextSeq);
+            }
+            head = new GorillaEncoder();
+            resetWal(0);
+            expire();
+        }
+
+        void scan(long from, long to, TimeSeriesStore.PointConsumer consumer) {
+            List<Block> snapshot;
+            ByteBuffer headBlock;
+            synchronized (this) {
+                snapshot = new ArrayList<>(blocks);
+                headBlock = head.getCount() > 0 ? head.toBlock() : null;
+            }
+            for (Block block : snapshot) {
+                if (block.overlaps(from, to)) {
+                    block.scan(from, to, consumer);
+                }
+            }
+            if (headBlock != null) {
+                Block.scan(headBlock, from, to, consumer);
+            }
+        }
+
+        /**
+         * Adds the points with from <= timestamp < to into buckets of the given step, buckets[0] starting at from.
+         * Flushed points are taken from the coarsest rollup that fits the buckets, if any, otherwise from the blocks;
+         * points in the head always come from the head.
+         */
+        void aggregate(long from, long to, long step, Aggregate[] buckets) throws IOException {
+            TimeSeriesStore.PointConsumer raw = (timestamp, value) -> buckets[(int) ((timestamp - from) / step)].add(value);
+            List<Block> snapshot;
+            ByteBuffer headBlock;
+            synchronized (this) {
+                // Under the lock, so that the rollup matches the head
+                Rollup rollup = rollupFor(from, step);
+                if (rollup != null) {
+                    rollup.scan(from, to, (start, aggregate) -> buckets[(int) ((start - from) / step)].merge(aggregate));
+                    snapshot = List.of();
+                } else {
+                    snapshot = new ArrayList<>(blocks);
+                }
+                headBlock = head.getCount() > 0 ? head.toBlock() : null;
+            }
+            for (Block block : snapshot) {
+                if (block.overlaps(from, to)) {
+                    block.scan(from, to, raw);
+                }
+            }
+            if (headBlock != null) {
+                Block.scan(headBlock, from, to, raw);
+            }
+        }
+
+        private Rollup rollupFor(long from, long step) {
+            for (int i = rollups.size() - 1; i >= 0; i--) {
+                long resolution = rollups.get(i).getResolution();
+                if (step % resolution == 0 && Math.floorMod(from, resolution) == 0) {
+                    return rollups.get(i);
+                }
+            }
+            return null;
+        }
+
+        private void resetWal(long records) throws IOException {
+            wal.truncate(WAL_HEADER + records * WAL_RECORD);
+            ByteBuffer header = ByteBuffer.allocate(WAL_HEADER).putLong(0, nextSeq);
+            wal.write(header, 0);
+            wal.position(WAL_HEADER + records * WAL_RECORD);
+        }
+
+        /**
+         * Deletes blocks whose newest point is older than the retention period, and the rollup buckets that end
+         * before it. Mapped blocks stay readable for scans that are still using them.
+         */
+        private void expire() throws IOException {
+            if (retentionMillis <= 0) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            while (!blocks.isEmpty() && blocks.get(0).getMaxTimestamp() < cutoff) {
+                Files.deleteIfExists(blocks.remove(0).getPath());
+            }
+            for (Rollup rollup : rollups) {
+                rollup.expire(cutoff);
+            }
+        }
+    }
+
+    /**
+     * An immutable block file, memory-mapped read-only. Layout: a header with the magic, point count, time range,
+     * value range and sum, and the byte lengths of the two columns, followed by the timestamp and value columns.
+     */
+    static class Block {
+        static final int MAGIC = 0x54534231; // "TSB1"
+        static final int HEADER_BYTES = 56;
+        private final Path path;
+        private final ByteBuffer data;
+
+        private Block(Path path, ByteBuffer data) {
+            this.path = path;
+            this.data = data;
+        }
+
+        static Block open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+                    throw new IOException("Not a block file: " + path);
+                }
+                return new Block(path, data);
+            }
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        int getCount() {
+            return data.getInt(4);
+        }
+
+        long getMinTimestamp() {
+            return data.getLong(8);
+        }
+
+        long getMaxTimestamp() {
+            return data.getLong(16);
+        }
+
+        double getMinValue() {
+            return data.getDouble(24);
+        }
+
+        double getMaxValue() {
+            return data.getDouble(32);
+        }
+
+        double getSum() {
+            return data.getDouble(40);
+        }
+
+        boolean overlaps(long from, long to) {
+            return getMaxTimestamp() >= from && getMinTimestamp() < to;
+        }
+
+        void scan(long from, long to, TimeSeriesStore.PointConsumer consumer) {
+            scan(data, from, to, consumer);
+        }
+
+        static void scan(ByteBuffer block, long from, long to, TimeSeriesStore.PointConsumer consumer) {
+            int count = block.getInt(4);
+            int timestampBytes = block.getInt(48);
+            BitReader timestamps = new BitReader(block, HEADER_BYTES);
+            BitReader values = new BitReader(block, HEADER_BYTES + timestampBytes);
+            GorillaDecoder decoder = new GorillaDecoder(timestamps, values);
+            for (int i = 0; i < count; i++) {
+                long timestamp = decoder.nextTimestamp();
+                double value = decoder.nextValue();
+                if (timestamp >= from && timestamp < to) {
+                    consumer.accept(timestamp, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pre-aggregated count, min, max and sum of a series per bucket of a fixed resolution, as 40-byte records sorted
+     * by bucket start behind an 8-byte header. The header holds the number of the next block to be merged in; when it
+     * does not match the blocks on disk (after a crash, or for data stored before rollups existed) the file is rebuilt.
+     */
+    static class Rollup {
+        private static final int HEADER = 8;
+        private static final int RECORD = 40;
+        private final long resolution;
+        private final Path path;
+        private FileChannel channel;
+
+        Rollup(Path path, long resolution) throws IOException {
+            this.path = path;
+            this.resolution = resolution;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long getResolution() {
+            return resolution;
+        }
+
+        long getNextSeq() throws IOException {
+            if (channel.size() < HEADER) {
+                return -1;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            return header.getLong(0);
+        }
+
+        /**
+         * Recomputes the file from all blocks.
+         */
+        void rebuild(List<Block> blocks, long nextSeq) throws IOException {
+            TreeMap<Long, Aggregate> buckets = new TreeMap<>();
+            for (Block block : blocks) {
+                block.scan(Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> add(buckets, timestamp, value));
+            }
+            rewrite(buckets, nextSeq);
+        }
+
+        /**
+         * Merges the points of a new block. Buckets after the last record are appended and existing ones updated in
+         * place; late points for a bucket that has no record yet make the file be rewritten.
+         */
+        void merge(ByteBuffer block, long nextSeq) throws IOException {
+            TreeMap<Long, Aggregate> buckets = new TreeMap<>();
+            Block.scan(block, Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> add(buckets, timestamp, value));
+            TreeMap<Long, Aggregate> missing = new TreeMap<>();
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            for (Map.Entry<Long, Aggregate> bucket : buckets.entrySet()) {
+                long index = find(bucket.getKey());
+                if (index >= 0) {
+                    long position = HEADER + index * RECORD;
+                    record.clear();
+                    channel.read(record, position);
+                    Aggregate aggregate = read(record.flip());
+                    aggregate.merge(bucket.getValue());
+                    channel.write(toRecord(record, bucket.getKey(), aggregate), position);
+                } else if (-index - 1 == records()) {
+                    channel.write(toRecord(record, bucket.getKey(), bucket.getValue()), HEADER + records() * RECORD);
+                } else {
+                    missing.put(bucket.getKey(), bucket.getValue());
+                }
+            }
+            if (!missing.isEmpty()) {
+                TreeMap<Long, Aggregate> all = new TreeMap<>(missing);
+                scan(Long.MIN_VALUE, Long.MAX_VALUE, (start, aggregate) -> all.put(start, aggregate));
+                rewrite(all, nextSeq);
+            } else {
+                channel.write(ByteBuffer.allocate(HEADER).putLong(0, nextSeq), 0);
+            }
+        }
+
+        /**
+         * Drops the buckets that end at or before the cutoff. The remaining records are copied into a new file, which
+         * only happens when at least one bucket expired.
+         */
+        void expire(long cutoff) throws IOException {
+            long first = find(Math.floorDiv(cutoff, resolution) * resolution);
+            if (first < 0) {
+                first = -first - 1;
+            }
+            if (first == 0) {
+                return;
+            }
+            Path temp = Path.of(path + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                channel.read(header, 0);
+                out.write(header.flip(), 0);
+                long position = HEADER + first * RECORD;
+                long end = HEADER + records() * RECORD;
+                out.position(HEADER);
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, out);
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Calls the consumer for every bucket with from <= start < to, in order.
+         */
+        void scan(long from, long to, BucketConsumer consumer) throws IOException {
+            long index = find(from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(RECORD * 256);
+            long records = records();
+            while (index < records) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), (records - index) * RECORD));
+                while (chunk.hasRemaining() && channel.read(chunk, HEADER + index * RECORD + chunk.position()) > 0) {
+                    // Read the next records
+                }
+                chunk.flip();
+                while (chunk.remaining() >= RECORD) {
+                    long start = chunk.getLong(chunk.position());
+                    if (start >= to) {
+                        return;
+                    }
+                    consumer.accept(start, read(chunk));
+                    index++;
+                }
+            }
+        }
+
+        private void rewrite(TreeMap<Long, Aggregate> buckets, long nextSeq) throws IOException {
+            Path temp = Path.of(path + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(out, HEADER, buckets);
+                out.write(ByteBuffer.allocate(HEADER).putLong(0, nextSeq), 0);
+                out.force(true);
+            }
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private void write(FileChannel out, long position, TreeMap<Long, Aggregate> buckets) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            for (Map.Entry<Long, Aggregate> bucket : buckets.entrySet()) {
+                out.write(toRecord(record, bucket.getKey(), bucket.getValue()), position);
+                position += RECORD;
+            }
+        }
+
+        private void add(TreeMap<Long, Aggregate> buckets, long timestamp, double value) {
+            buckets.computeIfAbsent(Math.floorDiv(timestamp, resolution) * resolution, start -> new Aggregate()).add(value);
+        }
+
+        private long records() throws IOException {
+            return Math.max(0, (channel.size() - HEADER) / RECORD);
+        }
+
+        /**
+         * Binary search for a bucket start; returns its index or -(insertion point) - 1.
+         */
+        private long find(long start) throws IOException {
+            ByteBuffer key = ByteBuffer.allocate(8);
+            long low = 0;
+            long high = records() - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                key.clear();
+                channel.read(key, HEADER + mid * RECORD);
+                long value = key.getLong(0);
+                if (value < start) {
+                    low = mid + 1;
+                } else if (value > start) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private static ByteBuffer toRecord(ByteBuffer record, long start, Aggregate aggregate) {
+            record.clear();
+            record.putLong(start).putLong(aggregate.getCount())
+                    .putDouble(aggregate.getMin()).putDouble(aggregate.getMax()).putDouble(aggregate.getSum());
+            return record.flip();
+        }
+
+        private static Aggregate read(ByteBuffer record) {
+            record.getLong(); // Bucket start
+            Aggregate aggregate = new Aggregate();
+            aggregate.merge(record.getLong(), record.getDouble(), record.getDouble(), record.getDouble());
+            return aggregate;
+        }
+
+        interface BucketConsumer {
+            void accept(long start, Aggregate aggregate);
+        }
+    }
+
+    /**
+     * Count, min, max and sum of a set of values.
+     */
+    static class Aggregate {
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+
+        void add(double value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+
+        void merge(Aggregate other) {
+            merge(other.count, other.min, other.max, other.sum);
+        }
+
+        void merge(long count, double min, double max, double sum) {
+            this.count += count;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.sum += sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public double getAverage() {
+            return sum / count;
+        }
+    }
+
+    /**
+     * Compresses points into a timestamp and a value bit stream.
+     * Timestamps: the first as 64 bits, then the difference between consecutive deltas, as '0' if it is zero or
+     * '10', '110', '1110' + 7, 9, 12 bits, or '1111' + 64 bits. Values: the first as 64 bits, then the XOR with
+     * the previous value, as '0' if it is zero, '10' + the meaningful bits if they fit into the previous leading
+     * and trailing zeros, or '11' + 6 bits leading zeros + 6 bits length - 1 + the meaningful bits.
+     */
+    static class GorillaEncoder {
+        private final BitWriter timestamps = new BitWriter();
+        private final BitWriter values = new BitWriter();
+        private int count;
+        private long firstTimestamp;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private double minValue = Double.POSITIVE_INFINITY;
+        private double maxValue = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private long previousTimestamp;
+        private long previousDelta;
+        private long previousBits;
+        private int previousLeading = -1;
+        private int previousTrailing;
+
+        void append(long timestamp, double value) {
+            if (count == 0) {
+                firstTimestamp = timestamp;
+                timestamps.write(timestamp, 64);
+            } else {
+                long delta = timestamp - previousTimestamp;
+                long dod = delta - previousDelta;
+                if (dod == 0) {
+                    timestamps.write(0, 1);
+                } else if (dod >= -64 && dod <= 63) {
+                    timestamps.write(0b10, 2);
+                    timestamps.write(dod, 7);
+                } else if (dod >= -256 && dod <= 255) {
+                    timestamps.write(0b110, 3);
+                    timestamps.write(dod, 9);
+                } else if (dod >= -2048 && dod <= 2047) {
+                    timestamps.write(0b1110, 4);
+                    timestamps.write(dod, 12);
+                } else {
+                    timestamps.write(0b1111, 4);
+                    timestamps.write(dod, 64);
+                }
+                previousDelta = delta;
+            }
+            previousTimestamp = timestamp;
+
+            long bits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                values.write(bits, 64);
+            } else {
+                long xor = bits ^ previousBits;
+                if (xor == 0) {
+                    values.write(0, 1);
+                } else {
+                    int leading = Long.numberOfLeadingZeros(xor);
+                    int trailing = Long.numberOfTrailingZeros(xor);
+                    if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                        values.write(0b10, 2);
+                        values.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                    } else {
+                        int meaningful = 64 - leading - trailing;
+                        values.write(0b11, 2);
+                        values.write(leading, 6);
+                        values.write(meaningful - 1, 6);
+                        values.write(xor >>> trailing, meaningful);
+                        previousLeading = leading;
+                        previousTrailing = trailing;
+                    }
+                }
+            }
+            previousBits = bits;
+
+            count++;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            minValue = Math.min(minValue, value);
+            maxValue = Math.max(maxValue, value);
+            sum += value;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * The points so far in the block file layout.
+         */
+        ByteBuffer toBlock() {
+            int timestampBytes = timestamps.byteLength();
+            int valueBytes = values.byteLength();
+            ByteBuffer block = ByteBuffer.allocate(Block.HEADER_BYTES + timestampBytes + valueBytes);
+            block.putInt(Block.MAGIC).putInt(count)
+                    .putLong(minTimestamp).putLong(maxTimestamp)
+                    .putDouble(minValue).putDouble(maxValue).putDouble(sum)
+                    .putInt(timestampBytes).putInt(valueBytes)
+                    .put(timestamps.getBuffer(), 0, timestampBytes)
+                    .put(values.getBuffer(), 0, valueBytes);
+            return block.flip();
+        }
+    }
+
+    static class GorillaDecoder {
+        private final BitReader timestamps;
+        private final BitReader values;
+        private boolean first = true;
+        private boolean firstValue = true;
+        private long previousTimestamp;
+        private long previousDelta;
+        private long previousBits;
+        private int previousLeading;
+        private int previousTrailing;
+
+        GorillaDecoder(BitReader timestamps, BitReader values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        long nextTimestamp() {
+            if (first) {
+                first = false;
+                previousTimestamp = timestamps.read(64);
+                return previousTimestamp;
+            }
+            long dod;
+            if (timestamps.read(1) == 0) {
+                dod = 0;
+            } else if (timestamps.read(1) == 0) {
+                dod = signed(timestamps.read(7), 7);
+            } else if (timestamps.read(1) == 0) {
+                dod = signed(timestamps.read(9), 9);
+            } else if (timestamps.read(1) == 0) {
+                dod = signed(timestamps.read(12), 12);
+            } else {
+                dod = timestamps.read(64);
+            }
+            previousDelta += dod;
+            previousTimestamp += previousDelta;
+            return previousTimestamp;
+        }
+
+        double nextValue() {
+            if (firstValue) {
+                firstValue = false;
+                previousBits = values.read(64);
+            } else if (values.read(1) == 1) {
+                if (values.read(1) == 1) {
+                    previousLeading = (int) values.read(6);
+                    int meaningful = (int) values.read(6) + 1;
+                    previousTrailing = 64 - previousLeading - meaningful;
+                }
+                int meaningful = 64 - previousLeading - previousTrailing;
+                previousBits ^= values.read(meaningful) << previousTrailing;
+            }
+            return Double.longBitsToDouble(previousBits);
+        }
+
+        private static long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+    }
+
+    static class BitWriter {
+        private byte[] buffer = new byte[64];
+        private long position;
+
+        /**
+         * Appends the lowest {@code bits} bits of the value, most significant first.
+         */
+        void write(long value, int bits) {
+            while (bits > 0) {
+                int index = (int) (position >>> 3);
+                if (index >= buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int free = 8 - (int) (position & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+                buffer[index] |= (byte) (chunk << (free - n));
+                bits -= n;
+                position += n;
+            }
+        }
+
+        int byteLength() {
+            return (int) ((position + 7) >>> 3);
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+    }
+
+    static class BitReader {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private long position;
+
+        BitReader(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        long read(int bits) {
+            long value = 0;
+            while (bits > 0) {
+                int b = buffer.get(offset + (int) (position >>> 3)) & 0xFF;
+                int available = 8 - (int) (position & 7);
+                int n = Math.min(available, bits);
+                value = (value << n) | ((b >>> (available - n)) & ((1 << n) - 1));
+                bits -= n;
+                position += n;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The sequence numbers received from one producer: the highest contiguous number, at or below which everything
+     * is a duplicate, and a bitmap of the WINDOW numbers above it. A number beyond the window moves the contiguous
+     * mark up to it, giving up on the gaps it passes, so the state stays at a few hundred bytes per producer. The
+     * gaps given up on are kept as up to MAX_GAPS ranges, and only their numbers still count as new at or below the
+     * contiguous mark; a gap that arrives is taken out of its range. When more ranges pile up, the oldest are
+     * forgotten and their numbers are answered as duplicates: a producer only skips numbers it has lost, so such a
+     * message is far more likely a redelivery than a first delivery.
+     */
+    static class DedupWindow {
+        private static final int WINDOW = 1024;
+        private static final int MAX_GAPS = 64;
+
+        private final long[] bits = new long[WINDOW / 64];
+        private final TreeMap<Long, Long> gaps = new TreeMap<>(); // First to last number of the gaps given up on
+        private final String epoch;
+        private long contiguous;
+
+        DedupWindow(String epoch) {
+            this.epoch = epoch;
+        }
+
+        String getEpoch() {
+            return epoch;
+        }
+
+        synchronized long getContiguous() {
+            return contiguous;
+        }
+
+        synchronized boolean isNew(long seq) {
+            if (seq <= contiguous) {
+                Map.Entry<Long, Long> gap = gaps.floorEntry(seq);
+                return gap != null && seq <= gap.getValue();
+            }
+            return seq > contiguous + WINDOW || !isSet(seq);
+        }
+
+        synchronized void mark(long seq) {
+            if (seq <= contiguous) {
+                fillGap(seq);
+                return;
+            }
+            long passed = seq - WINDOW;
+            // Stepping through the whole bitmap at most clears all of it
+            long stepTo = Math.min(passed, contiguous + WINDOW);
+            while (contiguous < stepTo) {
+                contiguous++;
+                if (!isSet(contiguous)) {
+                    addGap(contiguous, contiguous);
+                }
+                clear(contiguous);
+            }
+            if (contiguous < passed) {
+                addGap(contiguous + 1, passed);
+                contiguous = passed;
+            }
+            set(seq);
+            while (isSet(contiguous + 1)) {
+                contiguous++;
+                clear(contiguous);
+            }
+        }
+
+        private void addGap(long first, long last) {
+            Map.Entry<Long, Long> previous = gaps.lastEntry();
+            if (previous != null && previous.getValue() == first - 1) {
+                gaps.put(previous.getKey(), last);
+            } else {
+                gaps.put(first, last);
+            }
+            while (gaps.size() > MAX_GAPS) {
+                gaps.pollFirstEntry();
+            }
+        }
+
+        private void fillGap(long seq) {
+            Map.Entry<Long, Long> gap = gaps.floorEntry(seq);
+            if (gap == null || seq > gap.getValue()) {
+                return;
+            }
+            gaps.remove(gap.getKey());
+            if (gap.getKey() < seq) {
+                gaps.put(gap.getKey(), seq - 1);
+            }
+            if (seq < gap.getValue()) {
+                gaps.put(seq + 1, gap.getValue());
+            }
+        }
+
+        private boolean isSet(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+
+    /**
+     * Persistent sequence numbers for the messages of one producer, starting at 1. The file also holds a random
+     * epoch, drawn when the file is created, so that receivers can tell a producer that lost its counter (and
+     * starts again at 1) from one that resends old messages. Numbers are reserved in blocks of RESERVATION, and a
+     * block is forced to disk before its first number is handed out; after a crash or power loss the counter
+     * continues behind the last reserved block, so it can skip numbers but never hand one out twice.
+     */
+    static class SequenceCounter {
+        private static final int RESERVATION = 256; // Well inside a receiver's dedup window, so the gap is passed quickly
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+        private final long epoch;
+        private long last;
+        private long reserved;
+
+        SequenceCounter(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.read(buffer, 0) == 16) {
+                buffer.flip();
+                epoch = buffer.getLong();
+                reserved = buffer.getLong();
+                last = reserved;
+            } else {
+                epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+                write();
+            }
+        }
+
+        /**
+         * The next number; it belongs to a reservation that is already on disk.
+         */
+        synchronized long next() throws IOException {
+            if (last == reserved) {
+                reserved += RESERVATION;
+                write();
+            }
+            return ++last;
+        }
+
+        long getEpoch() {
+            return epoch;
+        }
+
+        private void write() throws IOException {
+            buffer.clear();
+            buffer.putLong(epoch).putLong(reserved).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Trace context of a sampled reading: an id chosen by the sensor and the time at which the sensor sent it.
+     * Single readings carry it in the X-Trace-Id and X-Trace-Start headers; batches list their traced records in
+     * X-Trace as "index:id:start" items.
+     */
+    static class Trace {
+        private static final Pattern ID = Pattern.compile("[0-9a-f]{1,32}");
+
+        private final String id;
+        private final long startMillis;
+
+        Trace(String id, long startMillis) {
+            this.id = id;
+            this.startMillis = startMillis;
+        }
+
+        /**
+         * The trace of a request, or null if it has none or an invalid one.
+         */
+        static Trace fromHeaders(String id, String start) {
+            if (id == null || start == null || !ID.matcher(id).matches()) {
+                return null;
+            }
+            try {
+                return new Trace(id, Long.parseLong(start.trim()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Parses an X-Trace header into the traces by record index, skipping invalid items.
+         */
+        static Map<Integer, Trace> parseList(String header) {
+            Map<Integer, Trace> traces = new HashMap<>();
+            for (String item : header.split(",")) {
+                String[] parts = item.trim().split(":");
+                if (parts.length == 3) {
+                    Trace trace = fromHeaders(parts[1], parts[2]);
+                    try {
+                        if (trace != null) {
+                            traces.put(Integer.parseInt(parts[0]), trace);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Skipped like any other invalid item
+                    }
+                }
+            }
+            return traces;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+    }
+
+    /**
+     * Registry of the metrics served on /metrics in the Prometheus text format. Counters are LongAdders, so
+     * recording is lock-free and striped across threads, and gauges are callbacks that are only read when the
+     * endpoint is scraped. Series are registered once and then held by their users; labels are name/value pairs.
+     */
+    static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        LongAdder counter(String name, String help, String... labels) {
+            return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labelString(labels), l -> new LongAdder());
+        }
+
+        /**
+         * A counter that is kept elsewhere and read when scraped.
+         */
+        void counter(String name, String help, LongSupplier value, String... labels) {
+            family(name, help, "counter").series.put(labelString(labels), value);
+        }
+
+        void gauge(String name, String help, DoubleSupplier value, String... labels) {
+            family(name, help, "gauge").series.put(labelString(labels), value);
+        }
+
+        /**
+         * Gauges with one label whose values are only known when scraped, such as one per registered peer.
+         */
+        void gauges(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+            family(name, help, "gauge").series.put(label, values);
+        }
+
+        Histogram histogram(String name, String help, String... labels) {
+            return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labelString(labels), l -> new Histogram());
+        }
+
+        /**
+         * Wraps a handler so that its requests are counted by response code and timed.
+         */
+        HttpHandler instrument(String handler, HttpHandler delegate) {
+            return instrument(handler, (AsyncHandler) (exchange, done) -> {
+                try {
+                    delegate.handle(exchange);
+                } finally {
+                    done.run();
+                }
+            });
+        }
+
+        /**
+         * Wraps a handler that answers its requests on another thread; a request is counted and timed when the
+         * handler runs its done callback, after the response is complete.
+         */
+        HttpHandler instrument(String handler, AsyncHandler delegate) {
+            Histogram duration = histogram("http_request_duration_seconds", "Time spent handling HTTP requests", "handler", handler);
+            Map<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+            return exchange -> {
+                long start = System.nanoTime();
+                delegate.handle(exchange, () -> {
+                    duration.observeNanos(System.nanoTime() - start);
+                    responses.computeIfAbsent(exchange.getResponseCode(), code -> counter("http_requests_total",
+                            "HTTP requests by handler and response code (-1: no response sent)",
+                            "handler", handler, "code", Integer.toString(code))).increment();
+                });
+            };
+        }
+
+        /**
+         * A handler that may hand its request over to another thread. It must run {@code done} exactly once, when
+         * the response is complete or the request failed.
+         */
+        interface AsyncHandler {
+            void handle(HttpExchange exchange, Runnable done) throws IOException;
+        }
+
+        String scrape() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Family> entry : families.entrySet()) {
+                String name = entry.getKey();
+                Family family = entry.getValue();
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                    String labels = series.getKey();
+                    Object value = series.getValue();
+                    if (value instanceof Histogram histogram) {
+                        histogram.write(name, labels, out);
+                    } else if (value instanceof Supplier<?> supplier) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, ? extends Number> values = (Map<String, ? extends Number>) supplier.get();
+                        for (Map.Entry<String, ? extends Number> v : values.entrySet()) {
+                            writeSample(out, name, labelString(labels, v.getKey()), v.getValue().doubleValue());
+                        }
+                    } else {
+                        double number = value instanceof LongAdder adder ? adder.sum()
+                                : value instanceof LongSupplier supplier ? supplier.getAsLong()
+                                : ((DoubleSupplier) value).getAsDouble();
+                        writeSample(out, name, labels, number);
+                    }
+                }
+            }
+            return out.toString();
+        }
+
+        private Family family(String name, String help, String type) {
+            Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException("Metric " + name + " is a " + family.type);
+            }
+            return family;
+        }
+
+        private static void writeSample(StringBuilder out, String name, String labels, double value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+
+        private static String labelString(String... labels) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"")
+                        .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                        .append('"');
+            }
+            return sb.toString();
+        }
+
+        private static String labelString(String labelName, String value) {
+            return labelString(new String[] {labelName, value});
+        }
+
+        private static class Family {
+            private final String help;
+            private final String type;
+            private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+            Family(String help, String type) {
+                this.help = help;
+                this.type = type;
+            }
+        }
+
+        /**
+         * Durations in microseconds, counted in buckets from 16 µs to about 33 s: every power of two is split into
+         * SUB_BUCKETS linear sub-buckets, as in an HDR histogram, so a bucket bound is at most 25% above the values
+         * in it. The bucket an observation falls into is found with one leading-zero count and a shift, and recording
+         * is a LongAdder increment.
+         */
+        static class Histogram {
+            private static final int FIRST_EXPONENT = 4;
+            private static final int LAST_EXPONENT = 25;
+            private static final int SUB_BUCKETS = 4;
+
+            // Up to 2^FIRST_EXPONENT, the sub-buckets of every further power of two, and +Inf
+            private final LongAdder[] buckets = new LongAdder[(LAST_EXPONENT - FIRST_EXPONENT) * SUB_BUCKETS + 2];
+            private final LongAdder sumMicros = new LongAdder();
+
+            Histogram() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+
+            void observeNanos(long nanos) {
+                observeMicros(nanos / 1000);
+            }
+
+            void observeMicros(long micros) {
+                micros = Math.max(0, micros);
+                int exponent = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1); // Smallest e with micros <= 2^e
+                int index;
+                if (exponent <= FIRST_EXPONENT) {
+                    index = 0;
+                } else if (exponent > LAST_EXPONENT) {
+                    index = buckets.length - 1;
+                } else {
+                    // micros is in (2^(e-1), 2^e]; the sub-bucket k covers up to 2^(e-1) * (1 + (k+1) / SUB_BUCKETS)
+                    int subBucket = (int) (((micros - (1L << (exponent - 1))) * SUB_BUCKETS - 1) >> (exponent - 1));
+                    index = 1 + (exponent - FIRST_EXPONENT - 1) * SUB_BUCKETS + subBucket;
+                }
+                buckets[index].increment();
+                sumMicros.add(micros);
+            }
+
+            /**
+             * The upper bound in microseconds of the bucket with this index, except the last.
+             */
+            private static long upperBoundMicros(int index) {
+                if (index == 0) {
+                    return 1L << FIRST_EXPONENT;
+                }
+                long base = 1L << (FIRST_EXPONENT + (index - 1) / SUB_BUCKETS);
+                return base + base * ((index - 1) % SUB_BUCKETS + 1) / SUB_BUCKETS;
+            }
+
+            private void write(String name, String labels, StringBuilder out) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += buckets[i].sum();
+                    String le = i < buckets.length - 1 ? Double.toString(upperBoundMicros(i) / 1e6) : "+Inf";
+                    writeSample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+                }
+                writeSample(out, name + "_sum", labels, sumMicros.sum() / 1e6);
+                writeSample(out, name + "_count", labels, cumulative);
+            }
+        }
+    }
+
+    /**
+     * Staged ingest: request handlers only enqueue, and a fixed number of worker shards parse and evaluate the
+     * messages. A message goes to the shard chosen by its sender key, so the messages of one edge device are
+     * processed in the order they arrived. Each shard has a bounded queue; when it is full the message is refused.
+     */
+    static class IngestPipeline {
+        private final List<BlockingQueue<IngestMessage>> shards = new ArrayList<>();
+
+        IngestPipeline(int shardCount, int queueCapacity) {
+            for (int i = 0; i < Math.max(1, shardCount); i++) {
+                shards.add(new ArrayBlockingQueue<>(queueCapacity));
+            }
+        }
+
+        int getShardCount() {
+            return shards.size();
+        }
+
+        int depth() {
+            int depth = 0;
+            for (BlockingQueue<IngestMessage> shard : shards) {
+                depth += shard.size();
+            }
+            return depth;
+        }
+
+        void start(Consumer<IngestMessage> processor) {
+            for (int i = 0; i < shards.size(); i++) {
+                BlockingQueue<IngestMessage> queue = shards.get(i);
+                new Thread(() -> {
+                    while (true) {
+                        try {
+                            processor.accept(queue.take());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        } catch (RuntimeException e) {
+                            log("Error processing message: " + e);
+                        }
+                    }
+                }, "ingest-shard-" + i).start();
+            }
+        }
+
+        boolean submit(String key, IngestMessage message) {
+            return shards.get(Math.floorMod(key.hashCode(), shards.size())).offer(message);
+        }
+    }
+
+    static class IngestMessage {
+        private final String edgeId;
+        private final byte[] body;
+        private final String contentType;
+        private final boolean batch;
+        private final boolean alertsEvaluated;
+        private final BitSet duplicates;
+        private final Map<Integer, Trace> traces;
+        private final long receivedNanos = System.nanoTime();
+
+        IngestMessage(String edgeId, byte[] body, String contentType, boolean batch, boolean alertsEvaluated, BitSet duplicates,
+                      Map<Integer, Trace> traces) {
+            this.edgeId = edgeId;
+            this.body = body;
+            this.contentType = contentType;
+            this.batch = batch;
+            this.alertsEvaluated = alertsEvaluated;
+            this.duplicates = duplicates;
+            this.traces = traces;
+        }
+
+        public String getEdgeId() {
+            return edgeId;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isBatch() {
+            return batch;
+        }
+
+        public boolean isAlertsEvaluated() {
+            return alertsEvaluated;
+        }
+
+        /**
+         * Whether the record at this index of the body was already received in an earlier request.
+         */
+        public boolean isDuplicate(int index) {
+            return duplicates != null && duplicates.get(index);
+        }
+
+        /**
+         * The trace of the record at this index of the body, or null.
+         */
+        public Trace getTrace(int index) {
+            return traces != null ? traces.get(index) : null;
+        }
+
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+    }
+
+    /**
+     * Outbound HTTP transport of one edge device. Wraps a single {@link HttpClient} so that connections to the edge
+     * are kept alive and reused, applies connect and read timeouts to every call and caps the number of requests in flight.
+     * Requests beyond the cap fail immediately instead of queueing, so callers fall back to their cache.
+     */
+    static class HttpTransport {
+        private final HttpClient client;
+        private final Duration readTimeout;
+        private final Semaphore inFlight;
+
+        HttpTransport() {
+            this(Duration.ofMillis(envLong("HTTP_CONNECT_TIMEOUT_MS", 3000)),
+                    Duration.ofMillis(envLong("HTTP_READ_TIMEOUT_MS", 10000)),
+                    (int) envLong("HTTP_MAX_IN_FLIGHT", 16));
+        }
+
+        HttpTransport(Duration connectTimeout, Duration readTimeout, int maxInFlight) {
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(connectTimeout)
+                    .build();
+            this.readTimeout = readTimeout;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * Posts the body; headers are given as name/value pairs.
+         */
+        CompletableFuture<HttpResponse<String>> postAsync(String url, String contentType, byte[] body, String... headers) {
+            if (!inFlight.tryAcquire()) {
+                return CompletableFuture.failedFuture(new IOException("Too many requests in flight to " + url));
+            }
+            try {
+                HttpRequest.Builder builder = HttpRequest.newBuilder()
+                        .uri(URI.create(url))
+                        .timeout(readTimeout)
+                        .header("Content-Type", contentType);
+                for (int i = 0; i + 1 < headers.length; i += 2) {
+                    builder.header(headers[i], headers[i + 1]);
+                }
+                HttpRequest request = builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+                // The body is always read to the end so that the connection can go back to the pool
+                return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, e) -> inFlight.release());
+            } catch (RuntimeException e) {
+                inFlight.release();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+    /**
+     * Mergeable quantile sketch with a relative error guarantee (DDSketch, Masson et al.). Values are counted in
+     * logarithmic buckets: bucket k holds the magnitudes in (gamma^(k-1), gamma^k] with gamma = (1 + a) / (1 - a),
+     * so every quantile is estimated within a relative error of a = 1%. Merging adds bucket counts and loses
+     * nothing, unlike merging t-digests or KLL sketches. Positive and negative values have their own buckets and
+     * magnitudes below MIN_MAGNITUDE count as zero. Each sign keeps at most MAX_BUCKETS buckets, beyond which the
+     * smallest magnitudes are collapsed into one; temperatures need a few dozen.
+     */
+    static class QuantileSketch {
+        private static final double ACCURACY = 0.01;
+        private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+        private static final double MIN_MAGNITUDE = 1e-3;
+        private static final int MAX_BUCKETS = 2048;
+        private static final byte FORMAT = 1;
+
+        private final Buckets positive = new Buckets();
+        private final Buckets negative = new Buckets();
+        private long zeroCount;
+        private long count;
+
+        void add(double value) {
+            add(value, 1);
+        }
+
+        void add(double value, long n) {
+            if (Double.isNaN(value) || n <= 0) {
+                return;
+            }
+            if (value > MIN_MAGNITUDE) {
+                positive.add(key(value), n);
+            } else if (value < -MIN_MAGNITUDE) {
+                negative.add(key(-value), n);
+            } else {
+                zeroCount += n;
+            }
+            count += n;
+        }
+
+        void merge(QuantileSketch other) {
+            positive.merge(other.positive);
+            negative.merge(other.negative);
+            zeroCount += other.zeroCount;
+            count += other.count;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void clear() {
+            positive.clear();
+            negative.clear();
+            zeroCount = 0;
+            count = 0;
+        }
+
+        /**
+         * The estimated value at quantile q (0 to 1), NaN if the sketch is empty.
+         */
+        double quantile(double q) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long rank = (long) (Math.max(0, Math.min(1, q)) * (count - 1));
+            long seen = 0;
+            for (int key = negative.maxKey; !negative.isEmpty() && key >= negative.minKey; key--) {
+                seen += negative.get(key);
+                if (seen > rank) {
+                    return -value(key);
+                }
+            }
+            seen += zeroCount;
+            if (seen > rank) {
+                return 0;
+            }
+            for (int key = positive.minKey; key < positive.maxKey; key++) {
+                seen += positive.get(key);
+                if (seen > rank) {
+                    return value(key);
+                }
+            }
+            return value(positive.maxKey);
+        }
+
+        /**
+         * Format byte, zero count, then per sign the number of buckets, the lowest key (zigzag) and the counts,
+         * all as varints.
+         */
+        byte[] toBytes() {
+            ByteBuffer out = ByteBuffer.allocate(1 + 10 + positive.maxEncodedSize() + negative.maxEncodedSize());
+            out.put(FORMAT);
+            BinaryCodec.putVarLong(out, zeroCount);
+            positive.write(out);
+            negative.write(out);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a valid sketch
+         */
+        static QuantileSketch fromBytes(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                if (in.get() != FORMAT) {
+                    throw new IllegalArgumentException("Unknown quantile sketch format");
+                }
+                QuantileSketch sketch = new QuantileSketch();
+                sketch.zeroCount = BinaryCodec.getVarLong(in);
+                sketch.count = sketch.zeroCount + sketch.positive.read(in) + sketch.negative.read(in);
+                if (in.hasRemaining() || sketch.zeroCount < 0 || sketch.count < sketch.zeroCount) {
+                    throw new IllegalArgumentException("Invalid quantile sketch");
+                }
+                return sketch;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated quantile sketch");
+            }
+        }
+
+        private static int key(double magnitude) {
+            return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+        }
+
+        private static double value(int key) {
+            // The point of the bucket with the same relative distance to both of its bounds
+            return 2 * Math.pow(GAMMA, key) / (GAMMA + 1);
+        }
+
+        /**
+         * Counts of the keys minKey to maxKey, stored from base on with some room on both sides.
+         */
+        private static class Buckets {
+            private long[] counts;
+            private int base;
+            private int minKey;
+            private int maxKey;
+
+            boolean isEmpty() {
+                return counts == null;
+            }
+
+            long get(int key) {
+                return counts[key - base];
+            }
+
+            void add(int key, long n) {
+                if (counts == null) {
+                    counts = new long[32];
+                    base = key - 16;
+                    minKey = key;
+                    maxKey = key;
+                } else if (key < minKey || key > maxKey) {
+                    extend(Math.min(key, minKey), Math.max(key, maxKey));
+                }
+                counts[Math.max(key, minKey) - base] += n;
+            }
+
+            void merge(Buckets other) {
+                if (other.counts == null) {
+                    return;
+                }
+                if (counts == null) {
+                    add(other.maxKey, 0);
+                }
+                extend(Math.min(minKey, other.minKey), Math.max(maxKey, other.maxKey));
+                for (int key = other.minKey; key <= other.maxKey; key++) {
+                    counts[Math.max(key, minKey) - base] += other.counts[key - other.base];
+                }
+            }
+
+            void clear() {
+                counts = null;
+            }
+
+            /**
+             * Widens the key range, collapsing the lowest keys if it would exceed MAX_BUCKETS.
+             */
+            private void extend(int newMin, int newMax) {
+                newMin = Math.max(newMin, newMax - MAX_BUCKETS + 1);
+                if (newMin < base || newMax >= base + counts.length || newMin > minKey) {
+                    int width = newMax - newMin + 1;
+                    int length = Math.min(MAX_BUCKETS, width + 32);
+                    int newBase = newMin - (length - width) / 2;
+                    long[] grown = new long[length];
+                    for (int key = minKey; key <= maxKey; key++) {
+                        grown[Math.max(key, newMin) - newBase] += counts[key - base];
+                    }
+                    counts = grown;
+                    base = newBase;
+                }
+                minKey = newMin;
+                maxKey = newMax;
+            }
+
+            int maxEncodedSize() {
+                return 10 + (counts == null ? 0 : 5 + 10 * (maxKey - minKey + 1));
+            }
+
+            void write(ByteBuffer out) {
+                if (counts == null) {
+                    BinaryCodec.putVarLong(out, 0);
+                    return;
+                }
+                BinaryCodec.putVarLong(out, maxKey - minKey + 1);
+                BinaryCodec.putVarLong(out, ((long) minKey << 1) ^ (minKey >> 31));
+                for (int key = minKey; key <= maxKey; key++) {
+                    BinaryCodec.putVarLong(out, counts[key - base]);
+                }
+            }
+
+            /**
+             * Reads what {@link #write} wrote into this empty instance and returns the total count.
+             */
+            long read(ByteBuffer in) {
+                long width = BinaryCodec.getVarLong(in);
+                if (width == 0) {
+                    return 0;
+                }
+                if (width < 0 || width > MAX_BUCKETS) {
+                    throw new IllegalArgumentException("Invalid quantile sketch width " + width);
+                }
+                long zigzag = BinaryCodec.getVarLong(in);
+                int first = (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+                long total = 0;
+                for (int i = 0; i < width; i++) {
+                    long n = BinaryCodec.getVarLong(in);
+                    if (n < 0) {
+                        throw new IllegalArgumentException("Invalid quantile sketch count");
+                    }
+                    add(first + i, n);
+                    total += n;
+                }
+                return total;
+            }
+        }
+    }
+
+    /**
+     * HyperLogLog sketch of distinct ids (Flajolet et al.) with 2^10 one-byte registers: 1 KiB of memory and a
+     * standard error of about 3%. Merging takes the maximum of each register. Small cardinalities use linear
+     * counting. Sketches with few used registers are serialized sparsely.
+     */
+    static class HyperLogLog {
+        private static final int P = 10;
+        private static final int M = 1 << P;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+        private static final byte SPARSE = 1;
+        private static final byte DENSE = 2;
+
+        private final byte[] registers = new byte[M];
+
+        /**
+         * 64-bit hash of an id: FNV-1a over its characters, then the SplitMix64 finalizer to spread the bits.
+         */
+        static long hash(String id) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                h = (h ^ id.charAt(i)) * 0x100000001b3L;
+            }
+            h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+            h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+            return h ^ (h >>> 31);
+        }
+
+        void addHash(long hash) {
+            int index = (int) (hash >>> (64 - P));
+            // Position of the first 1 bit after the index bits; the guard bit caps it at 64 - P + 1
+            byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1);
+            if (rank > registers[index]) {
+                registers[index] = rank;
+            }
+        }
+
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < M; i++) {
+                if (other.registers[i] > registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(registers, (byte) 0);
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += Math.scalb(1.0, -register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = ALPHA * M * M / sum;
+            if (estimate <= 2.5 * M && zeros > 0) {
+                estimate = M * Math.log((double) M / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        /**
+         * Sparse: format byte, number of used registers, then per register the index delta (varint) and the value.
+         * Dense: format byte and all registers.
+         */
+        byte[] toBytes() {
+            int used = 0;
+            for (byte register : registers) {
+                if (register != 0) {
+                    used++;
+                }
+            }
+            if (used * 3 >= M) {
+                byte[] bytes = new byte[1 + M];
+                bytes[0] = DENSE;
+                System.arraycopy(registers, 0, bytes, 1, M);
+                return bytes;
+            }
+            ByteBuffer out = ByteBuffer.allocate(1 + 5 + used * 3);
+            out.put(SPARSE);
+            BinaryCodec.putVarLong(out, used);
+            int previous = 0;
+            for (int i = 0; i < M; i++) {
+                if (registers[i] != 0) {
+                    BinaryCodec.putVarLong(out, i - previous);
+                    out.put(registers[i]);
+                    previous = i;
+                }
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a valid sketch
+         */
+        static HyperLogLog fromBytes(byte[] bytes) {
+            HyperLogLog sketch = new HyperLogLog();
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                byte format = in.get();
+                if (format == DENSE) {
+                    in.get(sketch.registers);
+                } else if (format == SPARSE) {
+                    long used = BinaryCodec.getVarLong(in);
+                    if (used < 0 || used > M) {
+                        throw new IllegalArgumentException("Invalid distinct count sketch");
+                    }
+                    long index = 0;
+                    for (int i = 0; i < used; i++) {
+                        index += BinaryCodec.getVarLong(in);
+                        if (index < 0 || index >= M) {
+                            throw new IllegalArgumentException("Invalid distinct count sketch");
+                        }
+                        sketch.registers[(int) index] = in.get();
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown distinct count sketch format");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated distinct count sketch");
+            }
+            for (byte register : sketch.registers) {
+                if (register < 0 || register > 64 - P + 1) {
+                    throw new IllegalArgumentException("Invalid distinct count sketch");
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Invalid distinct count sketch");
+            }
+            return sketch;
+        }
+    }
+
+    static class SensorData {
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss");
+        private final String sensorId;
+        private final double temperature;
+        private final String timestamp;
+        // Window statistics; only set on summaries from the edge aggregator, count is 0 for single readings
+        private final long count;
+        private final double min;
+        private final double max;
+        private final double variance;
+        // Sketches of all values and sensor ids of a window; only set on the global summary, null otherwise
+        private final QuantileSketch quantiles;
+        private final HyperLogLog sensors;
+
+        public SensorData(String sensorId, double temperature, String timestamp) {
+            this(sensorId, temperature, timestamp, 0, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        public SensorData(String sensorId, double temperature, String timestamp, long count, double min, double max, double variance) {
+            this(sensorId, temperature, timestamp, count, min, max, variance, null, null);
+        }
+
+        public SensorData(String sensorId, double temperature, String timestamp, long count, double min, double max, double variance,
+                          QuantileSketch quantiles, HyperLogLog sensors) {
+            this.sensorId = sensorId;
+            this.temperature = temperature;
+            this.timestamp = timestamp;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.variance = variance;
+            this.quantiles = quantiles;
+            this.sensors = sensors;
+        }
+
+        public String getSensorId() {
+            return sensorId;
+        }
+
+        public double getTemperature() {
+            return temperature;
+        }
+
+        public String getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean isSummary() {
+            return count > 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getVariance() {
+            return variance;
+        }
+
+        public QuantileSketch getQuantiles() {
+            return quantiles;
+        }
+
+        public HyperLogLog getSensors() {
+            return sensors;
+        }
+
+        static long parseTimestamp(String timestamp) {
+            try {
+                return LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Timestamp is not in yyyy.MM.dd.HH.mm.ss format: " + timestamp);
+            }
+        }
+    }
+
+    /**
+     * Streaming JSON codec for {@link SensorData}. Reads and writes the UTF-8 bytes of a request body directly
+     * instead of splitting strings, accepts the fields in any order and with any whitespace, and skips unknown
+     * fields. Malformed input is reported as an {@link IllegalArgumentException} naming the offending offset.
+     */
+    static final class SensorDataCodec {
+        private static final byte[] SENSOR_ID = "sensorId".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TEMPERATURE = "temperature".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIMESTAMP = "timestamp".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] COUNT = "count".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MIN = "min".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MAX = "max".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] VARIANCE = "variance".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] QUANTILES = "quantiles".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SENSORS = "sensors".getBytes(StandardCharsets.US_ASCII);
+        private static final double[] POW10 = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        private SensorDataCodec(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        static byte[] encode(SensorData data) {
+            ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(data.getSensorId(), data.getTimestamp()));
+            encode(data.getSensorId(), data.getTemperature(), data.getTimestamp(), out);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        static SensorData decode(byte[] buf) {
+            return decode(buf, 0, buf.length);
+        }
+
+        static SensorData decode(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return decode(copy);
+        }
+
+        /**
+         * Parses exactly one JSON object.
+         *
+         * @throws IllegalArgumentException if the input is not a valid record
+         */
+        static SensorData decode(byte[] buf, int offset, int length) {
+            SensorDataCodec reader = new SensorDataCodec(buf, offset, length);
+            SensorData data = reader.readObject();
+            reader.expectEnd();
+            return data;
+        }
+
+        /**
+         * Parses a JSON array of records.
+         *
+         * @throws IllegalArgumentException if the input is not an array of valid records
+         */
+        static List<SensorData> decodeArray(byte[] buf, int offset, int length) {
+            SensorDataCodec reader = new SensorDataCodec(buf, offset, length);
+            List<SensorData> records = new ArrayList<>();
+            reader.skipWhitespace();
+            reader.expect('[');
+            reader.skipWhitespace();
+            if (!reader.consume(']')) {
+                do {
+                    records.add(reader.readObject());
+                    reader.skipWhitespace();
+                } while (reader.consume(','));
+                reader.expect(']');
+            }
+            reader.expectEnd();
+            return records;
+        }
+
+        /**
+         * Counts the elements of a JSON array by scanning it, without parsing them; -1 if the input is not an array.
+         */
+        static int countArray(byte[] buf, int offset, int length) {
+            SensorDataCodec reader = new SensorDataCodec(buf, offset, length);
+            reader.skipWhitespace();
+            if (!reader.consume('[')) {
+                return -1;
+            }
+            reader.skipWhitespace();
+            if (reader.consume(']')) {
+                return 0;
+            }
+            int count = 1;
+            int depth = 0;
+            try {
+                while (reader.pos < reader.end) {
+                    byte b = reader.buf[reader.pos++];
+                    if (b == '"') {
+                        reader.skipStringBody();
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        if (depth-- == 0) {
+                            return count;
+                        }
+                    } else if (b == ',' && depth == 0) {
+                        count++;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Unterminated string
+            }
+            return -1;
+        }
+
+        private SensorData readObject() {
+            skipWhitespace();
+            expect('{');
+            String sensorId = null;
+            String timestamp = null;
+            double temperature = 0;
+            boolean hasTemperature = false;
+            long count = 0;
+            double min = Double.NaN;
+            double max = Double.NaN;
+            double variance = Double.NaN;
+            QuantileSketch quantiles = null;
+            HyperLogLog sensors = null;
+
+            skipWhitespace();
+            if (!consume('}')) {
+                do {
+                    skipWhitespace();
+                    expect('"');
+                    int keyStart = pos;
+                    int keyEnd = skipStringBody();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    if (keyEquals(keyStart, keyEnd, SENSOR_ID)) {
+                        sensorId = readString();
+                    } else if (keyEquals(keyStart, keyEnd, TEMPERATURE)) {
+                        temperature = readNumber();
+                        hasTemperature = true;
+                    } else if (keyEquals(keyStart, keyEnd, TIMESTAMP)) {
+                        timestamp = readString();
+                    } else if (keyEquals(keyStart, keyEnd, COUNT)) {
+                        count = (long) readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, MIN)) {
+                        min = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, MAX)) {
+                        max = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, VARIANCE)) {
+                        variance = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, QUANTILES)) {
+                        int valueStart = pos;
+                        try {
+                            quantiles = QuantileSketch.fromBytes(Base64.getDecoder().decode(readString()));
+                        } catch (IllegalArgumentException e) {
+                            pos = valueStart;
+                            throw error("Invalid quantiles");
+                        }
+                    } else if (keyEquals(keyStart, keyEnd, SENSORS)) {
+                        int valueStart = pos;
+                        try {
+                            sensors = HyperLogLog.fromBytes(Base64.getDecoder().decode(readString()));
+                        } catch (IllegalArgumentException e) {
+                            pos = valueStart;
+                            throw error("Invalid sensors");
+                        }
+                    } else {
+                        skipValue();
+                    }
+                    skipWhitespace();
+                } while (consume(','));
+                expect('}');
+            }
+
+            if (sensorId == null || !hasTemperature || timestamp == null) {
+                throw error("Record needs sensorId, temperature and timestamp");
+            }
+            return new SensorData(sensorId, temperature, timestamp, count, min, max, variance, quantiles, sensors);
+        }
+
+        private String readString() {
+            expect('"');
+            int start = pos;
+            boolean ascii = true;
+            boolean escaped = false;
+            while (true) {
+                if (pos >= end) {
+                    throw error("Unterminated string");
+                }
+                byte b = buf[pos];
+                if (b == '"') {
+                    break;
+                } else if (b == '\\') {
+                    escaped = true;
+                    pos += 2;
+                } else if (b < 0) {
+                    ascii = false;
+                    pos++;
+                } else if (b < 0x20) {
+                    throw error("Control character in string");
+                } else {
+                    pos++;
+                }
+            }
+            int stringEnd = pos++;
+            if (!escaped) {
+                return new String(buf, start, stringEnd - start, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            return unescape(start, stringEnd);
+        }
+
+        private String unescape(int start, int stringEnd) {
+            StringBuilder sb = new StringBuilder(stringEnd - start);
+            int runStart = start;
+            int i = start;
+            while (i < stringEnd) {
+                if (buf[i] != '\\') {
+                    i++;
+                    continue;
+                }
+                sb.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8));
+                byte c = buf[i + 1];
+                switch (c) {
+                    case '"': case '\\': case '/': sb.append((char) c); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (i + 6 > stringEnd) {
+                            throw error("Truncated unicode escape");
+                        }
+                        int code = 0;
+                        for (int k = i + 2; k < i + 6; k++) {
+                            int digit = Character.digit(buf[k], 16);
+                            if (digit < 0) {
+                                throw error("Invalid unicode escape");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        sb.append((char) code);
+                        i += 4;
+                        break;
+                    default:
+                        throw error("Invalid escape character");
+                }
+                i += 2;
+                runStart = i;
+            }
+            sb.append(new String(buf, runStart, stringEnd - runStart, StandardCharsets.UTF_8));
+            return sb.toString();
+        }
+
+        /**
+         * Parses a JSON number. Numbers with at most 15 significant digits and a small exponent are converted
+         * exactly with one multiplication or division; anything else falls back to {@link Double#parseDouble}.
+         */
+        private double readNumber() {
+            int start = pos;
+            boolean negative = consume('-');
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean exact = true;
+            int intStart = pos;
+            while (pos < end && isDigit(buf[pos])) {
+                if (digits < 15) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else {
+                    exact = false;
+                }
+                pos++;
+            }
+            if (pos == intStart) {
+                throw error("Expected a number");
+            }
+            if (consume('.')) {
+                int fractionStart = pos;
+                while (pos < end && isDigit(buf[pos])) {
+                    if (digits < 15) {
+                        mantissa = mantissa * 10 + (buf[pos] - '0');
+                        if (mantissa != 0) {
+                            digits++;
+                        }
+                        exponent--;
+                    } else if (buf[pos] != '0') {
+                        exact = false;
+                    }
+                    pos++;
+                }
+                if (pos == fractionStart) {
+                    throw error("Expected digits after the decimal point");
+                }
+            }
+            if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+                pos++;
+                boolean negativeExponent = consume('-');
+                if (!negativeExponent) {
+                    consume('+');
+                }
+                int expStart = pos;
+                int value = 0;
+                while (pos < end && isDigit(buf[pos])) {
+                    value = Math.min(value * 10 + (buf[pos] - '0'), 100_000);
+                    pos++;
+                }
+                if (pos == expStart) {
+                    throw error("Expected digits in the exponent");
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+
+            if (exact && exponent >= -22 && exponent <= 22) {
+                double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+
+        private void skipValue() {
+            if (pos >= end) {
+                throw error("Expected a value");
+            }
+            byte b = buf[pos];
+            if (b == '"') {
+                pos++;
+                skipStringBody();
+            } else if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    if (pos >= end) {
+                        throw error("Unterminated value");
+                    }
+                    b = buf[pos++];
+                    if (b == '"') {
+                        skipStringBody();
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else {
+                int start = pos;
+                while (pos < end && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw error("Expected a value");
+                }
+            }
+        }
+
+        /**
+         * Skips to just after the closing quote of a string whose opening quote was already consumed and
+         * returns the index of the closing quote.
+         */
+        private int skipStringBody() {
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '\\') {
+                    pos += 2;
+                } else if (b == '"') {
+                    return pos++;
+                } else {
+                    pos++;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private boolean keyEquals(int start, int keyEnd, byte[] key) {
+            return Arrays.equals(buf, start, keyEnd, key, 0, key.length);
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && isWhitespace(buf[pos])) {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            if (pos < end && buf[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void expectEnd() {
+            skipWhitespace();
+            if (pos != end) {
+                throw error("Unexpected trailing data");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at offset " + pos);
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+
+        private static final byte[] SENSOR_ID_PREFIX = "{\"sensorId\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TEMPERATURE_PREFIX = ",\"temperature\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIMESTAMP_PREFIX = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * Upper bound for the encoded size of a record, assuming every character of the strings needs escaping.
+         */
+        static int maxEncodedSize(String sensorId, String timestamp) {
+            return 64 + 6 * (sensorId.length() + timestamp.length());
+        }
+
+        /**
+         * Writes one record as a JSON object at the buffer's position.
+         */
+        static void encode(String sensorId, double temperature, String timestamp, ByteBuffer out) {
+            out.put(SENSOR_ID_PREFIX);
+            writeString(sensorId, out);
+            out.put(TEMPERATURE_PREFIX);
+            String number = Double.toString(temperature);
+            for (int i = 0; i < number.length(); i++) {
+                out.put((byte) number.charAt(i));
+            }
+            out.put(TIMESTAMP_PREFIX);
+            writeString(timestamp, out);
+            out.put((byte) '}');
+        }
+
+        private static void writeString(String value, ByteBuffer out) {
+            out.put((byte) '"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.put((byte) '\\').put((byte) c);
+                } else if (c < 0x20) {
+                    out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                            .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+                } else if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out.put((byte) (0xF0 | (codePoint >> 18)))
+                            .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                            .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    out.put((byte) '?');
+                } else {
+                    out.put((byte) (0xE0 | (c >> 12)))
+                            .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            out.put((byte) '"');
+        }
+    }
+
+    /**
+     * Compact binary encoding for readings, used when a request has the {@value #CONTENT_TYPE} content type.
+     * A record is a type byte, the sensor id as varint length plus UTF-8 bytes, the temperature as float64 and
+     * the timestamp as epoch millis (int64) of its wall time read as UTC, so that it arrives unchanged whatever the
+     * time zones of sender and receiver, as in JSON. A batch stores each sensor id once in a table and encodes records
+     * as an id index, the temperature, the window count (followed by min, max, variance and the quantile and
+     * distinct sensor sketches as length-prefixed bytes, empty if absent, if it is not zero) and a zigzag varint
+     * timestamp delta.
+     */
+    static final class BinaryCodec {
+        static final String CONTENT_TYPE = "application/x-sensor-data";
+        private static final byte RECORD = 1;
+        private static final byte BATCH = 2;
+        private static final byte SKETCH_BATCH = 3;
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss");
+
+        static boolean isBinary(String contentType) {
+            return contentType != null && contentType.startsWith(CONTENT_TYPE);
+        }
+
+        /**
+         * Decodes a single record or a batch into a list of records.
+         *
+         * @throws IllegalArgumentException if the input is not a valid binary message
+         */
+        static List<SensorData> decode(byte[] buf, int offset, int length) {
+            ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+            try {
+                List<SensorData> records = new ArrayList<>();
+                byte type = in.get();
+                if (type == RECORD) {
+                    String sensorId = getString(in);
+                    double temperature = in.getDouble();
+                    records.add(new SensorData(sensorId, temperature, fromEpochMillis(in.getLong())));
+                } else if (type == BATCH || type == SKETCH_BATCH) {
+                    String[] ids = new String[checkedCount(in, in.remaining())];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = getString(in);
+                    }
+                    int recordCount = checkedCount(in, in.remaining() / 10);
+                    long millis = 0;
+                    for (int i = 0; i < recordCount; i++) {
+                        int index = (int) getVarLong(in);
+                        if (index < 0 || index >= ids.length) {
+                            throw new IllegalArgumentException("Sensor id index " + index + " out of range");
+                        }
+                        double temperature = in.getDouble();
+                        long count = getVarLong(in);
+                        double min = Double.NaN;
+                        double max = Double.NaN;
+                        double variance = Double.NaN;
+                        QuantileSketch quantiles = null;
+                        HyperLogLog sensors = null;
+                        if (count > 0) {
+                            min = in.getDouble();
+                            max = in.getDouble();
+                            variance = in.getDouble();
+                            if (type == SKETCH_BATCH) {
+                                byte[] bytes = getBytes(in);
+                                quantiles = bytes.length == 0 ? null : QuantileSketch.fromBytes(bytes);
+                                bytes = getBytes(in);
+                                sensors = bytes.length == 0 ? null : HyperLogLog.fromBytes(bytes);
+                            }
+                        }
+                        long zigzag = getVarLong(in);
+                        millis += (zigzag >>> 1) ^ -(zigzag & 1);
+                        records.add(new SensorData(ids[index], temperature, fromEpochMillis(millis), count, min, max, variance,
+                                quantiles, sensors));
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown message type " + type);
+                }
+                if (in.hasRemaining()) {
+                    throw new IllegalArgumentException("Unexpected trailing data at offset " + (in.position() - offset));
+                }
+                return records;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+        }
+
+        private static String fromEpochMillis(long millis) {
+            return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+        }
+
+        private static void putVarLong(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+
+        /**
+         * The number of records in a single record or a batch, read from its header; -1 if it is not a valid binary
+         * message.
+         */
+        static int recordCount(byte[] buf, int offset, int length) {
+            ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+            try {
+                byte type = in.get();
+                if (type == RECORD) {
+                    return 1;
+                } else if (type != BATCH && type != SKETCH_BATCH) {
+                    return -1;
+                }
+                int idCount = checkedCount(in, in.remaining());
+                for (int i = 0; i < idCount; i++) {
+                    int idLength = checkedCount(in, in.remaining());
+                    in.position(in.position() + idLength);
+                }
+                return checkedCount(in, in.remaining() / 10);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return -1;
+            }
+        }
+
+        private static int checkedCount(ByteBuffer in, int max) {
+            long count = getVarLong(in);
+            if (count < 0 || count > max) {
+                throw new IllegalArgumentException("Invalid element count " + count);
+            }
+            return (int) count;
+        }
+
+        private static long getVarLong(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        private static byte[] getBytes(ByteBuffer in) {
+            byte[] bytes = new byte[checkedCount(in, in.remaining())];
+            in.get(bytes);
+            return bytes;
+        }
+
+        private static String getString(ByteBuffer in) {
+            int length = checkedCount(in, in.remaining());
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
         }
     }
 }
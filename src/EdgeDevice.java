@@ -3,49 +3,455 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class EdgeDevice {
-    private static final String SERVER_IP = "GCP_EXTERNAL_IP"; // External IP of your cloud component
+    private static final String SERVER_IP = System.getenv().getOrDefault("SERVER_IP", "GCP_EXTERNAL_IP"); // External IP of your cloud component
     private static final int SERVER_PORT = 8089;
-    private final BlockingQueue<SensorData> dataQueue;
-    private final BlockingQueue<SensorData> retryQueue;
+    // Where window summaries go: the cloud component, or an aggregating edge device that merges them with others
+    private static final String UPSTREAM_URL = System.getenv().getOrDefault("UPSTREAM_URL", "http://" + SERVER_IP + ":" + SERVER_PORT);
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024; // Max inflated size of a downstream batch
+    private static final long MAX_SEQUENCE_RANGE = 100000;
+    private static final int MAX_BATCH_SIZE = 500; // Max records per /data/batch request
+    private static final long BATCH_LINGER_MS = 200; // How long a partial batch waits for more records
+    private static final int MAX_BATCHES_IN_FLIGHT = 4; // Batches pipelined to the server at once
+    private static final boolean BINARY_UPLINK = "binary".equals(System.getenv("WIRE_FORMAT"));
+    private static final long WINDOW_SIZE_MS = envLong("WINDOW_SIZE_MS", 5000);
+    private static final long WINDOW_SLIDE_MS = envLong("WINDOW_SLIDE_MS", WINDOW_SIZE_MS); // Equal to the size: tumbling windows
+    private static final long WINDOW_LATENESS_MS = envLong("WINDOW_LATENESS_MS", 1000);
+    private static final int IDLE_EVICT_WINDOWS = (int) Math.max(1, envLong("IDLE_EVICT_WINDOWS", 60)); // Per-sensor and per-producer state idle this long is dropped
+    private static final boolean WINDOW_LOG_SENSORS = "on".equals(System.getenv("WINDOW_LOG_SENSORS")); // Debug: one line per sensor and window
+    private static final int INGEST_CAPACITY = (int) envLong("INGEST_CAPACITY", 65536);
+    private static final boolean RAW_UPLINK = "raw".equals(System.getenv("UPLINK_MODE")); // Forward every sensor's readings, not only the averages
+    private static final double RAW_DEADBAND = envDouble("RAW_DEADBAND", 0.1);
+    private static final long RAW_MAX_SILENCE_MS = envLong("RAW_MAX_SILENCE_MS", 60000);
+    private static final int GZIP_MIN_BYTES = 1024; // Batch bodies from this size on are sent gzip-compressed
+    private static final String EDGE_ID = edgeId();
+    private static final String EDGE_TOKEN = System.getenv().getOrDefault("EDGE_TOKEN", ""); // Shared with the cloud component
+    private static final String CALLBACK_URL = System.getenv("CALLBACK_URL"); // Public URL of /response, e.g. the localtunnel URL
+    private static final long REGISTRATION_INTERVAL_MS = envLong("REGISTRATION_INTERVAL_MS", 60000);
+    private static final long RULES_POLL_MS = envLong("RULES_POLL_MS", 10000);
+    private static final String RULES_CACHE_FILE = "edge_rules.conf";
+    private static final boolean DOWNLINK = !"off".equals(System.getenv("DOWNLINK")); // Receive warnings over a connection opened by this edge
+    private static final long DOWNLINK_MAX_BACKOFF_MS = 30000;
+    private static final int MAX_PENDING_TRACES = 10000; // Traces of cached records waiting for their batch
+    private final RuleEngine rules = new RuleEngine();
+    private volatile String rulesEtag = "";
+    private final Semaphore rulesChanged = new Semaphore(0); // Released when the downlink announces new rules
+    private final BlockingQueue<Long> downlinkAcks = new LinkedBlockingQueue<>(10000);
+    private volatile long downlinkEpoch;
+    private volatile boolean downlinkConnected;
+    private final BlockingDeque<String> alertReports = new LinkedBlockingDeque<>(1000);
+    private final WindowAggregator aggregator;
+    private final IngestBuffer ingestBuffer;
+    private final ReadingFilter readingFilter = new ReadingFilter((int) envLong("DEDUP_WINDOW", 1024), RAW_DEADBAND, RAW_MAX_SILENCE_MS);
+    private final Map<String, DedupWindow> dedupWindows = new ConcurrentHashMap<>();
+    private volatile long evictionRound; // Windows closed so far, the clock of evictIdle
+    private final LongAdder duplicateMessages = new LongAdder();
 
     private boolean running;
 
-    private static final String CACHE_FILE = "data_cache.txt";
+    private static final String CACHE_DIR = "data_cache";
+    private static final String LEGACY_CACHE_FILE = "data_cache.txt";
+    private final SegmentedLog cache;
+    private final SequenceCounter sequence;
+    private final HttpTransport transport = new HttpTransport();
+    private final Map<Long, Trace> pendingTraces = new ConcurrentHashMap<>();
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram uplinkDuration = metrics.histogram("edge_uplink_batch_duration_seconds",
+            "Time until the cloud component answered a batch");
+    private final LongAdder uplinkAcked = metrics.counter("edge_uplink_batches_total", "Batches sent to the cloud component", "result", "acknowledged");
+    private final LongAdder uplinkFailed = metrics.counter("edge_uplink_batches_total", "Batches sent to the cloud component", "result", "failed");
+    private final LongAdder uplinkRecords = metrics.counter("edge_uplink_records_total", "Records acknowledged by the cloud component");
+    private final Metrics.Histogram traceLatency = metrics.histogram("edge_trace_sensor_to_edge_seconds",
+            "Time from a traced sensor sending a reading until it was accepted here (includes clock skew)");
 
     public EdgeDevice() throws IOException {
-        this.dataQueue = new LinkedBlockingQueue<>();
-        this.retryQueue = new LinkedBlockingQueue<>();
+        this.aggregator = new WindowAggregator(WINDOW_SIZE_MS, WINDOW_SLIDE_MS, WINDOW_LATENESS_MS, EDGE_ID, IDLE_EVICT_WINDOWS);
+        this.ingestBuffer = new IngestBuffer(INGEST_CAPACITY, overflowPolicy());
+        this.cache = new SegmentedLog(CACHE_DIR, LEGACY_CACHE_FILE);
+        this.sequence = new SequenceCounter(new File(CACHE_DIR, "sequence"));
+
+        // Start a thread that sends cached data to the server in batches
+        new Thread(this::sendBatchesToServer).start();
+
+        // Start a thread that moves readings from the ingest buffer into the aggregator
+        new Thread(this::aggregateReadings).start();
+
+        // Start a thread that sends the summary of every closed window
+        new Thread(this::sendWindowSummaries).start();
 
-        // Start a thread to handle retries
-        new Thread(this::handleRetries).start();
+        // Start threads that keep the alert rules up to date and report local alerts to the cloud component
+        loadCachedRules();
+        new Thread(this::fetchRules).start();
+        new Thread(this::reportAlerts).start();
+
+        // Start threads that hold the downlink open and acknowledge the warnings received over it
+        if (DOWNLINK) {
+            new Thread(this::receiveDownlink).start();
+            new Thread(this::acknowledgeDownlink).start();
+        }
+
+        // Start a thread that keeps this edge registered with the cloud component, so warnings are routed back here
+        if (CALLBACK_URL != null) {
+            new Thread(this::registerWithServer).start();
+        }
 
-        // Start a thread to periodically send average data
-        new Thread(this::sendAverageDataPeriodically).start();
+        registerMetrics();
 
         // Start HTTP server
         startHttpServer();
     }
 
+    private void registerMetrics() {
+        metrics.gauge("edge_ingest_buffer_readings", "Readings waiting for the aggregator", ingestBuffer::size);
+        metrics.gauge("edge_ingest_buffer_capacity", "Capacity of the ingest buffer", () -> INGEST_CAPACITY);
+        metrics.counter("edge_ingest_shed_total", "Readings shed because the ingest buffer was full", ingestBuffer::getRejected, "reason", "rejected");
+        metrics.counter("edge_ingest_shed_total", "Readings shed because the ingest buffer was full", ingestBuffer::getDroppedOldest, "reason", "dropped_oldest");
+        metrics.counter("edge_ingest_shed_total", "Readings shed because the ingest buffer was full", ingestBuffer::getDownsampled, "reason", "downsampled");
+        metrics.counter("edge_filtered_total", "Readings and messages that were not processed", readingFilter::getDuplicates, "reason", "duplicate_timestamp");
+        metrics.counter("edge_filtered_total", "Readings and messages that were not processed", readingFilter::getSuppressed, "reason", "deadband");
+        metrics.counter("edge_filtered_total", "Readings and messages that were not processed", duplicateMessages::sum, "reason", "redelivered");
+        metrics.counter("edge_late_readings_total", "Readings dropped because their window was already closed", aggregator::getDroppedReadings);
+        metrics.gauge("edge_cache_backlog_bytes", "Bytes in the cache that the cloud component has not acknowledged", () -> {
+            try {
+                return cache.pendingBytes();
+            } catch (IOException e) {
+                return Double.NaN;
+            }
+        });
+        metrics.gauge("edge_alert_reports_pending", "Local alerts waiting to be reported to the cloud component", alertReports::size);
+        metrics.gauge("edge_rules", "Alert rules currently loaded", rules::size);
+        metrics.gauge("edge_dedup_producers", "Producers with a dedup window", dedupWindows::size);
+        metrics.gauge("edge_window_sensors", "Sensors with a slot in the window aggregator", aggregator::getSensorCount);
+        metrics.gauge("edge_downlink_connected", "Whether the downlink from the cloud component is open", () -> downlinkConnected ? 1 : 0);
+        metrics.gauge("edge_downlink_acks_pending", "Acknowledgments waiting to be sent to the cloud component", downlinkAcks::size);
+    }
+
     private void startHttpServer() throws IOException {
+        // Without TCP_NODELAY a small response waits for the delayed ACK of the request, about 40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
-        server.createContext("/data", new DataHandler());
-        server.createContext("/response", new ResponseHandler());
-        server.setExecutor(null);
+        server.createContext("/data", metrics.instrument("data", new DataHandler()));
+        server.createContext("/data/batch", metrics.instrument("batch", new BatchHandler()));
+        server.createContext("/response", metrics.instrument("response", new ResponseHandler()));
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(createServerExecutor());
         server.start();
         System.out.println("HTTP server started on port 8000");
+        System.out.println("Edge id: " + EDGE_ID);
+        System.out.println("Upstream: " + UPSTREAM_URL);
+    }
+
+    /**
+     * The id under which this edge identifies itself to the cloud component: EDGE_ID, or else the host name.
+     */
+    private static String edgeId() {
+        String edgeId = System.getenv("EDGE_ID");
+        if (edgeId != null && !edgeId.isBlank()) {
+            return edgeId.trim();
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "edge";
+        }
+    }
+
+    /**
+     * Registers CALLBACK_URL with the cloud component and repeats that periodically, so the registration
+     * survives restarts of the cloud component and a changed tunnel URL takes effect.
+     */
+    private void registerWithServer() {
+        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/edges";
+        while (true) {
+            boolean registered = transport.postAsync(targetUrl, "text/plain", CALLBACK_URL.getBytes(StandardCharsets.UTF_8), "X-Edge-Id", EDGE_ID,
+                            "X-Edge-Token", EDGE_TOKEN)
+                    .handle((response, e) -> e == null && response.statusCode() == 200)
+                    .join();
+            if (!registered) {
+                System.out.println("Registration with the server failed, retrying");
+            }
+            try {
+                Thread.sleep(registered ? REGISTRATION_INTERVAL_MS : 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void evaluateRules(SensorData reading) {
+        QuantileSketch quantiles = reading.getQuantiles();
+        for (Alert alert : rules.evaluate(reading.getSensorId(), reading.getTemperature(), quantiles != null ? quantiles::quantile : null,
+                SensorData.parseTimestamp(reading.getTimestamp()))) {
+            System.out.println("Local alert: " + alert.getMessage());
+            // Reports are best effort: when the uplink is down for long, the oldest are dropped
+            while (!alertReports.offerLast(alert.getMessage())) {
+                alertReports.pollFirst();
+            }
+        }
+    }
+
+    private void loadCachedRules() {
+        try {
+            if (Files.exists(Path.of(RULES_CACHE_FILE))) {
+                rules.load(Files.readString(Path.of(RULES_CACHE_FILE), StandardCharsets.UTF_8));
+                System.out.println("Loaded " + rules.size() + " alert rules from " + RULES_CACHE_FILE);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Cannot load cached alert rules: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Polls the cloud component's /rules endpoint. The request carries the ETag of the rules in use, so unchanged
+     * rules cost a 304 response; new rules are applied immediately and written to the rules cache file. When the
+     * downlink announces a different ETag, the rules are fetched right away instead of at the next poll.
+     */
+    private void fetchRules() {
+        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/rules";
+        while (true) {
+            HttpResponse<String> response = transport.getAsync(targetUrl, "If-None-Match", rulesEtag, "X-Edge-Id", EDGE_ID)
+                    .handle((r, e) -> e == null ? r : null)
+                    .join();
+            if (response != null && response.statusCode() == 200) {
+                try {
+                    rules.load(response.body());
+                    rulesEtag = response.headers().firstValue("ETag").orElse("");
+                    Files.writeString(Path.of(RULES_CACHE_FILE), response.body(), StandardCharsets.UTF_8);
+                    System.out.println("Loaded " + rules.size() + " alert rules from the server");
+                } catch (IllegalArgumentException | IOException e) {
+                    System.out.println("Cannot apply alert rules from the server: " + e.getMessage());
+                }
+            }
+            try {
+                rulesChanged.tryAcquire(RULES_POLL_MS, TimeUnit.MILLISECONDS);
+                rulesChanged.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Holds the downlink open: a GET /downlink whose response the cloud component keeps open to push warnings and
+     * rule changes over it. Reconnects with exponential backoff; on every new connection the cloud component
+     * resends the warnings that were not acknowledged yet, and the dedup window drops the ones already shown.
+     */
+    private void receiveDownlink() {
+        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/downlink";
+        long backoff = 1000;
+        while (true) {
+            try {
+                HttpResponse<InputStream> response = transport.openStream(targetUrl, "X-Edge-Id", EDGE_ID, "X-Edge-Token", EDGE_TOKEN).join();
+                try (InputStream body = response.body()) {
+                    if (response.statusCode() == 200) {
+                        System.out.println("Downlink to the server connected");
+                        backoff = 1000;
+                        readDownlink(response, body);
+                        System.out.println("Downlink to the server closed, reconnecting");
+                    } else {
+                        System.out.println("Downlink refused by the server: " + response.statusCode());
+                    }
+                }
+            } catch (CompletionException | IOException e) {
+                System.out.println("Downlink to the server failed: " + e.getMessage());
+            } finally {
+                downlinkConnected = false;
+            }
+            try {
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, DOWNLINK_MAX_BACKOFF_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads downlink lines until the connection ends. The cloud component sends a heartbeat at the interval given
+     * in X-Heartbeat-Ms; after three intervals without any line the connection is considered dead and closed.
+     */
+    private void readDownlink(HttpResponse<InputStream> response, InputStream body) throws IOException {
+        long epoch = response.headers().firstValueAsLong("X-Producer-Epoch").orElse(0);
+        long heartbeat = response.headers().firstValueAsLong("X-Heartbeat-Ms").orElse(15000);
+        DedupWindow window = dedupWindow("cloud", epoch);
+        downlinkEpoch = epoch;
+        downlinkConnected = true;
+
+        AtomicLong lastRead = new AtomicLong(System.currentTimeMillis());
+        Thread watchdog = Thread.ofVirtual().start(() -> {
+            try {
+                while (System.currentTimeMillis() - lastRead.get() < 3 * heartbeat) {
+                    Thread.sleep(heartbeat);
+                }
+                System.out.println("Downlink to the server is silent, closing it");
+                body.close();
+            } catch (InterruptedException | IOException e) {
+                // Connection already ended
+            }
+        });
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lastRead.set(System.currentTimeMillis());
+                if (line.startsWith("warning ")) {
+                    int space = line.indexOf(' ', 8);
+                    try {
+                        long seq = Long.parseLong(line.substring(8, space > 0 ? space : line.length()));
+                        receiveWarning(window, seq, space > 0 ? line.substring(space + 1) : "");
+                        // A full queue only loses the acknowledgment; the warning comes again and is acknowledged then
+                        downlinkAcks.offer(seq);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring malformed downlink line: " + line);
+                    }
+                } else if (line.startsWith("rules ")) {
+                    if (!line.substring(6).equals(rulesEtag)) {
+                        rulesChanged.release();
+                    }
+                }
+            }
+        } finally {
+            watchdog.interrupt();
+        }
+    }
+
+    /**
+     * Sends the sequence numbers of the warnings received over the downlink to the cloud component, as many as
+     * have accumulated per request, retrying every second until the request succeeds.
+     */
+    private void acknowledgeDownlink() {
+        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/downlink";
+        List<Long> acks = new ArrayList<>();
+        while (true) {
+            try {
+                if (acks.isEmpty()) {
+                    acks.add(downlinkAcks.take());
+                }
+                downlinkAcks.drainTo(acks, 1000 - acks.size());
+                StringBuilder body = new StringBuilder();
+                for (long seq : acks) {
+                    body.append(seq).append('\n');
+                }
+                boolean acknowledged = transport.postAsync(targetUrl, "text/plain", body.toString().getBytes(StandardCharsets.UTF_8),
+                                "X-Edge-Id", EDGE_ID, "X-Edge-Token", EDGE_TOKEN, "X-Producer-Epoch", Long.toString(downlinkEpoch))
+                        .handle((response, e) -> e == null && response.statusCode() == 200)
+                        .join();
+                if (acknowledged) {
+                    acks.clear();
+                } else {
+                    TimeUnit.SECONDS.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends local alerts to the cloud component's /alerts endpoint in order, waiting 5 seconds after a failure.
+     */
+    private void reportAlerts() {
+        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/alerts";
+        while (true) {
+            try {
+                String message = alertReports.takeFirst();
+                boolean reported = transport.postAsync(targetUrl, "text/plain", message.getBytes(StandardCharsets.UTF_8), "X-Edge-Id", EDGE_ID)
+                        .handle((response, e) -> e == null && response.statusCode() == 200)
+                        .join();
+                if (!reported) {
+                    alertReports.offerFirst(message);
+                    TimeUnit.SECONDS.sleep(5);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Executor for the HTTP server, selected with the HTTP_EXECUTOR environment variable: "virtual" (default)
+     * runs every request on its own virtual thread, "fixed" uses a pool of HTTP_EXECUTOR_THREADS platform
+     * threads and "dispatcher" handles requests one by one on the server's dispatcher thread.
+     */
+    private static Executor createServerExecutor() {
+        String mode = System.getenv().getOrDefault("HTTP_EXECUTOR", "virtual");
+        switch (mode) {
+            case "dispatcher":
+                return null;
+            case "fixed":
+                return Executors.newFixedThreadPool((int) envLong("HTTP_EXECUTOR_THREADS", 2L * Runtime.getRuntime().availableProcessors()));
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            default:
+                System.out.println("Unknown HTTP_EXECUTOR " + mode + ", using virtual threads");
+                return Executors.newVirtualThreadPerTaskExecutor();
+        }
     }
 
     private class DataHandler implements HttpHandler {
@@ -53,11 +459,55 @@ public class EdgeDevice {
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
                 byte[] requestBody = exchange.getRequestBody().readAllBytes();
-                String requestString = new String(requestBody);
-                SensorData data = parseJson(requestString);
+                List<SensorData> data;
+                try {
+                    if (BinaryCodec.isBinary(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                        data = BinaryCodec.decode(requestBody, 0, requestBody.length);
+                    } else {
+                        data = List.of(SensorDataCodec.decode(requestBody));
+                    }
+                    Trace trace = Trace.fromHeaders(exchange.getRequestHeaders().getFirst("X-Trace-Id"),
+                            exchange.getRequestHeaders().getFirst("X-Trace-Start"));
+                    for (SensorData reading : data) {
+                        SensorData.parseTimestamp(reading.getTimestamp()); // Windows are keyed on event time
+                        reading.setTrace(trace);
+                    }
+                    if (trace != null) {
+                        long latency = System.currentTimeMillis() - trace.getStartMillis();
+                        traceLatency.observeMicros(latency * 1000);
+                        System.out.println("Trace " + trace.getId() + ": received from sensor " + data.get(0).getSensorId() + " after " + latency + " ms");
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Rejected malformed data: " + e.getMessage());
+                    data = null;
+                }
 
                 if (data != null) {
-                    dataQueue.add(data);
+                    long seq = headerLong(exchange, "X-Seq");
+                    boolean accepted;
+                    if (seq > 0) {
+                        DedupWindow window = dedupWindow(exchange, exchange.getRemoteAddress().getAddress().getHostAddress());
+                        synchronized (window) {
+                            if (window.isNew(seq)) {
+                                accepted = ingest(data);
+                                if (accepted) {
+                                    window.mark(seq);
+                                }
+                            } else {
+                                // A retry of a reading that arrived, only its response got lost: acknowledge it again
+                                duplicateMessages.increment();
+                                accepted = true;
+                            }
+                            exchange.getResponseHeaders().set("X-Ack", Long.toString(window.getContiguous()));
+                        }
+                    } else {
+                        accepted = ingest(data);
+                    }
+                    if (!accepted) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                        exchange.sendResponseHeaders(429, -1); // Too Many Requests
+                        return;
+                    }
 
                     String response = "Data received";
                     exchange.sendResponseHeaders(200, response.getBytes().length);
@@ -73,6 +523,206 @@ public class EdgeDevice {
         }
     }
 
+    /**
+     * Accepts the uplink batches of downstream edge devices whose UPSTREAM_URL points here. Their window summaries
+     * are merged into this edge's windows under the downstream edge's id, so a single combined summary per window
+     * goes further up; single readings (from downstream raw mode) are ingested like readings from sensors. Batches
+     * are deduplicated by their X-Seq range, like the cloud component does it.
+     */
+    private class BatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                return;
+            }
+            String edgeId = exchange.getRequestHeaders().getFirst("X-Edge-Id");
+            String sourceId = "edge:" + (edgeId != null ? edgeId : exchange.getRemoteAddress().getAddress().getHostAddress());
+            List<SensorData> records;
+            try {
+                byte[] requestBody = exchange.getRequestBody().readAllBytes();
+                if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    requestBody = gunzip(requestBody);
+                }
+                if (BinaryCodec.isBinary(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                    records = BinaryCodec.decode(requestBody, 0, requestBody.length);
+                } else {
+                    records = SensorDataCodec.decodeArray(requestBody, 0, requestBody.length);
+                }
+                for (SensorData record : records) {
+                    SensorData.parseTimestamp(record.getTimestamp());
+                }
+            } catch (IllegalArgumentException | IOException e) {
+                System.out.println("Rejected malformed batch from " + sourceId + ": " + e.getMessage());
+                exchange.sendResponseHeaders(400, -1); // Bad Request
+                return;
+            }
+
+            boolean accepted;
+            long[] range = sequenceRange(exchange.getRequestHeaders().getFirst("X-Seq"));
+            if (range != null && range[1] - range[0] + 1 == records.size()) {
+                DedupWindow window = dedupWindow(sourceId, headerLong(exchange, "X-Producer-Epoch"));
+                synchronized (window) {
+                    List<SensorData> fresh = new ArrayList<>();
+                    for (int i = 0; i < records.size(); i++) {
+                        if (window.isNew(range[0] + i)) {
+                            fresh.add(records.get(i));
+                        }
+                    }
+                    duplicateMessages.add(records.size() - fresh.size());
+                    accepted = merge(sourceId, fresh);
+                    if (accepted) {
+                        for (long seq = range[0]; seq <= range[1]; seq++) {
+                            window.mark(seq);
+                        }
+                    }
+                    exchange.getResponseHeaders().set("X-Ack", Long.toString(window.getContiguous()));
+                }
+            } else {
+                accepted = merge(sourceId, records);
+            }
+            if (!accepted) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1); // Too Many Requests
+                return;
+            }
+
+            String response = "Batch received";
+            exchange.sendResponseHeaders(200, response.getBytes().length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+        }
+    }
+
+    /**
+     * Merges the summaries of a downstream batch into the aggregator and ingests its single readings. Nothing is
+     * merged if the readings do not fit into the ingest buffer, so that the retry of the batch counts nothing twice.
+     */
+    private boolean merge(String sourceId, List<SensorData> records) {
+        List<SensorData> readings = new ArrayList<>();
+        for (SensorData record : records) {
+            if (!record.isSummary()) {
+                readings.add(record);
+            }
+        }
+        // Readings go first: a rejected batch is retried whole, so its summaries must not have been merged yet
+        if (!readings.isEmpty() && !ingest(readings)) {
+            return false;
+        }
+        for (SensorData record : records) {
+            if (record.isSummary() && !aggregator.merge(sourceId, record)) {
+                System.out.println("Dropped late summary: " + sourceId + ", Timestamp: " + record.getTimestamp() + ", count " + record.getCount());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inflates a gzip-compressed body, refusing bodies that inflate to more than MAX_BODY_BYTES.
+     */
+    private static byte[] gunzip(byte[] body) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] inflated = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (inflated.length > MAX_BODY_BYTES) {
+                throw new IOException("Body inflates to more than " + MAX_BODY_BYTES + " bytes");
+            }
+            return inflated;
+        }
+    }
+
+    /**
+     * Parses an X-Seq header, "n" or "first-last"; null if it is missing or invalid.
+     */
+    private static long[] sequenceRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        try {
+            long first = Long.parseLong(dash < 0 ? value.trim() : value.substring(0, dash).trim());
+            long last = dash < 0 ? first : Long.parseLong(value.substring(dash + 1).trim());
+            if (first <= 0 || last < first || last - first >= MAX_SEQUENCE_RANGE) {
+                return null;
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands the readings of one request to the aggregator thread and evaluates the alert rules on them. A request
+     * is taken completely or not at all, so a retry after 429 counts nothing twice.
+     */
+    private boolean ingest(List<SensorData> data) {
+        if (!ingestBuffer.offerAll(data)) {
+            return false;
+        }
+        for (SensorData reading : data) {
+            evaluateRules(reading);
+        }
+        return true;
+    }
+
+    /**
+     * The dedup window of the producer of a numbered message, named by its X-Producer-Id header. A new epoch
+     * means the producer's counter started again at 1, so it also starts a new window.
+     */
+    private DedupWindow dedupWindow(HttpExchange exchange, String defaultProducerId) {
+        String producerId = exchange.getRequestHeaders().getFirst("X-Producer-Id");
+        return dedupWindow(producerId != null ? producerId : defaultProducerId, headerLong(exchange, "X-Producer-Epoch"));
+    }
+
+    private DedupWindow dedupWindow(String producerId, long epoch) {
+        return dedupWindows.compute(producerId, (id, window) -> {
+            DedupWindow current = window != null && window.getEpoch() == epoch ? window : new DedupWindow(epoch);
+            current.setLastRound(evictionRound);
+            return current;
+        });
+    }
+
+    /**
+     * Called once per closed window: forgets the dedup windows of producers and the downsampling counters of
+     * sensors that were idle for IDLE_EVICT_WINDOWS windows. A producer that comes back after that starts a new
+     * dedup window.
+     */
+    private void evictIdle() {
+        long round = ++evictionRound;
+        for (String producerId : dedupWindows.keySet()) {
+            dedupWindows.computeIfPresent(producerId, (id, window) -> window.getLastRound() + IDLE_EVICT_WINDOWS <= round ? null : window);
+        }
+        ingestBuffer.evictIdleCounters(IDLE_EVICT_WINDOWS);
+    }
+
+    private static long headerLong(HttpExchange exchange, String name) {
+        String value = exchange.getRequestHeaders().getFirst(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] response = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            }
+        }
+    }
+
     private class ResponseHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -84,8 +734,8 @@ public class EdgeDevice {
                     requestBody.append(line);
                 }
 
-                String responseMessage = requestBody.toString();
-                System.out.println("Received warning from cloud server: " + responseMessage);
+                long seq = headerLong(exchange, "X-Seq");
+                receiveWarning(seq > 0 ? dedupWindow(exchange, "cloud") : null, seq, requestBody.toString());
 
                 String response = "Warning received";
                 exchange.sendResponseHeaders(200, response.getBytes().length);
@@ -98,36 +748,99 @@ public class EdgeDevice {
         }
     }
 
-    private SensorData parseJson(String jsonString) {
+    /**
+     * Shows a warning from the cloud component unless the dedup window shows it was received before.
+     */
+    private void receiveWarning(DedupWindow window, long seq, String message) {
+        if (window == null || window.isNew(seq)) {
+            System.out.println("Received warning from cloud server: " + message);
+            if (window != null) {
+                window.mark(seq);
+            }
+        } else {
+            duplicateMessages.increment();
+        }
+    }
+
+    private static IngestBuffer.OverflowPolicy overflowPolicy() {
+        String policy = System.getenv().getOrDefault("INGEST_OVERFLOW", "reject");
         try {
-            String[] parts = jsonString.replace("{", "").replace("}", "").split(",");
-            String sensorId = parts[0].split(":")[1].replace("\"", "").trim();
-            double temperature = Double.parseDouble(parts[1].split(":")[1].trim());
-            String timestamp = parts[2].split(":")[1].trim().replace("\"", "").trim();
-            return new SensorData(sensorId, temperature, timestamp);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            return IngestBuffer.OverflowPolicy.valueOf(policy.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown INGEST_OVERFLOW " + policy + ", rejecting readings when the buffer is full");
+            return IngestBuffer.OverflowPolicy.REJECT;
         }
     }
 
-    private void sendAverageDataPeriodically() {
+    /**
+     * Moves readings from the ingest buffer into the aggregator, dropping duplicates, and in raw mode also
+     * forwards the readings that are outside the deadband.
+     */
+    private void aggregateReadings() {
         while (true) {
-            try {
-                TimeUnit.SECONDS.sleep(5); // Adjust the interval as needed
-                List<SensorData> dataList = new LinkedList<>();
-                dataQueue.drainTo(dataList);
-
-                if (!dataList.isEmpty()) {
-                    double averageTemperature = dataList.stream()
-                            .mapToDouble(SensorData::getTemperature)
-                            .average()
-                            .orElse(Double.NaN);
-
-                    String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new java.util.Date());
+            SensorData reading = ingestBuffer.poll();
+            readingFilter.evictIdle(System.currentTimeMillis());
+            if (reading == null) {
+                LockSupport.parkNanos(1_000_000);
+                if (Thread.interrupted()) {
+                    break;
+                }
+                continue;
+            }
+            long timestamp = SensorData.parseTimestamp(reading.getTimestamp());
+            if (readingFilter.isDuplicate(reading.getSensorId(), timestamp)) {
+                continue;
+            }
+            if (!aggregator.add(reading)) {
+                System.out.println("Dropped late reading: Sensor ID: " + reading.getSensorId() + ", Timestamp: " + reading.getTimestamp());
+            }
+            if (RAW_UPLINK && readingFilter.shouldForward(reading.getSensorId(), reading.getTemperature(), timestamp)) {
+                processData(reading);
+            }
+        }
+    }
 
-                    SensorData averageData = new SensorData("average", averageTemperature, timeStamp);
-                    processData(averageData);
+    private void sendWindowSummaries() {
+        long reportedShed = 0;
+        long reportedFiltered = 0;
+        while (true) {
+            try {
+                long wait = aggregator.nextCloseMillis() - System.currentTimeMillis();
+                if (wait > 0) {
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                }
+                List<WindowAggregator.WindowResult> windows = aggregator.closeWindows(System.currentTimeMillis());
+                evictIdle();
+                for (WindowAggregator.WindowResult window : windows) {
+                    if (WINDOW_LOG_SENSORS) {
+                        for (SensorData sensor : window.getPerSensor()) {
+                            System.out.println("Window " + sensor.getTimestamp() + ": Sensor ID: " + sensor.getSensorId()
+                                    + ", count " + sensor.getCount() + ", mean " + sensor.getTemperature()
+                                    + ", min " + sensor.getMin() + ", max " + sensor.getMax() + ", variance " + sensor.getVariance());
+                        }
+                    }
+                    SensorData global = window.getGlobal();
+                    System.out.println("Window " + global.getTimestamp() + ": all sensors, count " + global.getCount()
+                            + ", mean " + global.getTemperature() + ", p50 " + global.getQuantiles().quantile(0.5)
+                            + ", p95 " + global.getQuantiles().quantile(0.95) + ", p99 " + global.getQuantiles().quantile(0.99)
+                            + ", about " + global.getSensors().estimate() + " sensors");
+                    // Tail rules (pNN) need the window's quantiles, which only exist here
+                    evaluateRules(global);
+                    processData(global);
+                }
+                long shed = ingestBuffer.getRejected() + ingestBuffer.getDroppedOldest() + ingestBuffer.getDownsampled();
+                if (shed != reportedShed) {
+                    reportedShed = shed;
+                    System.out.println("Shed readings so far: rejected " + ingestBuffer.getRejected()
+                            + ", dropped oldest " + ingestBuffer.getDroppedOldest()
+                            + ", downsampled " + ingestBuffer.getDownsampled());
+                }
+                long filtered = readingFilter.getDuplicates() + readingFilter.getSuppressed() + duplicateMessages.sum();
+                if (filtered != reportedFiltered) {
+                    reportedFiltered = filtered;
+                    System.out.println("Filtered readings so far: duplicates " + readingFilter.getDuplicates()
+                            + ", within deadband " + readingFilter.getSuppressed()
+                            + ", redelivered messages " + duplicateMessages.sum());
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -137,92 +850,191 @@ public class EdgeDevice {
     }
 
     private void processData(SensorData data) {
-        // send data to server here
-        try {
-            if (sendDataToServer(data)) {
-                // Acknowledged
-                System.out.println("Acknowledged: Sensor ID: " + data.getSensorId() + ", Temperature: " + data.getTemperature() + ", Timestamp: " + data.getTimestamp());
-            } else {
-                // Not acknowledged, add to retry queue
-                System.out.println("Not acknowledged, will retry: Sensor ID: " + data.getSensorId() + ", Temperature: " + data.getTemperature() + ", Timestamp: " + data.getTimestamp());
-                retryQueue.add(data);
-                cacheData(data.toJson()); // Cache data on failure
+        // Every record goes through the cache; the batch sender removes it once the server acknowledged it
+        cacheData(SensorDataCodec.encode(data), data.getTrace());
+        synchronized (cache) {
+            cache.notifyAll();
+        }
+    }
+
+    /**
+     * The X-Trace header of a batch: "index:id:start" for every record that carries a trace.
+     */
+    private String traceHeader(List<SegmentedLog.Entry> batch) {
+        if (pendingTraces.isEmpty()) {
+            return "";
+        }
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            Trace trace = pendingTraces.get(sequenceOf(batch.get(i).getData()));
+            if (trace != null) {
+                if (header.length() > 0) {
+                    header.append(',');
+                }
+                header.append(i).append(':').append(trace.getId()).append(':').append(trace.getStartMillis());
             }
-        } catch (Exception e) {
-            // In case of an error, add to retry queue
-            System.out.println("Error processing data, will retry: Sensor ID: " + data.getSensorId() + ", Temperature: " + data.getTemperature() + ", Timestamp: " + data.getTimestamp());
-            retryQueue.add(data);
-            cacheData(data.toJson()); // Cache data on failure
         }
+        return header.toString();
     }
 
-    private boolean sendDataToServer(SensorData data) throws IOException {
-        String targetUrl = "http://" + SERVER_IP + ":" + SERVER_PORT + "/data";
-        URL url = new URL(targetUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
+    /**
+     * The sequence numbers of a batch, "first-last", if its records are numbered consecutively.
+     */
+    private static String sequenceRange(List<SegmentedLog.Entry> batch) {
+        long first = sequenceOf(batch.get(0).getData());
+        for (int i = 1; i < batch.size(); i++) {
+            if (first <= 0 || sequenceOf(batch.get(i).getData()) != first + i) {
+                return "";
+            }
+        }
+        return first > 0 ? first + "-" + (first + batch.size() - 1) : "";
+    }
 
-        String jsonInputString = "{\"sensorId\":\"" + data.getSensorId() + "\", \"temperature\":" + data.getTemperature() + ",\"timestamp\":\"" + data.getTimestamp() + "\"}";
+    private CompletableFuture<Boolean> sendBatchToServer(List<SegmentedLog.Entry> batch) {
+        String targetUrl = UPSTREAM_URL + "/data/batch";
+        String contentType = "application/json";
+        byte[] body = null;
 
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = jsonInputString.getBytes("utf-8");
-            os.write(input, 0, input.length);
-        } catch (IOException e) {
-            System.out.println("Error sending data to server: " + e.getMessage());
-            return false;
+        if (BINARY_UPLINK) {
+            try {
+                List<SensorData> records = new ArrayList<>(batch.size());
+                for (SegmentedLog.Entry entry : batch) {
+                    records.add(SensorDataCodec.decode(recordOf(entry.getData()).getBytes(StandardCharsets.UTF_8)));
+                }
+                body = BinaryCodec.encodeBatch(records);
+                contentType = BinaryCodec.CONTENT_TYPE;
+            } catch (IllegalArgumentException e) {
+                System.out.println("Sending batch as JSON, it cannot be encoded as binary: " + e.getMessage());
+            }
         }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode == 200) {
-            return true;
-        } else {
-            // Read the response message for debugging
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getErrorStream(), "utf-8"))) {
-                StringBuilder response = new StringBuilder();
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
-                System.out.println("Error response from server: " + response.toString());
-            } catch (IOException e) {
-                System.out.println("Error reading the error response: " + e.getMessage());
+        if (body == null) {
+            // Cached entries are already JSON objects, so the batch is just their concatenation into an array
+            StringBuilder jsonInputString = new StringBuilder("[");
+            for (SegmentedLog.Entry entry : batch) {
+                if (jsonInputString.length() > 1) {
+                    jsonInputString.append(',');
+                }
+                jsonInputString.append(recordOf(entry.getData()));
             }
-            return false;
+            jsonInputString.append(']');
+            body = jsonInputString.toString().getBytes(StandardCharsets.UTF_8);
         }
+
+        String contentEncoding = "";
+        if (body.length >= GZIP_MIN_BYTES) {
+            body = gzip(body);
+            contentEncoding = "gzip";
+        }
+
+        long start = System.nanoTime();
+        // With local rules the cloud component does not evaluate this edge's readings again. The sequence numbers
+        // let it skip the records of a batch it already has, when a retry follows a lost acknowledgment.
+        return transport.postAsync(targetUrl, contentType, body, "X-Edge-Id", EDGE_ID, "X-Edge-Token", EDGE_TOKEN,
+                "X-Edge-Alerts", rules.isLoaded() ? "local" : "cloud",
+                "Content-Encoding", contentEncoding,
+                "X-Producer-Epoch", Long.toString(sequence.getEpoch()), "X-Seq", sequenceRange(batch), "X-Trace", traceHeader(batch))
+                .handle((response, e) -> {
+                    uplinkDuration.observeNanos(System.nanoTime() - start);
+                    if (e != null) {
+                        System.out.println("Error sending data to server: " + e.getMessage());
+                        return false;
+                    }
+                    if (response.statusCode() != 200) {
+                        // Print the response message for debugging
+                        System.out.println("Error response from server: " + response.statusCode() + " " + response.body().trim());
+                        return false;
+                    }
+                    return true;
+                });
     }
 
-    private void cacheData(String data) {
-        try (FileWriter fw = new FileWriter(CACHE_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            pw.println(data);
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e); // Cannot happen in memory
         }
+        return out.toByteArray();
     }
 
-    private void handleRetries() {
-        File file = new File(CACHE_FILE);
+    /**
+     * Numbers the record and appends it to the cache, under the cache's lock so that the cache stays in sequence order.
+     */
+    private void cacheData(byte[] data, Trace trace) {
+        try {
+            synchronized (cache) {
+                long seq = sequence.next();
+                if (trace != null && pendingTraces.size() < MAX_PENDING_TRACES) {
+                    pendingTraces.put(seq, trace);
+                }
+                byte[] prefix = (seq + " ").getBytes(StandardCharsets.US_ASCII);
+                byte[] line = Arrays.copyOf(prefix, prefix.length + data.length);
+                System.arraycopy(data, 0, line, prefix.length, data.length);
+                cache.append(line, 0, line.length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Drains the cache in batches of up to {@link #MAX_BATCH_SIZE} records, with up to
+     * {@link #MAX_BATCHES_IN_FLIGHT} batches pipelined on the shared transport. Batches are acknowledged in
+     * cache order, so a failed batch keeps itself and everything after it in the cache. A partial batch waits
+     * {@link #BATCH_LINGER_MS} for more records; after a failure the loop backs off for five seconds.
+     */
+    private void sendBatchesToServer() {
         while (true) {
             try {
-                TimeUnit.SECONDS.sleep(5);
-                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    int count = 0;
-                    while ((line = br.readLine()) != null && count++ < 25) {
-                        if (sendDataToServer(Objects.requireNonNull(SensorData.fromJson(line)))) {
-                            System.out.println("Retry successful: " + line);
-                            deleteFirstLine(file);
-                        }
-                        else {
-                            System.out.println("Retry failed: " + line);
-                            break;
+                synchronized (cache) {
+                    while (cache.isEmpty()) {
+                        cache.wait();
+                    }
+                }
+                try {
+                    int window = MAX_BATCH_SIZE * MAX_BATCHES_IN_FLIGHT;
+                    List<SegmentedLog.Entry> pending = cache.peek(window);
+                    if (pending.size() < MAX_BATCH_SIZE) {
+                        TimeUnit.MILLISECONDS.sleep(BATCH_LINGER_MS);
+                        pending = cache.peek(window);
+                    }
+
+                    List<List<SegmentedLog.Entry>> batches = new ArrayList<>();
+                    List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+                    for (int i = 0; i < pending.size(); i += MAX_BATCH_SIZE) {
+                        List<SegmentedLog.Entry> batch = pending.subList(i, Math.min(i + MAX_BATCH_SIZE, pending.size()));
+                        batches.add(batch);
+                        acks.add(sendBatchToServer(batch));
+                    }
+                    CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).join();
+
+                    boolean failed = false;
+                    for (int i = 0; i < batches.size() && !failed; i++) {
+                        List<SegmentedLog.Entry> batch = batches.get(i);
+                        if (acks.get(i).join()) {
+                            cache.ack(batch.get(batch.size() - 1));
+                            uplinkAcked.increment();
+                            uplinkRecords.add(batch.size());
+                            if (!pendingTraces.isEmpty()) {
+                                for (SegmentedLog.Entry entry : batch) {
+                                    pendingTraces.remove(sequenceOf(entry.getData()));
+                                }
+                            }
+                            System.out.println("Acknowledged batch of " + batch.size() + " records");
+                        } else {
+                            uplinkFailed.increment();
+                            System.out.println("Batch of " + batch.size() + " records not acknowledged, will retry");
+                            failed = true;
                         }
                     }
+                    if (failed) {
+                        TimeUnit.SECONDS.sleep(5);
+                    }
                 } catch (IOException e) {
-                    System.out.println("Error reading cache file: " + e.getMessage());
+                    System.out.println("Error sending cached data: " + e.getMessage());
+                    TimeUnit.SECONDS.sleep(5);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -231,39 +1043,2475 @@ public class EdgeDevice {
         }
     }
 
-    private static void deleteFirstLine(File file) throws IOException {
-        List<String> lines = new ArrayList<>();
-
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            boolean firstLineSkipped = false;
-
-            while ((line = br.readLine()) != null) {
-                if (!firstLineSkipped) {
-                    firstLineSkipped = true;
-                    continue; // Skip the first line
-                }
-                lines.add(line);
-            }
+    /**
+     * Milliseconds, or a number with one of the units ms, s, m, h and d.
+     */
+    private static long parseDuration(String value) {
+        int unitStart = 0;
+        while (unitStart < value.length() && Character.isDigit(value.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0 || unitStart > 12) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+        long amount = Long.parseLong(value.substring(0, unitStart));
+        long duration = switch (value.substring(unitStart)) {
+            case "", "ms" -> amount;
+            case "s" -> TimeUnit.SECONDS.toMillis(amount);
+            case "m" -> TimeUnit.MINUTES.toMillis(amount);
+            case "h" -> TimeUnit.HOURS.toMillis(amount);
+            case "d" -> TimeUnit.DAYS.toMillis(amount);
+            default -> throw new IllegalArgumentException("Invalid duration: " + value);
+        };
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
         }
+        return duration;
+    }
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-            for (String line : lines) {
-                bw.write(line);
-                bw.newLine();
-            }
+    private static double envDouble(String name, double defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Evaluates the cloud component's alert rules on the raw readings, so that alerts are raised right here
+     * instead of after a window and two WAN hops. The rules use the format of the cloud's rules.conf and are
+     * fetched from its /rules endpoint; the last fetched rules are kept in a file, so they also apply after a
+     * restart while the cloud component is unreachable.
+     */
+    static class RuleEngine {
+        private final Map<String, SensorRules> sensors = new ConcurrentHashMap<>();
+        private volatile RuleSet rules;
+
+        /**
+         * Replaces the rules; throws an IllegalArgumentException naming the line if the text has errors.
+         */
+        void load(String text) {
+            rules = RuleSet.parse(text);
+        }
+
+        boolean isLoaded() {
+            return rules != null;
+        }
+
+        int size() {
+            return rules != null ? rules.size() : 0;
+        }
+
+        /**
+         * Evaluates all rules that match the sensor.
+         *
+         * @param quantiles the quantiles of the values summarized by a window summary, or null for a single reading
+         */
+        List<Alert> evaluate(String sensorId, double value, DoubleUnaryOperator quantiles, long timestamp) {
+            RuleSet current = rules;
+            if (current == null) {
+                return List.of();
+            }
+            SensorRules state = sensors.computeIfAbsent(sensorId, k -> new SensorRules());
+            synchronized (state) {
+                if (state.ruleSet != current) {
+                    state.update(current, current.match(sensorId));
+                }
+                List<Alert> alerts = null;
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < state.rules.length; i++) {
+                    Alert alert = state.rules[i].evaluate(state.states[i], sensorId, value, quantiles, timestamp, now);
+                    if (alert != null) {
+                        if (alerts == null) {
+                            alerts = new ArrayList<>();
+                        }
+                        alerts.add(alert);
+                    }
+                }
+                return alerts != null ? alerts : List.of();
+            }
+        }
+
+        /**
+         * The rules matching one sensor with their state. Rules that are unchanged by a reload keep their state.
+         */
+        private static class SensorRules {
+            private RuleSet ruleSet;
+            private Rule[] rules = new Rule[0];
+            private RuleState[] states = new RuleState[0];
+
+            void update(RuleSet ruleSet, Rule[] rules) {
+                RuleState[] states = new RuleState[rules.length];
+                for (int i = 0; i < rules.length; i++) {
+                    for (int j = 0; j < this.rules.length && states[i] == null; j++) {
+                        if (this.rules[j].getDefinition().equals(rules[i].getDefinition())) {
+                            states[i] = this.states[j];
+                        }
+                    }
+                    if (states[i] == null) {
+                        states[i] = new RuleState();
+                    }
+                }
+                this.ruleSet = ruleSet;
+                this.rules = rules;
+                this.states = states;
+            }
+        }
+    }
+
+    /**
+     * A parsed rule file. Rules for an exact sensor id are looked up in a map, patterns are tried in order,
+     * and the result per sensor id is cached.
+     */
+    static class RuleSet {
+        private final String text;
+        private final List<Rule> rules;
+        private final Map<String, Rule[]> matches = new ConcurrentHashMap<>();
+
+        private RuleSet(String text, List<Rule> rules) {
+            this.text = text;
+            this.rules = rules;
+        }
+
+        static RuleSet parse(String text) {
+            List<Rule> rules = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            String[] lines = text.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    Rule rule = Rule.parse(line);
+                    if (!names.add(rule.getName())) {
+                        throw new IllegalArgumentException("duplicate rule name " + rule.getName());
+                    }
+                    rules.add(rule);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+                }
+            }
+            return new RuleSet(text, rules);
+        }
+
+        int size() {
+            return rules.size();
+        }
+
+        String getText() {
+            return text;
+        }
+
+        Rule[] match(String sensorId) {
+            return matches.computeIfAbsent(sensorId, id -> rules.stream().filter(rule -> rule.matches(id)).toArray(Rule[]::new));
+        }
+    }
+
+    static class Rule {
+        enum Metric { VALUE, RATE, AVG, MIN, MAX, QUANTILE }
+
+        private final String name;
+        private final String definition;
+        private final String sensorId; // Exact id, or null if the pattern has wildcards
+        private final Pattern sensorPattern;
+        private final Metric metric;
+        private final String metricLabel;
+        private final long windowMillis;
+        private final double quantile;
+        private final String comparison;
+        private final double threshold;
+        private final String thresholdText;
+        private final double clear;
+        private final int breaches;
+        private final int of;
+        private final long repeatMillis;
+
+        private Rule(String name, String definition, String sensorId, Pattern sensorPattern, Metric metric, String metricLabel,
+                     long windowMillis, double quantile, String comparison, String thresholdText, double clear, int breaches, int of,
+                     long repeatMillis) {
+            this.name = name;
+            this.definition = definition;
+            this.sensorId = sensorId;
+            this.sensorPattern = sensorPattern;
+            this.metric = metric;
+            this.metricLabel = metricLabel;
+            this.windowMillis = windowMillis;
+            this.quantile = quantile;
+            this.comparison = comparison;
+            this.threshold = Double.parseDouble(thresholdText);
+            this.thresholdText = thresholdText;
+            this.clear = clear;
+            this.breaches = breaches;
+            this.of = of;
+            this.repeatMillis = repeatMillis;
+        }
+
+        static Rule parse(String line) {
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 5) {
+                throw new IllegalArgumentException("expected: name sensor-pattern metric comparison threshold [options]");
+            }
+            String name = tokens[0];
+            String pattern = tokens[1];
+            Pattern sensorPattern = null;
+            if (pattern.contains("*")) {
+                StringBuilder regex = new StringBuilder();
+                for (String part : pattern.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(part));
+                }
+                sensorPattern = Pattern.compile(regex.toString());
+            }
+
+            String metricLabel = tokens[2];
+            Metric metric;
+            long windowMillis = 0;
+            double quantile = Double.NaN;
+            if (metricLabel.equals("value")) {
+                metric = Metric.VALUE;
+            } else if (metricLabel.equals("rate")) {
+                metric = Metric.RATE;
+            } else if (metricLabel.matches("(avg|min|max)\\(\\w+\\)")) {
+                metric = Metric.valueOf(metricLabel.substring(0, 3).toUpperCase());
+                windowMillis = parseDuration(metricLabel.substring(4, metricLabel.length() - 1));
+            } else if (metricLabel.matches("p\\d{1,2}(\\.\\d+)?")) {
+                metric = Metric.QUANTILE;
+                quantile = Double.parseDouble(metricLabel.substring(1)) / 100;
+            } else {
+                throw new IllegalArgumentException("unknown metric " + metricLabel);
+            }
+
+            String comparison = tokens[3];
+            if (!List.of(">", ">=", "<", "<=").contains(comparison)) {
+                throw new IllegalArgumentException("unknown comparison " + comparison);
+            }
+            double threshold = parseNumber(tokens[4]);
+            double clear = threshold;
+            int breaches = 1;
+            int of = 1;
+            long repeatMillis = 0;
+            for (int i = 5; i < tokens.length; i++) {
+                String option = tokens[i];
+                if (option.startsWith("clear=")) {
+                    clear = parseNumber(option.substring(6));
+                } else if (option.matches("for=\\d{1,2}/\\d{1,2}")) {
+                    String[] parts = option.substring(4).split("/");
+                    breaches = Integer.parseInt(parts[0]);
+                    of = Integer.parseInt(parts[1]);
+                    if (breaches < 1 || breaches > of || of > 64) {
+                        throw new IllegalArgumentException("for needs 1 <= n <= m <= 64");
+                    }
+                } else if (option.startsWith("repeat=")) {
+                    repeatMillis = parseDuration(option.substring(7));
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+            if (comparison.startsWith(">") ? clear > threshold : clear < threshold) {
+                throw new IllegalArgumentException("clear must not be beyond the threshold");
+            }
+            return new Rule(name, String.join(" ", tokens), sensorPattern == null ? pattern : null, sensorPattern,
+                    metric, metricLabel, windowMillis, quantile, comparison, tokens[4], clear, breaches, of, repeatMillis);
+        }
+
+        private static double parseNumber(String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid number " + value);
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getDefinition() {
+            return definition;
+        }
+
+        boolean matches(String id) {
+            return sensorPattern != null ? sensorPattern.matcher(id).matches() : sensorId.equals(id);
+        }
+
+        /**
+         * @param quantiles the quantiles of the values summarized by a window summary, or null for a single reading
+         */
+        Alert evaluate(RuleState state, String sensor, double value, DoubleUnaryOperator quantiles, long timestamp, long now) {
+            double current = state.update(this, value, quantiles, timestamp);
+            if (Double.isNaN(current)) {
+                return null;
+            }
+            if (!state.active) {
+                boolean breach = switch (comparison) {
+                    case ">" -> current > threshold;
+                    case ">=" -> current >= threshold;
+                    case "<" -> current < threshold;
+                    default -> current <= threshold;
+                };
+                state.history = (state.history << 1 | (breach ? 1 : 0)) & (of == 64 ? -1L : (1L << of) - 1);
+                if (Long.bitCount(state.history) >= breaches) {
+                    state.active = true;
+                    state.history = 0;
+                    state.lastNotified = now;
+                    return new Alert(this, sensor, current, true);
+                }
+            } else if (comparison.startsWith(">") ? current < clear : current > clear) {
+                state.active = false;
+                return new Alert(this, sensor, current, false);
+            } else if (repeatMillis > 0 && now - state.lastNotified >= repeatMillis) {
+                state.lastNotified = now;
+                return new Alert(this, sensor, current, true);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Per rule and sensor: whether the alert is active, which of the recent readings breached, the previous
+     * reading for rate rules and the readings in the window for windowed rules.
+     */
+    static class RuleState {
+        private boolean active;
+        private long history;
+        private long lastNotified;
+        private long previousTimestamp;
+        private double previousValue = Double.NaN;
+        private long[] windowTimes = new long[8];
+        private double[] windowValues = new double[8];
+        private int windowStart;
+        private int windowSize;
+
+        /**
+         * Adds the reading and returns the rule's metric, or NaN if it is not known yet. The quantile of a single
+         * reading is its value.
+         */
+        double update(Rule rule, double value, DoubleUnaryOperator quantiles, long timestamp) {
+            switch (rule.metric) {
+                case VALUE:
+                    return value;
+                case QUANTILE:
+                    return quantiles != null ? quantiles.applyAsDouble(rule.quantile) : value;
+                case RATE:
+                    double rate = Double.NaN;
+                    if (!Double.isNaN(previousValue) && timestamp > previousTimestamp) {
+                        rate = (value - previousValue) * 1000 / (timestamp - previousTimestamp);
+                    }
+                    if (Double.isNaN(previousValue) || timestamp > previousTimestamp) {
+                        previousValue = value;
+                        previousTimestamp = timestamp;
+                    }
+                    return rate;
+                default:
+                    addToWindow(value, timestamp, rule.windowMillis);
+                    double result = rule.metric == Rule.Metric.MIN ? Double.POSITIVE_INFINITY
+                            : rule.metric == Rule.Metric.MAX ? Double.NEGATIVE_INFINITY : 0;
+                    for (int i = 0; i < windowSize; i++) {
+                        double v = windowValues[(windowStart + i) % windowValues.length];
+                        result = rule.metric == Rule.Metric.MIN ? Math.min(result, v)
+                                : rule.metric == Rule.Metric.MAX ? Math.max(result, v) : result + v;
+                    }
+                    return rule.metric == Rule.Metric.AVG ? result / windowSize : result;
+            }
+        }
+
+        private void addToWindow(double value, long timestamp, long windowMillis) {
+            if (windowSize == windowTimes.length) {
+                long[] times = new long[windowTimes.length * 2];
+                double[] values = new double[times.length];
+                for (int i = 0; i < windowSize; i++) {
+                    times[i] = windowTimes[(windowStart + i) % windowTimes.length];
+                    values[i] = windowValues[(windowStart + i) % windowValues.length];
+                }
+                windowTimes = times;
+                windowValues = values;
+                windowStart = 0;
+            }
+            int end = (windowStart + windowSize) % windowTimes.length;
+            windowTimes[end] = timestamp;
+            windowValues[end] = value;
+            windowSize++;
+            while (windowSize > 1 && windowTimes[windowStart] <= timestamp - windowMillis) {
+                windowStart = (windowStart + 1) % windowTimes.length;
+                windowSize--;
+            }
+        }
+    }
+
+    static class Alert {
+        private final Rule rule;
+        private final String sensorId;
+        private final double value;
+        private final boolean firing;
+
+        Alert(Rule rule, String sensorId, double value, boolean firing) {
+            this.rule = rule;
+            this.sensorId = sensorId;
+            this.value = value;
+            this.firing = firing;
+        }
+
+        /**
+         * Identifies the alert, so that an undelivered notification is replaced by a newer one for the same alert.
+         */
+        public String getKey() {
+            return rule.getName() + "/" + sensorId;
+        }
+
+        public boolean isFiring() {
+            return firing;
+        }
+
+        public String getMessage() {
+            if (firing) {
+                return String.format("Warning: %s for %s: %s %.2f %s %s.", rule.getName(), sensorId, rule.metricLabel,
+                        value, rule.comparison, rule.thresholdText);
+            }
+            return String.format("Cleared: %s for %s: %s %.2f.", rule.getName(), sensorId, rule.metricLabel, value);
+        }
+    }
+
+    /**
+     * Per-sensor state of the aggregator thread. Drops readings whose sensor id and timestamp were already seen,
+     * such as a sensor retry whose first attempt did arrive, and decides which readings are forwarded in raw mode:
+     * those that differ from the last forwarded value by at least the deadband, and one at least every max silence
+     * so that the cloud component can tell a steady sensor from a silent one. Timestamps have whole seconds, so a
+     * sensor's seen timestamps are its newest second plus a bitmap of the dedupWindow seconds before it, as in
+     * {@link DedupWindow}. Sensors that sent nothing for a whole eviction interval are forgotten. Not thread-safe.
+     */
+    static class ReadingFilter {
+        private final int dedupWindow;
+        private final double deadband;
+        private final long maxSilenceMillis;
+        private final long evictionIntervalMillis;
+        private final Map<String, SensorState> sensors = new HashMap<>();
+        private final LongAdder duplicates = new LongAdder();
+        private final LongAdder suppressed = new LongAdder();
+        private long generation;
+        private long nextEviction;
+
+        ReadingFilter(int dedupWindow, double deadband, long maxSilenceMillis) {
+            // A power of two, so that a second maps to its bit with a mask
+            this.dedupWindow = Math.max(64, Integer.highestOneBit(Math.max(1, dedupWindow - 1)) << 1);
+            this.deadband = deadband;
+            this.maxSilenceMillis = maxSilenceMillis;
+            // By then neither the seen timestamps nor the last forwarded value of an idle sensor matter any more
+            this.evictionIntervalMillis = Math.max(this.dedupWindow * 1000L, maxSilenceMillis);
+        }
+
+        /**
+         * Returns whether the reading was seen before, and remembers it otherwise. Timestamps more than dedupWindow
+         * seconds before the sensor's newest one are not known any more and count as new.
+         */
+        boolean isDuplicate(String sensorId, long timestamp) {
+            SensorState state = state(sensorId);
+            long second = Math.floorDiv(timestamp, 1000);
+            if (state.newest == Long.MIN_VALUE || second > state.newest) {
+                state.advance(second);
+                return false;
+            }
+            if (second <= state.newest - state.bits.length * 64L) {
+                return false;
+            }
+            if (!state.set(second)) {
+                duplicates.increment();
+                return true;
+            }
+            return false;
+        }
+
+        boolean shouldForward(String sensorId, double value, long timestamp) {
+            SensorState state = state(sensorId);
+            if (!Double.isNaN(state.forwardedValue) && Math.abs(value - state.forwardedValue) < deadband
+                    && timestamp - state.forwardedTimestamp < maxSilenceMillis) {
+                suppressed.increment();
+                return false;
+            }
+            state.forwardedValue = value;
+            state.forwardedTimestamp = timestamp;
+            return true;
+        }
+
+        /**
+         * Forgets the sensors that sent nothing since the previous eviction, at most once per eviction interval.
+         */
+        void evictIdle(long nowMillis) {
+            if (nowMillis < nextEviction) {
+                return;
+            }
+            if (nextEviction != 0) {
+                long current = generation;
+                sensors.values().removeIf(state -> state.generation < current);
+                generation++;
+            }
+            nextEviction = nowMillis + evictionIntervalMillis;
+        }
+
+        long getDuplicates() {
+            return duplicates.sum();
+        }
+
+        long getSuppressed() {
+            return suppressed.sum();
+        }
+
+        private SensorState state(String sensorId) {
+            SensorState state = sensors.get(sensorId);
+            if (state == null) {
+                state = new SensorState(dedupWindow);
+                sensors.put(sensorId, state);
+            }
+            state.generation = generation;
+            return state;
+        }
+
+        private static class SensorState {
+            private final long[] bits;
+            private long newest = Long.MIN_VALUE;
+            private long generation;
+            private double forwardedValue = Double.NaN;
+            private long forwardedTimestamp;
+
+            SensorState(int dedupWindow) {
+                this.bits = new long[dedupWindow / 64];
+            }
+
+            /**
+             * Makes {@code second} the newest one, clearing the bits of the seconds that the window passes.
+             */
+            void advance(long second) {
+                if (newest == Long.MIN_VALUE || second - newest >= bits.length * 64L) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long s = newest + 1; s < second; s++) {
+                        clear(s);
+                    }
+                }
+                newest = second;
+                set(second);
+            }
+
+            /**
+             * Sets the bit of this second; returns false if it was set already.
+             */
+            boolean set(long second) {
+                int bit = (int) (second & (bits.length * 64L - 1));
+                long mask = 1L << bit;
+                boolean unset = (bits[bit >>> 6] & mask) == 0;
+                bits[bit >>> 6] |= mask;
+                return unset;
+            }
+
+            private void clear(long second) {
+                int bit = (int) (second & (bits.length * 64L - 1));
+                bits[bit >>> 6] &= ~(1L << bit);
+            }
+        }
+    }
+
+    /**
+     * The sequence numbers received from one producer: the highest contiguous number, at or below which everything
+     * is a duplicate, and a bitmap of the WINDOW numbers above it. A number beyond the window moves the contiguous
+     * mark up to it, giving up on the gaps it passes, so the state stays at a few hundred bytes per producer. The
+     * gaps given up on are kept as up to MAX_GAPS ranges, and only their numbers still count as new at or below the
+     * contiguous mark; a gap that arrives is taken out of its range. When more ranges pile up, the oldest are
+     * forgotten and their numbers are answered as duplicates: a producer only skips numbers it has lost, so such a
+     * message is far more likely a redelivery than a first delivery.
+     */
+    static class DedupWindow {
+        private static final int WINDOW = 1024;
+        private static final int MAX_GAPS = 64;
+
+        private final long[] bits = new long[WINDOW / 64];
+        private final TreeMap<Long, Long> gaps = new TreeMap<>(); // First to last number of the gaps given up on
+        private final long epoch;
+        private long contiguous;
+        private volatile long lastRound;
+
+        DedupWindow(long epoch) {
+            this.epoch = epoch;
+        }
+
+        long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * The owner's eviction round in which the window was last used.
+         */
+        long getLastRound() {
+            return lastRound;
+        }
+
+        void setLastRound(long round) {
+            lastRound = round;
+        }
+
+        synchronized long getContiguous() {
+            return contiguous;
+        }
+
+        synchronized boolean isNew(long seq) {
+            if (seq <= contiguous) {
+                Map.Entry<Long, Long> gap = gaps.floorEntry(seq);
+                return gap != null && seq <= gap.getValue();
+            }
+            return seq > contiguous + WINDOW || !isSet(seq);
+        }
+
+        synchronized void mark(long seq) {
+            if (seq <= contiguous) {
+                fillGap(seq);
+                return;
+            }
+            long passed = seq - WINDOW;
+            // Stepping through the whole bitmap at most clears all of it
+            long stepTo = Math.min(passed, contiguous + WINDOW);
+            while (contiguous < stepTo) {
+                contiguous++;
+                if (!isSet(contiguous)) {
+                    addGap(contiguous, contiguous);
+                }
+                clear(contiguous);
+            }
+            if (contiguous < passed) {
+                addGap(contiguous + 1, passed);
+                contiguous = passed;
+            }
+            set(seq);
+            while (isSet(contiguous + 1)) {
+                contiguous++;
+                clear(contiguous);
+            }
+        }
+
+        private void addGap(long first, long last) {
+            Map.Entry<Long, Long> previous = gaps.lastEntry();
+            if (previous != null && previous.getValue() == first - 1) {
+                gaps.put(previous.getKey(), last);
+            } else {
+                gaps.put(first, last);
+            }
+            while (gaps.size() > MAX_GAPS) {
+                gaps.pollFirstEntry();
+            }
+        }
+
+        private void fillGap(long seq) {
+            Map.Entry<Long, Long> gap = gaps.floorEntry(seq);
+            if (gap == null || seq > gap.getValue()) {
+                return;
+            }
+            gaps.remove(gap.getKey());
+            if (gap.getKey() < seq) {
+                gaps.put(gap.getKey(), seq - 1);
+            }
+            if (seq < gap.getValue()) {
+                gaps.put(seq + 1, gap.getValue());
+            }
+        }
+
+        private boolean isSet(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long seq) {
+            int bit = (int) (seq & (WINDOW - 1));
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+
+    /**
+     * Trace context of a sampled reading: an id chosen by the sensor and the time at which the sensor sent it.
+     * Sensors send it in the X-Trace-Id and X-Trace-Start headers; uplink batches list the traced records in
+     * X-Trace as "index:id:start" items.
+     */
+    static class Trace {
+        private static final Pattern ID = Pattern.compile("[0-9a-f]{1,32}");
+
+        private final String id;
+        private final long startMillis;
+
+        Trace(String id, long startMillis) {
+            this.id = id;
+            this.startMillis = startMillis;
+        }
+
+        /**
+         * The trace of a request, or null if it has none or an invalid one.
+         */
+        static Trace fromHeaders(String id, String start) {
+            if (id == null || start == null || !ID.matcher(id).matches()) {
+                return null;
+            }
+            try {
+                return new Trace(id, Long.parseLong(start.trim()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+    }
+
+    /**
+     * Registry of the metrics served on /metrics in the Prometheus text format. Counters are LongAdders, so
+     * recording is lock-free and striped across threads, and gauges are callbacks that are only read when the
+     * endpoint is scraped. Series are registered once and then held by their users; labels are name/value pairs.
+     */
+    static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        LongAdder counter(String name, String help, String... labels) {
+            return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labelString(labels), l -> new LongAdder());
+        }
+
+        /**
+         * A counter that is kept elsewhere and read when scraped.
+         */
+        void counter(String name, String help, LongSupplier value, String... labels) {
+            family(name, help, "counter").series.put(labelString(labels), value);
+        }
+
+        void gauge(String name, String help, DoubleSupplier value, String... labels) {
+            family(name, help, "gauge").series.put(labelString(labels), value);
+        }
+
+        /**
+         * Gauges with one label whose values are only known when scraped, such as one per registered peer.
+         */
+        void gauges(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+            family(name, help, "gauge").series.put(label, values);
+        }
+
+        Histogram histogram(String name, String help, String... labels) {
+            return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labelString(labels), l -> new Histogram());
+        }
+
+        /**
+         * Wraps a handler so that its requests are counted by response code and timed.
+         */
+        HttpHandler instrument(String handler, HttpHandler delegate) {
+            Histogram duration = histogram("http_request_duration_seconds", "Time spent handling HTTP requests", "handler", handler);
+            Map<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+            return exchange -> {
+                long start = System.nanoTime();
+                try {
+                    delegate.handle(exchange);
+                } finally {
+                    duration.observeNanos(System.nanoTime() - start);
+                    responses.computeIfAbsent(exchange.getResponseCode(), code -> counter("http_requests_total",
+                            "HTTP requests by handler and response code (-1: no response sent)",
+                            "handler", handler, "code", Integer.toString(code))).increment();
+                }
+            };
+        }
+
+        String scrape() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Family> entry : families.entrySet()) {
+                String name = entry.getKey();
+                Family family = entry.getValue();
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                    String labels = series.getKey();
+                    Object value = series.getValue();
+                    if (value instanceof Histogram histogram) {
+                        histogram.write(name, labels, out);
+                    } else if (value instanceof Supplier<?> supplier) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, ? extends Number> values = (Map<String, ? extends Number>) supplier.get();
+                        for (Map.Entry<String, ? extends Number> v : values.entrySet()) {
+                            writeSample(out, name, labelString(labels, v.getKey()), v.getValue().doubleValue());
+                        }
+                    } else {
+                        double number = value instanceof LongAdder adder ? adder.sum()
+                                : value instanceof LongSupplier supplier ? supplier.getAsLong()
+                                : ((DoubleSupplier) value).getAsDouble();
+                        writeSample(out, name, labels, number);
+                    }
+                }
+            }
+            return out.toString();
+        }
+
+        private Family family(String name, String help, String type) {
+            Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException("Metric " + name + " is a " + family.type);
+            }
+            return family;
+        }
+
+        private static void writeSample(StringBuilder out, String name, String labels, double value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+
+        private static String labelString(String... labels) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"")
+                        .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                        .append('"');
+            }
+            return sb.toString();
+        }
+
+        private static String labelString(String labelName, String value) {
+            return labelString(new String[] {labelName, value});
+        }
+
+        private static class Family {
+            private final String help;
+            private final String type;
+            private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+            Family(String help, String type) {
+                this.help = help;
+                this.type = type;
+            }
+        }
+
+        /**
+         * Durations in microseconds, counted in buckets from 16 µs to about 33 s: every power of two is split into
+         * SUB_BUCKETS linear sub-buckets, as in an HDR histogram, so a bucket bound is at most 25% above the values
+         * in it. The bucket an observation falls into is found with one leading-zero count and a shift, and recording
+         * is a LongAdder increment.
+         */
+        static class Histogram {
+            private static final int FIRST_EXPONENT = 4;
+            private static final int LAST_EXPONENT = 25;
+            private static final int SUB_BUCKETS = 4;
+
+            // Up to 2^FIRST_EXPONENT, the sub-buckets of every further power of two, and +Inf
+            private final LongAdder[] buckets = new LongAdder[(LAST_EXPONENT - FIRST_EXPONENT) * SUB_BUCKETS + 2];
+            private final LongAdder sumMicros = new LongAdder();
+
+            Histogram() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+
+            void observeNanos(long nanos) {
+                observeMicros(nanos / 1000);
+            }
+
+            void observeMicros(long micros) {
+                micros = Math.max(0, micros);
+                int exponent = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1); // Smallest e with micros <= 2^e
+                int index;
+                if (exponent <= FIRST_EXPONENT) {
+                    index = 0;
+                } else if (exponent > LAST_EXPONENT) {
+                    index = buckets.length - 1;
+                } else {
+                    // micros is in (2^(e-1), 2^e]; the sub-bucket k covers up to 2^(e-1) * (1 + (k+1) / SUB_BUCKETS)
+                    int subBucket = (int) (((micros - (1L << (exponent - 1))) * SUB_BUCKETS - 1) >> (exponent - 1));
+                    index = 1 + (exponent - FIRST_EXPONENT - 1) * SUB_BUCKETS + subBucket;
+                }
+                buckets[index].increment();
+                sumMicros.add(micros);
+            }
+
+            /**
+             * The upper bound in microseconds of the bucket with this index, except the last.
+             */
+            private static long upperBoundMicros(int index) {
+                if (index == 0) {
+                    return 1L << FIRST_EXPONENT;
+                }
+                long base = 1L << (FIRST_EXPONENT + (index - 1) / SUB_BUCKETS);
+                return base + base * ((index - 1) % SUB_BUCKETS + 1) / SUB_BUCKETS;
+            }
+
+            private void write(String name, String labels, StringBuilder out) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += buckets[i].sum();
+                    String le = i < buckets.length - 1 ? Double.toString(upperBoundMicros(i) / 1e6) : "+Inf";
+                    writeSample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+                }
+                writeSample(out, name + "_sum", labels, sumMicros.sum() / 1e6);
+                writeSample(out, name + "_count", labels, cumulative);
+            }
+        }
+    }
+
+    /**
+     * Shared outbound HTTP transport. Wraps a single {@link HttpClient} so that connections to a peer are kept
+     * alive and reused, applies connect and read timeouts to every call and caps the number of requests in flight.
+     * Requests beyond the cap fail immediately instead of queueing, so callers fall back to their cache.
+     */
+    static class HttpTransport {
+        private final HttpClient client;
+        private final Duration readTimeout;
+        private final Semaphore inFlight;
+
+        HttpTransport() {
+            this(Duration.ofMillis(envLong("HTTP_CONNECT_TIMEOUT_MS", 3000)),
+                    Duration.ofMillis(envLong("HTTP_READ_TIMEOUT_MS", 10000)),
+                    (int) envLong("HTTP_MAX_IN_FLIGHT", 16));
+        }
+
+        HttpTransport(Duration connectTimeout, Duration readTimeout, int maxInFlight) {
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(connectTimeout)
+                    .build();
+            this.readTimeout = readTimeout;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * Posts the body; headers are given as name/value pairs.
+         */
+        CompletableFuture<HttpResponse<String>> postAsync(String url, String contentType, byte[] body, String... headers) {
+            return sendAsync(url, HttpRequest.BodyPublishers.ofByteArray(body), contentType, headers);
+        }
+
+        CompletableFuture<HttpResponse<String>> getAsync(String url, String... headers) {
+            return sendAsync(url, null, null, headers);
+        }
+
+        /**
+         * Opens a GET whose response body is read as a stream for as long as the server keeps it open. It does not
+         * count against the in-flight cap, and the read timeout only applies until the response headers arrive.
+         */
+        CompletableFuture<HttpResponse<InputStream>> openStream(String url, String... headers) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(URI.create(url))
+                    .timeout(readTimeout);
+            for (int i = 0; i + 1 < headers.length; i += 2) {
+                builder.header(headers[i], headers[i + 1]);
+            }
+            return client.sendAsync(builder.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        }
+
+        private CompletableFuture<HttpResponse<String>> sendAsync(String url, HttpRequest.BodyPublisher body, String contentType, String... headers) {
+            if (!inFlight.tryAcquire()) {
+                return CompletableFuture.failedFuture(new IOException("Too many requests in flight to " + url));
+            }
+            try {
+                HttpRequest.Builder builder = HttpRequest.newBuilder()
+                        .uri(URI.create(url))
+                        .timeout(readTimeout);
+                if (contentType != null) {
+                    builder.header("Content-Type", contentType);
+                }
+                for (int i = 0; i + 1 < headers.length; i += 2) {
+                    if (!headers[i + 1].isEmpty()) {
+                        builder.header(headers[i], headers[i + 1]);
+                    }
+                }
+                HttpRequest request = (body != null ? builder.POST(body) : builder.GET()).build();
+                // The body is always read to the end so that the connection can go back to the pool
+                return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, e) -> inFlight.release());
+            } catch (RuntimeException e) {
+                inFlight.release();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+    /**
+     * Cache lines are "sequence record"; lines cached before messages were numbered are just the record.
+     */
+    static long sequenceOf(String line) {
+        int space = line.indexOf(' ');
+        if (line.startsWith("{") || space <= 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(line, 0, space, 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String recordOf(String line) {
+        return sequenceOf(line) > 0 ? line.substring(line.indexOf(' ') + 1) : line;
+    }
+
+    /**
+     * Persistent sequence numbers for the messages of one producer, starting at 1. The file also holds a random
+     * epoch, drawn when the file is created, so that receivers can tell a producer that lost its counter (and
+     * starts again at 1) from one that resends old messages. Numbers are reserved in blocks of RESERVATION, and a
+     * block is forced to disk before its first number is handed out; after a crash or power loss the counter
+     * continues behind the last reserved block, so it can skip numbers but never hand one out twice.
+     */
+    static class SequenceCounter {
+        private static final int RESERVATION = 256; // Well inside a receiver's dedup window, so the gap is passed quickly
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+        private final long epoch;
+        private long last;
+        private long reserved;
+
+        SequenceCounter(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.read(buffer, 0) == 16) {
+                buffer.flip();
+                epoch = buffer.getLong();
+                reserved = buffer.getLong();
+                last = reserved;
+            } else {
+                epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+                write();
+            }
+        }
+
+        /**
+         * The next number; it belongs to a reservation that is already on disk.
+         */
+        synchronized long next() throws IOException {
+            if (last == reserved) {
+                reserved += RESERVATION;
+                write();
+            }
+            return ++last;
+        }
+
+        long getEpoch() {
+            return epoch;
+        }
+
+        private void write() throws IOException {
+            buffer.clear();
+            buffer.putLong(epoch).putLong(reserved).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Durable append-only cache used by the retry loop. Records are written to numbered segment files, each as its
+     * length (int32), a CRC-32C of the length and the record (int32) and the record bytes; a small offset file
+     * remembers how far the retry loop has acknowledged, so consuming an entry never rewrites the cache. Segments
+     * that have been fully drained are deleted.
+     * <p>
+     * On startup, one sequential pass checks every record of the pending segments. A partly written record at the
+     * end of the newest segment, left by a crash or power loss, is cut off; corrupt bytes anywhere else are moved
+     * to the quarantine directory and their segment is rewritten without them, so that a damaged record can neither
+     * block the retries nor merge with the next one. Segments in the older newline-separated format are converted.
+     */
+    static class SegmentedLog {
+        private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+        private static final int HEADER_BYTES = 8;
+        private static final String SEGMENT_SUFFIX = ".rec";
+        private static final String LINE_SEGMENT_SUFFIX = ".log";
+
+        private final File directory;
+        private final FileChannel offsetChannel;
+        private final ByteBuffer offsetBuffer = ByteBuffer.allocate(16);
+        private final TreeSet<Long> segments = new TreeSet<>();
+        private final CRC32C crc = new CRC32C();
+
+        private long readSegment;
+        private long readOffset;
+        private long writeSegment;
+        private long writeSize;
+        private FileOutputStream writer;
+
+        SegmentedLog(String directoryName, String legacyFile) throws IOException {
+            this.directory = new File(directoryName);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create cache directory " + directory);
+            }
+
+            TreeSet<Long> lineSegments = new TreeSet<>();
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX) || name.endsWith(LINE_SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    TreeSet<Long> kind = name.endsWith(SEGMENT_SUFFIX) ? segments : lineSegments;
+                    try {
+                        kind.add(Long.parseLong(name.substring(0, name.lastIndexOf('.'))));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring unexpected file in cache directory: " + name);
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(lineSegments.isEmpty() ? 0L : lineSegments.last() + 1);
+            }
+
+            this.offsetChannel = FileChannel.open(new File(directory, "offset").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (offsetChannel.read(offsetBuffer, 0) == 16) {
+                offsetBuffer.flip();
+                readSegment = offsetBuffer.getLong();
+                readOffset = offsetBuffer.getLong();
+            }
+            long lineSegment = readSegment;
+            long lineOffset = readOffset;
+            if (!lineSegments.contains(lineSegment)) {
+                lineSegment = lineSegments.isEmpty() ? 0 : lineSegments.first();
+                lineOffset = 0;
+            }
+            if (!segments.contains(readSegment)) {
+                readSegment = segments.first();
+                readOffset = 0;
+            }
+
+            long start = System.nanoTime();
+            for (long segment : new ArrayList<>(segments.headSet(readSegment))) {
+                // Drained, but not deleted before a crash
+                Files.deleteIfExists(segmentFile(segment).toPath());
+                segments.remove(segment);
+            }
+            long pending = 0;
+            for (long segment : new ArrayList<>(segments)) {
+                pending += recover(segment);
+            }
+            writeSegment = segments.last();
+            File active = segmentFile(writeSegment);
+            writeSize = active.length();
+            writer = new FileOutputStream(active, true);
+            writeOffset();
+            if (pending > 0) {
+                System.out.println("Recovered " + pending + " pending records from " + directory + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+
+            for (long segment : lineSegments.tailSet(lineSegment)) {
+                convertLineSegment(segment, segment == lineSegment ? lineOffset : 0);
+            }
+            for (long segment : lineSegments.headSet(lineSegment)) {
+                Files.deleteIfExists(lineSegmentFile(segment).toPath());
+            }
+            migrateLegacyFile(legacyFile);
+        }
+
+        /**
+         * Appends one record to the active segment, rolling over to a new segment once it is full.
+         */
+        synchronized void append(String record) throws IOException {
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            append(bytes, 0, bytes.length);
+        }
+
+        synchronized void append(byte[] record, int offset, int length) throws IOException {
+            int size = HEADER_BYTES + length;
+            if (writeSize > 0 && writeSize + size > MAX_SEGMENT_BYTES) {
+                writer.close();
+                writeSegment++;
+                segments.add(writeSegment);
+                writeSize = 0;
+                writer = new FileOutputStream(segmentFile(writeSegment), true);
+            }
+            ByteBuffer framed = ByteBuffer.allocate(size);
+            framed.putInt(length).putInt(checksum(length, record, offset)).put(record, offset, length);
+            // One write call per record, so that a crash can only tear the last record
+            writer.write(framed.array());
+            writeSize += size;
+        }
+
+        /**
+         * Returns up to {@code max} unacknowledged records, oldest first, without consuming them. A segment that
+         * turns out to be damaged is recovered first, as on startup.
+         */
+        synchronized List<Entry> peek(int max) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            for (long segment : segments.tailSet(readSegment)) {
+                long offset = segment == readSegment ? readOffset : 0;
+                long size = segment == writeSegment ? writeSize : segmentFile(segment).length();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment))))) {
+                    in.skipNBytes(offset);
+                    while (entries.size() < max && offset < size) {
+                        int length = size - offset >= HEADER_BYTES ? in.readInt() : -1;
+                        if (length < 0 || length > size - offset - HEADER_BYTES) {
+                            return repairAndPeek(segment, max);
+                        }
+                        int checksum = in.readInt();
+                        byte[] record = new byte[length];
+                        in.readFully(record);
+                        if (checksum(length, record, 0) != checksum) {
+                            return repairAndPeek(segment, max);
+                        }
+                        offset += HEADER_BYTES + length;
+                        entries.add(new Entry(new String(record, StandardCharsets.UTF_8), segment, offset));
+                    }
+                }
+                if (entries.size() >= max) {
+                    break;
+                }
+            }
+            return entries;
+        }
+
+        private List<Entry> repairAndPeek(long segment, int max) throws IOException {
+            if (segment == writeSegment) {
+                writer.close();
+            }
+            recover(segment);
+            if (segment == writeSegment) {
+                writeSize = segmentFile(segment).length();
+                writer = new FileOutputStream(segmentFile(segment), true);
+            }
+            writeOffset();
+            return peek(max);
+        }
+
+        synchronized boolean isEmpty() {
+            return readSegment == writeSegment && readOffset >= writeSize;
+        }
+
+        /**
+         * Bytes of the records that have not been acknowledged yet.
+         */
+        synchronized long pendingBytes() throws IOException {
+            writer.flush();
+            long bytes = -readOffset;
+            for (long segment : segments.tailSet(readSegment)) {
+                bytes += segment == writeSegment ? writeSize : segmentFile(segment).length();
+            }
+            return bytes;
+        }
+
+        /**
+         * Marks everything up to and including {@code entry} as delivered and deletes drained segments.
+         */
+        synchronized void ack(Entry entry) throws IOException {
+            readSegment = entry.segment;
+            readOffset = entry.end;
+            while (readSegment != writeSegment && readOffset >= segmentFile(readSegment).length()) {
+                Files.deleteIfExists(segmentFile(readSegment).toPath());
+                segments.remove(readSegment);
+                readSegment = segments.higher(readSegment);
+                readOffset = 0;
+            }
+            writeOffset();
+        }
+
+        private void writeOffset() throws IOException {
+            offsetBuffer.clear();
+            offsetBuffer.putLong(readSegment).putLong(readOffset).flip();
+            offsetChannel.write(offsetBuffer, 0);
+        }
+
+        /**
+         * Checks every record of a segment and returns the number of pending ones. Bytes after the last valid
+         * record of the newest segment are a torn write and cut off; other invalid bytes, up to the next offset at
+         * which a valid record starts, are quarantined. The read offset is moved back to a record boundary if the
+         * offset file is ahead of what was written.
+         */
+        private long recover(long segment) throws IOException {
+            Path path = segmentFile(segment).toPath();
+            if (!Files.exists(path)) {
+                return 0;
+            }
+            byte[] bytes = Files.readAllBytes(path);
+            boolean newest = segment == segments.last();
+            long acked = segment == readSegment ? readOffset : 0;
+            ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            long boundary = 0;
+            long pending = 0;
+            boolean quarantined = false;
+            int validEnd = 0;
+            int pos = 0;
+            while (pos < bytes.length) {
+                int size = recordSize(bytes, pos);
+                if (size > 0) {
+                    if (pos + size <= acked) {
+                        boundary = pos + size;
+                    } else {
+                        kept.write(bytes, pos, size);
+                        pending++;
+                    }
+                    pos += size;
+                    validEnd = pos;
+                    continue;
+                }
+                int next = pos + 1;
+                while (next < bytes.length && recordSize(bytes, next) < 0) {
+                    next++;
+                }
+                if (next == bytes.length && newest) {
+                    System.out.println("Cut off " + (next - pos) + " bytes of a partly written record at the end of "
+                            + segmentFile(segment));
+                    break;
+                }
+                quarantine(segment, pos, bytes, next);
+                quarantined = true;
+                pos = next;
+            }
+            if (quarantined) {
+                // Rewrite the segment with the valid pending records only
+                Path temp = Path.of(path + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                    kept.writeTo(out);
+                    out.getFD().sync();
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                boundary = 0;
+            } else if (validEnd < bytes.length) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validEnd);
+                }
+            }
+            if (segment == readSegment) {
+                readOffset = boundary;
+            }
+            return pending;
+        }
+
+        /**
+         * The size of the valid record starting at this offset, or -1 if there is none.
+         */
+        private int recordSize(byte[] bytes, int pos) {
+            if (bytes.length - pos < HEADER_BYTES) {
+                return -1;
+            }
+            int length = ByteBuffer.wrap(bytes, pos, HEADER_BYTES).getInt();
+            if (length < 0 || length > bytes.length - pos - HEADER_BYTES) {
+                return -1;
+            }
+            int checksum = ByteBuffer.wrap(bytes, pos + 4, 4).getInt();
+            return checksum(length, bytes, pos + HEADER_BYTES) == checksum ? HEADER_BYTES + length : -1;
+        }
+
+        private int checksum(int length, byte[] record, int offset) {
+            crc.reset();
+            crc.update(length >>> 24);
+            crc.update(length >>> 16);
+            crc.update(length >>> 8);
+            crc.update(length);
+            crc.update(record, offset, length);
+            return (int) crc.getValue();
+        }
+
+        private void quarantine(long segment, int offset, byte[] bytes, int end) throws IOException {
+            File dir = new File(directory, "quarantine");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create quarantine directory " + dir);
+            }
+            File file = new File(dir, String.format("%020d-%d.bad", segment, offset));
+            Files.write(file.toPath(), Arrays.copyOfRange(bytes, offset, end));
+            System.out.println("Quarantined " + (end - offset) + " corrupt bytes of cache segment " + segment
+                    + " at offset " + offset + " to " + file);
+        }
+
+        /**
+         * Appends the complete lines of a segment in the older newline-separated format, from the given offset on,
+         * as records and deletes it. A last line without newline was torn and is dropped.
+         */
+        private void convertLineSegment(long segment, long offset) throws IOException {
+            Path path = lineSegmentFile(segment).toPath();
+            byte[] bytes = Files.readAllBytes(path);
+            int start = (int) Math.min(offset, bytes.length);
+            for (int i = start; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    if (i > start) {
+                        append(bytes, start, i - start);
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start < bytes.length) {
+                System.out.println("Dropped a partly written line at the end of " + path);
+            }
+            Files.delete(path);
+        }
+
+        private void migrateLegacyFile(String legacyFile) throws IOException {
+            File legacy = new File(legacyFile);
+            if (!legacy.isFile()) {
+                return;
+            }
+            try (BufferedReader br = new BufferedReader(new FileReader(legacy))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        append(line);
+                    }
+                }
+            }
+            Files.delete(legacy.toPath());
+        }
+
+        private File segmentFile(long segment) {
+            return new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+        }
+
+        private File lineSegmentFile(long segment) {
+            return new File(directory, String.format("%020d%s", segment, LINE_SEGMENT_SUFFIX));
+        }
+
+        static class Entry {
+            private final String data;
+            private final long segment;
+            private final long end;
+
+            Entry(String data, long segment, long end) {
+                this.data = data;
+                this.segment = segment;
+                this.end = end;
+            }
+
+            public String getData() {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Bounded, lock-free ingest buffer between the HTTP handlers and the aggregator (a multi-producer,
+     * multi-consumer array queue with per-slot sequence numbers). What happens when it is full depends on the
+     * overflow policy; every reading that is not aggregated because of it is counted by reason.
+     */
+    static class IngestBuffer {
+        enum OverflowPolicy {
+            BLOCK,       // The handler waits until there is room again
+            REJECT,      // The handler answers 429 so that the sensor caches and retries
+            DROP_OLDEST, // The oldest buffered reading makes room for the new one
+            DOWNSAMPLE   // Above half full only every 2nd (above three quarters every 4th) reading of a sensor is kept
+        }
+
+        private final AtomicReferenceArray<SensorData> items;
+        private final AtomicLongArray sequences;
+        private final int capacity;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private final OverflowPolicy policy;
+        private final Map<String, DownsampleCounter> downsampleCounters = new ConcurrentHashMap<>();
+        private volatile long counterRound;
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder droppedOldest = new LongAdder();
+        private final LongAdder downsampled = new LongAdder();
+
+        IngestBuffer(int requestedCapacity, OverflowPolicy policy) {
+            this.capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+            this.mask = capacity - 1;
+            this.items = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            this.policy = policy;
+        }
+
+        OverflowPolicy getPolicy() {
+            return policy;
+        }
+
+        int size() {
+            return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+        }
+
+        /**
+         * Adds the readings of one request according to the overflow policy. With REJECT the slots for all of them
+         * are reserved with a single compare-and-set of the tail, so concurrent requests cannot take the room in
+         * between and a request is either taken completely or rejected completely.
+         *
+         * @return false if the readings were rejected and the sender should back off
+         */
+        boolean offerAll(List<SensorData> data) {
+            if (policy != OverflowPolicy.REJECT) {
+                for (SensorData reading : data) {
+                    offer(reading);
+                }
+                return true;
+            }
+            int count = data.size();
+            long position;
+            do {
+                position = tail.get();
+                // Slots before head + capacity are free or being freed by a consumer that already claimed them
+                if (position + count - head.get() > capacity) {
+                    rejected.add(count);
+                    return false;
+                }
+            } while (!tail.compareAndSet(position, position + count));
+            for (int i = 0; i < count; i++) {
+                long slot = position + i;
+                int index = (int) (slot & mask);
+                while (sequences.get(index) != slot) {
+                    Thread.onSpinWait(); // The consumer of the slot's previous reading has not released it yet
+                }
+                items.set(index, data.get(i));
+                sequences.set(index, slot + 1);
+            }
+            return true;
+        }
+
+        /**
+         * Adds a reading according to the overflow policy.
+         *
+         * @return false if the reading was rejected and the sender should back off
+         */
+        boolean offer(SensorData data) {
+            switch (policy) {
+                case BLOCK:
+                    while (!tryOffer(data)) {
+                        LockSupport.parkNanos(100_000);
+                    }
+                    return true;
+                case DROP_OLDEST:
+                    while (!tryOffer(data)) {
+                        if (poll() != null) {
+                            droppedOldest.increment();
+                        }
+                    }
+                    return true;
+                case DOWNSAMPLE:
+                    int fill = size();
+                    if (fill >= capacity / 2) {
+                        int keepEvery = fill >= capacity / 4 * 3 ? 4 : 2;
+                        DownsampleCounter counter = downsampleCounters.computeIfAbsent(data.getSensorId(), id -> new DownsampleCounter());
+                        counter.round = counterRound;
+                        long n = counter.readings.getAndIncrement();
+                        if (n % keepEvery != 0) {
+                            downsampled.increment();
+                            return true;
+                        }
+                    }
+                    if (!tryOffer(data)) {
+                        downsampled.increment();
+                    }
+                    return true;
+                default:
+                    if (!tryOffer(data)) {
+                        rejected.increment();
+                        return false;
+                    }
+                    return true;
+            }
+        }
+
+        SensorData poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        SensorData item = items.get(index);
+                        items.lazySet(index, null);
+                        sequences.set(index, position + capacity);
+                        return item;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    return null; // Empty
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+
+        /**
+         * Starts a new round and drops the downsampling counters that were not used in the last idleRounds rounds.
+         * A sensor that comes back starts counting again, which only shifts which of its readings are kept.
+         */
+        void evictIdleCounters(int idleRounds) {
+            long round = ++counterRound;
+            downsampleCounters.values().removeIf(counter -> counter.round + idleRounds <= round);
+        }
+
+        long getRejected() {
+            return rejected.sum();
+        }
+
+        long getDroppedOldest() {
+            return droppedOldest.sum();
+        }
+
+        long getDownsampled() {
+            return downsampled.sum();
+        }
+
+        private boolean tryOffer(SensorData item) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        items.set(index, item);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false; // Full
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        private static class DownsampleCounter {
+            private final AtomicLong readings = new AtomicLong();
+            private volatile long round;
+        }
+    }
+
+    /**
+     * Incremental event-time window aggregation. Each reading is folded into per-sensor and global accumulators
+     * (count, mean, M2 for the variance, min, max) of the pane it falls into, so nothing is buffered and adding a
+     * reading is O(1). A window consists of {@code windowMillis / slideMillis} consecutive panes; with equal
+     * window and slide the windows are tumbling, otherwise sliding. A window is closed once its end plus the
+     * allowed lateness has passed on the wall clock. Readings for panes of windows that were already closed,
+     * or too far in the future to fit the pane ring, are dropped and counted. Window summaries of downstream edge
+     * devices are merged into panes whole, with the same parallel combination that merges panes into windows.
+     * Sensors without data for idleWindows windows give up their slot; the last slot moves into the gap, so the
+     * slots stay dense and closing a window only walks the sensors that are still active.
+     */
+    static class WindowAggregator {
+        private final long slideMillis;
+        private final long latenessMillis;
+        private final int panesPerWindow;
+        private final long idlePanes;
+        private final Pane[] ring;
+        private final Map<String, Integer> sensorSlots = new HashMap<>();
+        private final String idScope;
+        private String[] sensorIds = new String[16];
+        private long[] sensorHashes = new long[16];
+        private long[] sensorLastPanes = new long[16];
+
+        private long lastClosedPane;
+        private long droppedReadings;
+        private String lastTimestamp;
+        private long lastEventMillis;
+
+        WindowAggregator(long windowMillis, long slideMillis, long latenessMillis) {
+            this(windowMillis, slideMillis, latenessMillis, "", 60);
+        }
+
+        /**
+         * @param idScope     prefix of the sensor ids counted in the distinct sensor sketch, so that equal sensor ids
+         *                    behind different edges are counted apart
+         * @param idleWindows number of windows without data after which a sensor's slot is freed
+         */
+        WindowAggregator(long windowMillis, long slideMillis, long latenessMillis, String idScope, int idleWindows) {
+            if (slideMillis <= 0 || windowMillis < slideMillis || windowMillis % slideMillis != 0) {
+                throw new IllegalArgumentException("Window size must be a positive multiple of the slide");
+            }
+            this.slideMillis = slideMillis;
+            this.latenessMillis = latenessMillis;
+            this.idScope = idScope;
+            this.panesPerWindow = (int) (windowMillis / slideMillis);
+            // At least a whole window, so that no open window still holds data of a freed slot
+            this.idlePanes = (long) Math.max(1, idleWindows) * panesPerWindow;
+            this.ring = new Pane[panesPerWindow + (int) (latenessMillis / slideMillis) + 2];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new Pane(sensorIds.length);
+            }
+            this.lastClosedPane = Math.floorDiv(System.currentTimeMillis(), slideMillis) - 1;
+        }
+
+        /**
+         * Folds one reading into its pane.
+         *
+         * @return false if the reading was dropped because it is too late or too early
+         * @throws IllegalArgumentException if the timestamp cannot be parsed
+         */
+        synchronized boolean add(SensorData data) {
+            if (!data.getTimestamp().equals(lastTimestamp)) {
+                lastEventMillis = SensorData.parseTimestamp(data.getTimestamp());
+                lastTimestamp = data.getTimestamp();
+            }
+            long paneIndex = Math.floorDiv(lastEventMillis, slideMillis);
+            Pane pane = paneOf(paneIndex);
+            if (pane == null) {
+                droppedReadings++;
+                return false;
+            }
+            int slot = slotOf(data.getSensorId(), paneIndex);
+            pane.add(slot, data.getTemperature(), sensorHashes[slot]);
+            return true;
+        }
+
+        /**
+         * Merges a downstream window summary, whose timestamp is the end of its window, into the pane holding the
+         * last millisecond of that window, under the given source id. Each summary must cover at most one pane,
+         * i.e. come from tumbling windows no longer than this aggregator's slide, or it would be counted in
+         * several windows.
+         *
+         * @return false if the summary was dropped because it is too late or too early
+         */
+        synchronized boolean merge(String sourceId, SensorData summary) {
+            long paneIndex = Math.floorDiv(SensorData.parseTimestamp(summary.getTimestamp()) - 1, slideMillis);
+            Pane pane = paneOf(paneIndex);
+            if (pane == null) {
+                droppedReadings += summary.getCount();
+                return false;
+            }
+            int slot = slotOf(sourceId, paneIndex);
+            pane.merge(slot, summary.getCount(), summary.getTemperature(), summary.getVariance() * summary.getCount(),
+                    summary.getMin(), summary.getMax());
+            if (summary.getQuantiles() != null) {
+                pane.quantiles.merge(summary.getQuantiles());
+            } else {
+                pane.quantiles.add(summary.getTemperature(), summary.getCount());
+            }
+            if (summary.getSensors() != null) {
+                pane.sensors.merge(summary.getSensors());
+            } else {
+                pane.sensors.addHash(sensorHashes[slot]);
+            }
+            return true;
+        }
+
+        /**
+         * The pane with this index, reusing its ring slot if that is free; null if the pane belongs to a closed
+         * window, lies too far in the future for the ring, or its slot is still taken by a pane of an open window.
+         */
+        private Pane paneOf(long paneIndex) {
+            // Beyond this bound the pane's slot could be needed again by a pane of a window that is still open
+            if (paneIndex <= lastClosedPane || paneIndex > lastClosedPane + ring.length - panesPerWindow) {
+                return null;
+            }
+            Pane pane = ring[(int) Math.floorMod(paneIndex, (long) ring.length)];
+            if (pane.index != paneIndex) {
+                if (pane.index > lastClosedPane - panesPerWindow + 1) {
+                    return null;
+                }
+                pane.reset(paneIndex);
+            }
+            return pane;
+        }
+
+        /**
+         * Wall-clock time at which the next window can be closed.
+         */
+        synchronized long nextCloseMillis() {
+            return (lastClosedPane + 2) * slideMillis + latenessMillis;
+        }
+
+        synchronized long getDroppedReadings() {
+            return droppedReadings;
+        }
+
+        synchronized int getSensorCount() {
+            return sensorSlots.size();
+        }
+
+        /**
+         * Closes every window whose end plus the allowed lateness is before {@code nowMillis} and returns the
+         * non-empty ones, oldest first. Then frees the slots of the sensors that have been idle for too long.
+         */
+        synchronized List<WindowResult> closeWindows(long nowMillis) {
+            List<WindowResult> results = new ArrayList<>();
+            while ((lastClosedPane + 2) * slideMillis + latenessMillis <= nowMillis) {
+                long lastPane = ++lastClosedPane;
+                long firstPane = lastPane - panesPerWindow + 1;
+                Stats global = new Stats();
+                QuantileSketch quantiles = new QuantileSketch();
+                HyperLogLog sensors = new HyperLogLog();
+                Stats[] perSensor = new Stats[sensorSlots.size()];
+                for (long p = firstPane; p <= lastPane; p++) {
+                    Pane pane = ring[(int) Math.floorMod(p, (long) ring.length)];
+                    if (pane.index != p || pane.global.count == 0) {
+                        continue;
+                    }
+                    global.merge(pane.global);
+                    quantiles.merge(pane.quantiles);
+                    sensors.merge(pane.sensors);
+                    for (int slot = 0; slot < perSensor.length; slot++) {
+                        if (pane.count[slot] > 0) {
+                            if (perSensor[slot] == null) {
+                                perSensor[slot] = new Stats();
+                            }
+                            perSensor[slot].merge(pane.count[slot], pane.mean[slot], pane.m2[slot], pane.min[slot], pane.max[slot]);
+                        }
+                    }
+                }
+                if (global.count == 0) {
+                    continue;
+                }
+                String end = SensorData.formatTimestamp((lastPane + 1) * slideMillis);
+                List<SensorData> perSensorData = new ArrayList<>();
+                for (int slot = 0; slot < perSensor.length; slot++) {
+                    if (perSensor[slot] != null) {
+                        perSensorData.add(perSensor[slot].toSensorData(sensorIds[slot], end));
+                    }
+                }
+                SensorData average = global.toSensorData("average", end);
+                results.add(new WindowResult(new SensorData(average.getSensorId(), average.getTemperature(), end, average.getCount(),
+                        average.getMin(), average.getMax(), average.getVariance(), quantiles, sensors), perSensorData));
+            }
+            evictIdleSlots();
+            return results;
+        }
+
+        /**
+         * Frees the slots whose last pane left every window more than idlePanes ago, filling each gap with the last
+         * slot, and halves the slot arrays once they are less than a quarter used.
+         */
+        private void evictIdleSlots() {
+            int size = sensorSlots.size();
+            // Downwards, so the slot moved into a gap has already been checked
+            for (int slot = size - 1; slot >= 0; slot--) {
+                if (sensorLastPanes[slot] + idlePanes <= lastClosedPane) {
+                    sensorSlots.remove(sensorIds[slot]);
+                    moveSlot(--size, slot);
+                }
+            }
+            if (sensorIds.length > 16 && size < sensorIds.length / 4) {
+                resizeSlots(sensorIds.length / 2);
+            }
+        }
+
+        private void moveSlot(int from, int to) {
+            if (from != to) {
+                sensorIds[to] = sensorIds[from];
+                sensorHashes[to] = sensorHashes[from];
+                sensorLastPanes[to] = sensorLastPanes[from];
+                sensorSlots.put(sensorIds[to], to);
+            }
+            sensorIds[from] = null;
+            for (Pane pane : ring) {
+                pane.move(from, to);
+            }
+        }
+
+        private void resizeSlots(int capacity) {
+            sensorIds = Arrays.copyOf(sensorIds, capacity);
+            sensorHashes = Arrays.copyOf(sensorHashes, capacity);
+            sensorLastPanes = Arrays.copyOf(sensorLastPanes, capacity);
+            for (Pane pane : ring) {
+                pane.resize(capacity);
+            }
+        }
+
+        private int slotOf(String sensorId, long paneIndex) {
+            Integer slot = sensorSlots.get(sensorId);
+            if (slot != null) {
+                sensorLastPanes[slot] = Math.max(sensorLastPanes[slot], paneIndex);
+                return slot;
+            }
+            int newSlot = sensorSlots.size();
+            if (newSlot == sensorIds.length) {
+                resizeSlots(newSlot * 2);
+            }
+            sensorIds[newSlot] = sensorId;
+            sensorHashes[newSlot] = HyperLogLog.hash(idScope + "/" + sensorId);
+            sensorLastPanes[newSlot] = paneIndex;
+            sensorSlots.put(sensorId, newSlot);
+            return newSlot;
+        }
+
+        /**
+         * Accumulators of one pane, one array element per sensor slot, plus sketches of the values and sensor ids of
+         * all slots.
+         */
+        private static class Pane {
+            private long index = Long.MIN_VALUE;
+            private final Stats global = new Stats();
+            private final QuantileSketch quantiles = new QuantileSketch();
+            private final HyperLogLog sensors = new HyperLogLog();
+            private long[] count;
+            private double[] mean;
+            private double[] m2;
+            private double[] min;
+            private double[] max;
+
+            Pane(int capacity) {
+                count = new long[capacity];
+                mean = new double[capacity];
+                m2 = new double[capacity];
+                min = new double[capacity];
+                max = new double[capacity];
+            }
+
+            void reset(long newIndex) {
+                index = newIndex;
+                global.count = 0;
+                quantiles.clear();
+                sensors.clear();
+                Arrays.fill(count, 0);
+            }
+
+            void resize(int capacity) {
+                count = Arrays.copyOf(count, capacity);
+                mean = Arrays.copyOf(mean, capacity);
+                m2 = Arrays.copyOf(m2, capacity);
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+            }
+
+            /**
+             * Moves the accumulators of one slot to another and empties the old one.
+             */
+            void move(int from, int to) {
+                count[to] = count[from];
+                mean[to] = mean[from];
+                m2[to] = m2[from];
+                min[to] = min[from];
+                max[to] = max[from];
+                count[from] = 0;
+            }
+
+            void add(int slot, double value, long sensorHash) {
+                global.add(value);
+                quantiles.add(value);
+                sensors.addHash(sensorHash);
+                long n = ++count[slot];
+                if (n == 1) {
+                    mean[slot] = value;
+                    m2[slot] = 0;
+                    min[slot] = value;
+                    max[slot] = value;
+                } else {
+                    // Welford's online update
+                    double delta = value - mean[slot];
+                    mean[slot] += delta / n;
+                    m2[slot] += delta * (value - mean[slot]);
+                    min[slot] = Math.min(min[slot], value);
+                    max[slot] = Math.max(max[slot], value);
+                }
+            }
+
+            void merge(int slot, long otherCount, double otherMean, double otherM2, double otherMin, double otherMax) {
+                global.merge(otherCount, otherMean, otherM2, otherMin, otherMax);
+                long n = count[slot];
+                if (n == 0) {
+                    count[slot] = otherCount;
+                    mean[slot] = otherMean;
+                    m2[slot] = otherM2;
+                    min[slot] = otherMin;
+                    max[slot] = otherMax;
+                } else {
+                    // Chan et al. parallel combination, as in Stats
+                    long total = n + otherCount;
+                    double delta = otherMean - mean[slot];
+                    mean[slot] += delta * otherCount / total;
+                    m2[slot] += otherM2 + delta * delta * n * otherCount / total;
+                    count[slot] = total;
+                    min[slot] = Math.min(min[slot], otherMin);
+                    max[slot] = Math.max(max[slot], otherMax);
+                }
+            }
+        }
+
+        /**
+         * Mergeable running statistics.
+         */
+        static class Stats {
+            private long count;
+            private double mean;
+            private double m2;
+            private double min;
+            private double max;
+
+            void add(double value) {
+                merge(1, value, 0, value, value);
+            }
+
+            void merge(Stats other) {
+                merge(other.count, other.mean, other.m2, other.min, other.max);
+            }
+
+            void merge(long otherCount, double otherMean, double otherM2, double otherMin, double otherMax) {
+                if (otherCount == 0) {
+                    return;
+                }
+                if (count == 0) {
+                    count = otherCount;
+                    mean = otherMean;
+                    m2 = otherM2;
+                    min = otherMin;
+                    max = otherMax;
+                    return;
+                }
+                // Chan et al. parallel combination of two partial variances
+                long total = count + otherCount;
+                double delta = otherMean - mean;
+                mean += delta * otherCount / total;
+                m2 += otherM2 + delta * delta * count * otherCount / total;
+                count = total;
+                min = Math.min(min, otherMin);
+                max = Math.max(max, otherMax);
+            }
+
+            SensorData toSensorData(String sensorId, String timestamp) {
+                return new SensorData(sensorId, mean, timestamp, count, min, max, m2 / count);
+            }
+        }
+
+        static class WindowResult {
+            private final SensorData global;
+            private final List<SensorData> perSensor;
+
+            WindowResult(SensorData global, List<SensorData> perSensor) {
+                this.global = global;
+                this.perSensor = perSensor;
+            }
+
+            public SensorData getGlobal() {
+                return global;
+            }
+
+            public List<SensorData> getPerSensor() {
+                return perSensor;
+            }
+        }
+    }
+
+    /**
+     * Mergeable quantile sketch with a relative error guarantee (DDSketch, Masson et al.). Values are counted in
+     * logarithmic buckets: bucket k holds the magnitudes in (gamma^(k-1), gamma^k] with gamma = (1 + a) / (1 - a),
+     * so every quantile is estimated within a relative error of a = 1%. Merging adds bucket counts and loses
+     * nothing, unlike merging t-digests or KLL sketches. Positive and negative values have their own buckets and
+     * magnitudes below MIN_MAGNITUDE count as zero. Each sign keeps at most MAX_BUCKETS buckets, beyond which the
+     * smallest magnitudes are collapsed into one; temperatures need a few dozen.
+     */
+    static class QuantileSketch {
+        private static final double ACCURACY = 0.01;
+        private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+        private static final double MIN_MAGNITUDE = 1e-3;
+        private static final int MAX_BUCKETS = 2048;
+        private static final byte FORMAT = 1;
+
+        private final Buckets positive = new Buckets();
+        private final Buckets negative = new Buckets();
+        private long zeroCount;
+        private long count;
+
+        void add(double value) {
+            add(value, 1);
+        }
+
+        void add(double value, long n) {
+            if (Double.isNaN(value) || n <= 0) {
+                return;
+            }
+            if (value > MIN_MAGNITUDE) {
+                positive.add(key(value), n);
+            } else if (value < -MIN_MAGNITUDE) {
+                negative.add(key(-value), n);
+            } else {
+                zeroCount += n;
+            }
+            count += n;
+        }
+
+        void merge(QuantileSketch other) {
+            positive.merge(other.positive);
+            negative.merge(other.negative);
+            zeroCount += other.zeroCount;
+            count += other.count;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void clear() {
+            positive.clear();
+            negative.clear();
+            zeroCount = 0;
+            count = 0;
+        }
+
+        /**
+         * The estimated value at quantile q (0 to 1), NaN if the sketch is empty.
+         */
+        double quantile(double q) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long rank = (long) (Math.max(0, Math.min(1, q)) * (count - 1));
+            long seen = 0;
+            for (int key = negative.maxKey; !negative.isEmpty() && key >= negative.minKey; key--) {
+                seen += negative.get(key);
+                if (seen > rank) {
+                    return -value(key);
+                }
+            }
+            seen += zeroCount;
+            if (seen > rank) {
+                return 0;
+            }
+            for (int key = positive.minKey; key < positive.maxKey; key++) {
+                seen += positive.get(key);
+                if (seen > rank) {
+                    return value(key);
+                }
+            }
+            return value(positive.maxKey);
+        }
+
+        /**
+         * Format byte, zero count, then per sign the number of buckets, the lowest key (zigzag) and the counts,
+         * all as varints.
+         */
+        byte[] toBytes() {
+            ByteBuffer out = ByteBuffer.allocate(1 + 10 + positive.maxEncodedSize() + negative.maxEncodedSize());
+            out.put(FORMAT);
+            BinaryCodec.putVarLong(out, zeroCount);
+            positive.write(out);
+            negative.write(out);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a valid sketch
+         */
+        static QuantileSketch fromBytes(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                if (in.get() != FORMAT) {
+                    throw new IllegalArgumentException("Unknown quantile sketch format");
+                }
+                QuantileSketch sketch = new QuantileSketch();
+                sketch.zeroCount = BinaryCodec.getVarLong(in);
+                sketch.count = sketch.zeroCount + sketch.positive.read(in) + sketch.negative.read(in);
+                if (in.hasRemaining() || sketch.zeroCount < 0 || sketch.count < sketch.zeroCount) {
+                    throw new IllegalArgumentException("Invalid quantile sketch");
+                }
+                return sketch;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated quantile sketch");
+            }
+        }
+
+        private static int key(double magnitude) {
+            return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+        }
+
+        private static double value(int key) {
+            // The point of the bucket with the same relative distance to both of its bounds
+            return 2 * Math.pow(GAMMA, key) / (GAMMA + 1);
+        }
+
+        /**
+         * Counts of the keys minKey to maxKey, stored from base on with some room on both sides.
+         */
+        private static class Buckets {
+            private long[] counts;
+            private int base;
+            private int minKey;
+            private int maxKey;
+
+            boolean isEmpty() {
+                return counts == null;
+            }
+
+            long get(int key) {
+                return counts[key - base];
+            }
+
+            void add(int key, long n) {
+                if (counts == null) {
+                    counts = new long[32];
+                    base = key - 16;
+                    minKey = key;
+                    maxKey = key;
+                } else if (key < minKey || key > maxKey) {
+                    extend(Math.min(key, minKey), Math.max(key, maxKey));
+                }
+                counts[Math.max(key, minKey) - base] += n;
+            }
+
+            void merge(Buckets other) {
+                if (other.counts == null) {
+                    return;
+                }
+                if (counts == null) {
+                    add(other.maxKey, 0);
+                }
+                extend(Math.min(minKey, other.minKey), Math.max(maxKey, other.maxKey));
+                for (int key = other.minKey; key <= other.maxKey; key++) {
+                    counts[Math.max(key, minKey) - base] += other.counts[key - other.base];
+                }
+            }
+
+            void clear() {
+                counts = null;
+            }
+
+            /**
+             * Widens the key range, collapsing the lowest keys if it would exceed MAX_BUCKETS.
+             */
+            private void extend(int newMin, int newMax) {
+                newMin = Math.max(newMin, newMax - MAX_BUCKETS + 1);
+                if (newMin < base || newMax >= base + counts.length || newMin > minKey) {
+                    int width = newMax - newMin + 1;
+                    int length = Math.min(MAX_BUCKETS, width + 32);
+                    int newBase = newMin - (length - width) / 2;
+                    long[] grown = new long[length];
+                    for (int key = minKey; key <= maxKey; key++) {
+                        grown[Math.max(key, newMin) - newBase] += counts[key - base];
+                    }
+                    counts = grown;
+                    base = newBase;
+                }
+                minKey = newMin;
+                maxKey = newMax;
+            }
+
+            int maxEncodedSize() {
+                return 10 + (counts == null ? 0 : 5 + 10 * (maxKey - minKey + 1));
+            }
+
+            void write(ByteBuffer out) {
+                if (counts == null) {
+                    BinaryCodec.putVarLong(out, 0);
+                    return;
+                }
+                BinaryCodec.putVarLong(out, maxKey - minKey + 1);
+                BinaryCodec.putVarLong(out, ((long) minKey << 1) ^ (minKey >> 31));
+                for (int key = minKey; key <= maxKey; key++) {
+                    BinaryCodec.putVarLong(out, counts[key - base]);
+                }
+            }
+
+            /**
+             * Reads what {@link #write} wrote into this empty instance and returns the total count.
+             */
+            long read(ByteBuffer in) {
+                long width = BinaryCodec.getVarLong(in);
+                if (width == 0) {
+                    return 0;
+                }
+                if (width < 0 || width > MAX_BUCKETS) {
+                    throw new IllegalArgumentException("Invalid quantile sketch width " + width);
+                }
+                long zigzag = BinaryCodec.getVarLong(in);
+                int first = (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+                long total = 0;
+                for (int i = 0; i < width; i++) {
+                    long n = BinaryCodec.getVarLong(in);
+                    if (n < 0) {
+                        throw new IllegalArgumentException("Invalid quantile sketch count");
+                    }
+                    add(first + i, n);
+                    total += n;
+                }
+                return total;
+            }
+        }
+    }
+
+    /**
+     * HyperLogLog sketch of distinct ids (Flajolet et al.) with 2^10 one-byte registers: 1 KiB of memory and a
+     * standard error of about 3%. Merging takes the maximum of each register. Small cardinalities use linear
+     * counting. Sketches with few used registers are serialized sparsely.
+     */
+    static class HyperLogLog {
+        private static final int P = 10;
+        private static final int M = 1 << P;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+        private static final byte SPARSE = 1;
+        private static final byte DENSE = 2;
+
+        private final byte[] registers = new byte[M];
+
+        /**
+         * 64-bit hash of an id: FNV-1a over its characters, then the SplitMix64 finalizer to spread the bits.
+         */
+        static long hash(String id) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                h = (h ^ id.charAt(i)) * 0x100000001b3L;
+            }
+            h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+            h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+            return h ^ (h >>> 31);
+        }
+
+        void addHash(long hash) {
+            int index = (int) (hash >>> (64 - P));
+            // Position of the first 1 bit after the index bits; the guard bit caps it at 64 - P + 1
+            byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1);
+            if (rank > registers[index]) {
+                registers[index] = rank;
+            }
+        }
+
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < M; i++) {
+                if (other.registers[i] > registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(registers, (byte) 0);
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += Math.scalb(1.0, -register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = ALPHA * M * M / sum;
+            if (estimate <= 2.5 * M && zeros > 0) {
+                estimate = M * Math.log((double) M / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        /**
+         * Sparse: format byte, number of used registers, then per register the index delta (varint) and the value.
+         * Dense: format byte and all registers.
+         */
+        byte[] toBytes() {
+            int used = 0;
+            for (byte register : registers) {
+                if (register != 0) {
+                    used++;
+                }
+            }
+            if (used * 3 >= M) {
+                byte[] bytes = new byte[1 + M];
+                bytes[0] = DENSE;
+                System.arraycopy(registers, 0, bytes, 1, M);
+                return bytes;
+            }
+            ByteBuffer out = ByteBuffer.allocate(1 + 5 + used * 3);
+            out.put(SPARSE);
+            BinaryCodec.putVarLong(out, used);
+            int previous = 0;
+            for (int i = 0; i < M; i++) {
+                if (registers[i] != 0) {
+                    BinaryCodec.putVarLong(out, i - previous);
+                    out.put(registers[i]);
+                    previous = i;
+                }
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a valid sketch
+         */
+        static HyperLogLog fromBytes(byte[] bytes) {
+            HyperLogLog sketch = new HyperLogLog();
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                byte format = in.get();
+                if (format == DENSE) {
+                    in.get(sketch.registers);
+                } else if (format == SPARSE) {
+                    long used = BinaryCodec.getVarLong(in);
+                    if (used < 0 || used > M) {
+                        throw new IllegalArgumentException("Invalid distinct count sketch");
+                    }
+                    long index = 0;
+                    for (int i = 0; i < used; i++) {
+                        index += BinaryCodec.getVarLong(in);
+                        if (index < 0 || index >= M) {
+                            throw new IllegalArgumentException("Invalid distinct count sketch");
+                        }
+                        sketch.registers[(int) index] = in.get();
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown distinct count sketch format");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated distinct count sketch");
+            }
+            for (byte register : sketch.registers) {
+                if (register < 0 || register > 64 - P + 1) {
+                    throw new IllegalArgumentException("Invalid distinct count sketch");
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Invalid distinct count sketch");
+            }
+            return sketch;
         }
     }
 
     public static class SensorData {
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss");
+
         private final String sensorId;
         private final double temperature;
         private final String timestamp;
+        // Window statistics; only set on summaries from the edge aggregator, count is 0 for single readings
+        private final long count;
+        private final double min;
+        private final double max;
+        private final double variance;
+        // Sketches of all values and sensor ids of a window; only set on the global summary, null otherwise
+        private final QuantileSketch quantiles;
+        private final HyperLogLog sensors;
+        private Trace trace; // Not part of the record's encoding
 
         public SensorData(String sensorId, double temperature, String timestamp) {
+            this(sensorId, temperature, timestamp, 0, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        public SensorData(String sensorId, double temperature, String timestamp, long count, double min, double max, double variance) {
+            this(sensorId, temperature, timestamp, count, min, max, variance, null, null);
+        }
+
+        public SensorData(String sensorId, double temperature, String timestamp, long count, double min, double max, double variance,
+                          QuantileSketch quantiles, HyperLogLog sensors) {
             this.sensorId = sensorId;
             this.temperature = temperature;
             this.timestamp = timestamp;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.variance = variance;
+            this.quantiles = quantiles;
+            this.sensors = sensors;
         }
 
         public String getSensorId() {
@@ -278,21 +3526,740 @@ public class EdgeDevice {
             return timestamp;
         }
 
+        public boolean isSummary() {
+            return count > 0;
+        }
+
+        public Trace getTrace() {
+            return trace;
+        }
+
+        void setTrace(Trace trace) {
+            this.trace = trace;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getVariance() {
+            return variance;
+        }
+
+        public QuantileSketch getQuantiles() {
+            return quantiles;
+        }
+
+        public HyperLogLog getSensors() {
+            return sensors;
+        }
+
+        /**
+         * Parses a timestamp in the yyyy.MM.dd.HH.mm.ss format into epoch millis in the local time zone.
+         *
+         * @throws IllegalArgumentException if the timestamp has a different format
+         */
+        static long parseTimestamp(String timestamp) {
+            try {
+                return LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Timestamp is not in yyyy.MM.dd.HH.mm.ss format: " + timestamp);
+            }
+        }
+
+        static String formatTimestamp(long epochMillis) {
+            return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()));
+        }
+
         public String toJson() {
-            return "{\"sensorId\":\"" + sensorId + "\",\"temperature\":" + temperature + ",\"timestamp\":\"" + timestamp + "\"}";
+            return new String(SensorDataCodec.encode(this), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Streaming JSON codec for {@link SensorData}. Reads and writes the UTF-8 bytes of a request body directly
+     * instead of splitting strings, accepts the fields in any order and with any whitespace, and skips unknown
+     * fields. Malformed input is reported as an {@link IllegalArgumentException} naming the offending offset.
+     */
+    static final class SensorDataCodec {
+        private static final byte[] SENSOR_ID = "sensorId".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TEMPERATURE = "temperature".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIMESTAMP = "timestamp".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] COUNT = "count".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MIN = "min".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MAX = "max".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] VARIANCE = "variance".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] QUANTILES = "quantiles".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SENSORS = "sensors".getBytes(StandardCharsets.US_ASCII);
+        private static final double[] POW10 = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        private SensorDataCodec(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        static byte[] encode(SensorData data) {
+            byte[] quantiles = data.getQuantiles() == null ? null : Base64.getEncoder().encode(data.getQuantiles().toBytes());
+            byte[] sensors = data.getSensors() == null ? null : Base64.getEncoder().encode(data.getSensors().toBytes());
+            ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(data.getSensorId(), data.getTimestamp()) + 128
+                    + (quantiles == null ? 0 : quantiles.length + 16) + (sensors == null ? 0 : sensors.length + 16));
+            encode(data.getSensorId(), data.getTemperature(), data.getTimestamp(), out);
+            if (data.isSummary()) {
+                // Reopen the object to append the window statistics
+                out.position(out.position() - 1);
+                out.put(COUNT_PREFIX);
+                writeNumber(Long.toString(data.getCount()), out);
+                out.put(MIN_PREFIX);
+                writeNumber(Double.toString(data.getMin()), out);
+                out.put(MAX_PREFIX);
+                writeNumber(Double.toString(data.getMax()), out);
+                out.put(VARIANCE_PREFIX);
+                writeNumber(Double.toString(data.getVariance()), out);
+                if (quantiles != null) {
+                    out.put(QUANTILES_PREFIX).put((byte) '"').put(quantiles).put((byte) '"');
+                }
+                if (sensors != null) {
+                    out.put(SENSORS_PREFIX).put((byte) '"').put(sensors).put((byte) '"');
+                }
+                out.put((byte) '}');
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        static SensorData decode(byte[] buf) {
+            return decode(buf, 0, buf.length);
+        }
+
+        static SensorData decode(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return decode(copy);
+        }
+
+        /**
+         * Parses exactly one JSON object.
+         *
+         * @throws IllegalArgumentException if the input is not a valid record
+         */
+        static SensorData decode(byte[] buf, int offset, int length) {
+            SensorDataCodec reader = new SensorDataCodec(buf, offset, length);
+            SensorData data = reader.readObject();
+            reader.expectEnd();
+            return data;
+        }
+
+        /**
+         * Parses a JSON array of records.
+         *
+         * @throws IllegalArgumentException if the input is not an array of valid records
+         */
+        static List<SensorData> decodeArray(byte[] buf, int offset, int length) {
+            SensorDataCodec reader = new SensorDataCodec(buf, offset, length);
+            List<SensorData> records = new ArrayList<>();
+            reader.skipWhitespace();
+            reader.expect('[');
+            reader.skipWhitespace();
+            if (!reader.consume(']')) {
+                do {
+                    records.add(reader.readObject());
+                    reader.skipWhitespace();
+                } while (reader.consume(','));
+                reader.expect(']');
+            }
+            reader.expectEnd();
+            return records;
+        }
+
+        private SensorData readObject() {
+            skipWhitespace();
+            expect('{');
+            String sensorId = null;
+            String timestamp = null;
+            double temperature = 0;
+            boolean hasTemperature = false;
+            long count = 0;
+            double min = Double.NaN;
+            double max = Double.NaN;
+            double variance = Double.NaN;
+            QuantileSketch quantiles = null;
+            HyperLogLog sensors = null;
+
+            skipWhitespace();
+            if (!consume('}')) {
+                do {
+                    skipWhitespace();
+                    expect('"');
+                    int keyStart = pos;
+                    int keyEnd = skipStringBody();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    if (keyEquals(keyStart, keyEnd, SENSOR_ID)) {
+                        sensorId = readString();
+                    } else if (keyEquals(keyStart, keyEnd, TEMPERATURE)) {
+                        temperature = readNumber();
+                        hasTemperature = true;
+                    } else if (keyEquals(keyStart, keyEnd, TIMESTAMP)) {
+                        timestamp = readString();
+                    } else if (keyEquals(keyStart, keyEnd, COUNT)) {
+                        count = (long) readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, MIN)) {
+                        min = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, MAX)) {
+                        max = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, VARIANCE)) {
+                        variance = readNumber();
+                    } else if (keyEquals(keyStart, keyEnd, QUANTILES)) {
+                        int valueStart = pos;
+                        try {
+                            quantiles = QuantileSketch.fromBytes(Base64.getDecoder().decode(readString()));
+                        } catch (IllegalArgumentException e) {
+                            pos = valueStart;
+                            throw error("Invalid quantiles");
+                        }
+                    } else if (keyEquals(keyStart, keyEnd, SENSORS)) {
+                        int valueStart = pos;
+                        try {
+                            sensors = HyperLogLog.fromBytes(Base64.getDecoder().decode(readString()));
+                        } catch (IllegalArgumentException e) {
+                            pos = valueStart;
+                            throw error("Invalid sensors");
+                        }
+                    } else {
+                        skipValue();
+                    }
+                    skipWhitespace();
+                } while (consume(','));
+                expect('}');
+            }
+
+            if (sensorId == null || !hasTemperature || timestamp == null) {
+                throw error("Record needs sensorId, temperature and timestamp");
+            }
+            return new SensorData(sensorId, temperature, timestamp, count, min, max, variance, quantiles, sensors);
+        }
+
+        private String readString() {
+            expect('"');
+            int start = pos;
+            boolean ascii = true;
+            boolean escaped = false;
+            while (true) {
+                if (pos >= end) {
+                    throw error("Unterminated string");
+                }
+                byte b = buf[pos];
+                if (b == '"') {
+                    break;
+                } else if (b == '\\') {
+                    escaped = true;
+                    pos += 2;
+                } else if (b < 0) {
+                    ascii = false;
+                    pos++;
+                } else if (b < 0x20) {
+                    throw error("Control character in string");
+                } else {
+                    pos++;
+                }
+            }
+            int stringEnd = pos++;
+            if (!escaped) {
+                return new String(buf, start, stringEnd - start, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            return unescape(start, stringEnd);
+        }
+
+        private String unescape(int start, int stringEnd) {
+            StringBuilder sb = new StringBuilder(stringEnd - start);
+            int runStart = start;
+            int i = start;
+            while (i < stringEnd) {
+                if (buf[i] != '\\') {
+                    i++;
+                    continue;
+                }
+                sb.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8));
+                byte c = buf[i + 1];
+                switch (c) {
+                    case '"': case '\\': case '/': sb.append((char) c); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (i + 6 > stringEnd) {
+                            throw error("Truncated unicode escape");
+                        }
+                        int code = 0;
+                        for (int k = i + 2; k < i + 6; k++) {
+                            int digit = Character.digit(buf[k], 16);
+                            if (digit < 0) {
+                                throw error("Invalid unicode escape");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        sb.append((char) code);
+                        i += 4;
+                        break;
+                    default:
+                        throw error("Invalid escape character");
+                }
+                i += 2;
+                runStart = i;
+            }
+            sb.append(new String(buf, runStart, stringEnd - runStart, StandardCharsets.UTF_8));
+            return sb.toString();
+        }
+
+        /**
+         * Parses a JSON number. Numbers with at most 15 significant digits and a small exponent are converted
+         * exactly with one multiplication or division; anything else falls back to {@link Double#parseDouble}.
+         */
+        private double readNumber() {
+            int start = pos;
+            boolean negative = consume('-');
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean exact = true;
+            int intStart = pos;
+            while (pos < end && isDigit(buf[pos])) {
+                if (digits < 15) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else {
+                    exact = false;
+                }
+                pos++;
+            }
+            if (pos == intStart) {
+                throw error("Expected a number");
+            }
+            if (consume('.')) {
+                int fractionStart = pos;
+                while (pos < end && isDigit(buf[pos])) {
+                    if (digits < 15) {
+                        mantissa = mantissa * 10 + (buf[pos] - '0');
+                        if (mantissa != 0) {
+                            digits++;
+                        }
+                        exponent--;
+                    } else if (buf[pos] != '0') {
+                        exact = false;
+                    }
+                    pos++;
+                }
+                if (pos == fractionStart) {
+                    throw error("Expected digits after the decimal point");
+                }
+            }
+            if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+                pos++;
+                boolean negativeExponent = consume('-');
+                if (!negativeExponent) {
+                    consume('+');
+                }
+                int expStart = pos;
+                int value = 0;
+                while (pos < end && isDigit(buf[pos])) {
+                    value = Math.min(value * 10 + (buf[pos] - '0'), 100_000);
+                    pos++;
+                }
+                if (pos == expStart) {
+                    throw error("Expected digits in the exponent");
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+
+            if (exact && exponent >= -22 && exponent <= 22) {
+                double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+
+        private void skipValue() {
+            if (pos >= end) {
+                throw error("Expected a value");
+            }
+            byte b = buf[pos];
+            if (b == '"') {
+                pos++;
+                skipStringBody();
+            } else if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    if (pos >= end) {
+                        throw error("Unterminated value");
+                    }
+                    b = buf[pos++];
+                    if (b == '"') {
+                        skipStringBody();
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else {
+                int start = pos;
+                while (pos < end && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw error("Expected a value");
+                }
+            }
+        }
+
+        /**
+         * Skips to just after the closing quote of a string whose opening quote was already consumed and
+         * returns the index of the closing quote.
+         */
+        private int skipStringBody() {
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '\\') {
+                    pos += 2;
+                } else if (b == '"') {
+                    return pos++;
+                } else {
+                    pos++;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private boolean keyEquals(int start, int keyEnd, byte[] key) {
+            return Arrays.equals(buf, start, keyEnd, key, 0, key.length);
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && isWhitespace(buf[pos])) {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            if (pos < end && buf[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void expectEnd() {
+            skipWhitespace();
+            if (pos != end) {
+                throw error("Unexpected trailing data");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at offset " + pos);
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+
+        private static final byte[] SENSOR_ID_PREFIX = "{\"sensorId\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TEMPERATURE_PREFIX = ",\"temperature\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIMESTAMP_PREFIX = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] COUNT_PREFIX = ",\"count\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MIN_PREFIX = ",\"min\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MAX_PREFIX = ",\"max\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] VARIANCE_PREFIX = ",\"variance\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] QUANTILES_PREFIX = ",\"quantiles\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SENSORS_PREFIX = ",\"sensors\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * Upper bound for the encoded size of a record, assuming every character of the strings needs escaping.
+         */
+        static int maxEncodedSize(String sensorId, String timestamp) {
+            return 64 + 6 * (sensorId.length() + timestamp.length());
+        }
+
+        /**
+         * Writes one record as a JSON object at the buffer's position.
+         */
+        static void encode(String sensorId, double temperature, String timestamp, ByteBuffer out) {
+            out.put(SENSOR_ID_PREFIX);
+            writeString(sensorId, out);
+            out.put(TEMPERATURE_PREFIX);
+            writeNumber(Double.toString(temperature), out);
+            out.put(TIMESTAMP_PREFIX);
+            writeString(timestamp, out);
+            out.put((byte) '}');
+        }
+
+        private static void writeNumber(String number, ByteBuffer out) {
+            for (int i = 0; i < number.length(); i++) {
+                out.put((byte) number.charAt(i));
+            }
+        }
+
+        private static void writeString(String value, ByteBuffer out) {
+            out.put((byte) '"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.put((byte) '\\').put((byte) c);
+                } else if (c < 0x20) {
+                    out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                            .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+                } else if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out.put((byte) (0xF0 | (codePoint >> 18)))
+                            .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                            .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    out.put((byte) '?');
+                } else {
+                    out.put((byte) (0xE0 | (c >> 12)))
+                            .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            out.put((byte) '"');
+        }
+    }
+
+    /**
+     * Compact binary encoding for readings, used when a request has the {@value #CONTENT_TYPE} content type.
+     * A record is a type byte, the sensor id as varint length plus UTF-8 bytes, the temperature as float64 and
+     * the timestamp as epoch millis (int64) of its wall time read as UTC, so that it arrives unchanged whatever the
+     * time zones of sender and receiver, as in JSON. A batch stores each sensor id once in a table and encodes records
+     * as an id index, the temperature, the window count (followed by min, max, variance and the quantile and
+     * distinct sensor sketches as length-prefixed bytes, empty if absent, if it is not zero) and a zigzag varint
+     * timestamp delta.
+     */
+    static final class BinaryCodec {
+        static final String CONTENT_TYPE = "application/x-sensor-data";
+        private static final byte RECORD = 1;
+        private static final byte BATCH = 2;
+        private static final byte SKETCH_BATCH = 3;
+
+        static boolean isBinary(String contentType) {
+            return contentType != null && contentType.startsWith(CONTENT_TYPE);
         }
 
-        public static SensorData fromJson(String jsonString) {
+        /**
+         * @throws IllegalArgumentException if the timestamp is not in the yyyy.MM.dd.HH.mm.ss format
+         */
+        static long toWireMillis(String timestamp) {
             try {
-                String[] parts = jsonString.replace("{", "").replace("}", "").split(",");
-                String sensorId = parts[0].split(":")[1].replace("\"", "").trim();
-                double temperature = Double.parseDouble(parts[1].split(":")[1].trim());
-                String timestamp = parts[2].split(":")[1].trim().replace("\"", "").trim();
-                return new SensorData(sensorId, temperature, timestamp);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
+                return LocalDateTime.parse(timestamp, SensorData.TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Timestamp is not in yyyy.MM.dd.HH.mm.ss format: " + timestamp);
+            }
+        }
+
+        static String fromWireMillis(long millis) {
+            return SensorData.TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+        }
+
+
+        private static void putVarLong(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+
+        private static void putString(ByteBuffer out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(out, bytes.length);
+            out.put(bytes);
+        }
+
+        /**
+         * Encodes a batch. Sensor ids are written once into a table and referenced by index, and each
+         * timestamp is stored as a zigzag varint delta to the previous record.
+         */
+        static byte[] encodeBatch(List<SensorData> batch) {
+            Map<String, Integer> ids = new LinkedHashMap<>();
+            int idBytes = 0;
+            for (SensorData data : batch) {
+                if (ids.putIfAbsent(data.getSensorId(), ids.size()) == null) {
+                    idBytes += 5 + 3 * data.getSensorId().length();
+                }
+            }
+            List<byte[]> sketches = new ArrayList<>();
+            int sketchBytes = 0;
+            for (SensorData data : batch) {
+                if (data.isSummary()) {
+                    byte[] quantiles = data.getQuantiles() == null ? new byte[0] : data.getQuantiles().toBytes();
+                    byte[] sensors = data.getSensors() == null ? new byte[0] : data.getSensors().toBytes();
+                    sketches.add(quantiles);
+                    sketches.add(sensors);
+                    sketchBytes += 10 + quantiles.length + sensors.length;
+                }
+            }
+            ByteBuffer out = ByteBuffer.allocate(1 + 5 + idBytes + 5 + batch.size() * (5 + 8 + 10 + 24 + 10) + sketchBytes);
+            out.put(SKETCH_BATCH);
+            putVarLong(out, ids.size());
+            for (String id : ids.keySet()) {
+                putString(out, id);
+            }
+            putVarLong(out, batch.size());
+            long previous = 0;
+            int sketchIndex = 0;
+            for (SensorData data : batch) {
+                long millis = toWireMillis(data.getTimestamp());
+                putVarLong(out, ids.get(data.getSensorId()));
+                out.putDouble(data.getTemperature());
+                putVarLong(out, data.getCount());
+                if (data.isSummary()) {
+                    out.putDouble(data.getMin());
+                    out.putDouble(data.getMax());
+                    out.putDouble(data.getVariance());
+                    for (int i = 0; i < 2; i++) {
+                        byte[] sketch = sketches.get(sketchIndex++);
+                        putVarLong(out, sketch.length);
+                        out.put(sketch);
+                    }
+                }
+                long delta = millis - previous;
+                putVarLong(out, (delta << 1) ^ (delta >> 63));
+                previous = millis;
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /**
+         * Decodes a single record or a batch into a list of records.
+         *
+         * @throws IllegalArgumentException if the input is not a valid binary message
+         */
+        static List<SensorData> decode(byte[] buf, int offset, int length) {
+            ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+            try {
+                List<SensorData> records = new ArrayList<>();
+                byte type = in.get();
+                if (type == RECORD) {
+                    String sensorId = getString(in);
+                    double temperature = in.getDouble();
+                    records.add(new SensorData(sensorId, temperature, fromWireMillis(in.getLong())));
+                } else if (type == BATCH || type == SKETCH_BATCH) {
+                    String[] ids = new String[checkedCount(in, in.remaining())];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = getString(in);
+                    }
+                    int recordCount = checkedCount(in, in.remaining() / 10);
+                    long millis = 0;
+                    for (int i = 0; i < recordCount; i++) {
+                        int index = (int) getVarLong(in);
+                        if (index < 0 || index >= ids.length) {
+                            throw new IllegalArgumentException("Sensor id index " + index + " out of range");
+                        }
+                        double temperature = in.getDouble();
+                        long count = getVarLong(in);
+                        double min = Double.NaN;
+                        double max = Double.NaN;
+                        double variance = Double.NaN;
+                        QuantileSketch quantiles = null;
+                        HyperLogLog sensors = null;
+                        if (count > 0) {
+                            min = in.getDouble();
+                            max = in.getDouble();
+                            variance = in.getDouble();
+                            if (type == SKETCH_BATCH) {
+                                byte[] bytes = getBytes(in);
+                                quantiles = bytes.length == 0 ? null : QuantileSketch.fromBytes(bytes);
+                                bytes = getBytes(in);
+                                sensors = bytes.length == 0 ? null : HyperLogLog.fromBytes(bytes);
+                            }
+                        }
+                        long zigzag = getVarLong(in);
+                        millis += (zigzag >>> 1) ^ -(zigzag & 1);
+                        records.add(new SensorData(ids[index], temperature, fromWireMillis(millis), count, min, max, variance,
+                                quantiles, sensors));
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown message type " + type);
+                }
+                if (in.hasRemaining()) {
+                    throw new IllegalArgumentException("Unexpected trailing data at offset " + (in.position() - offset));
+                }
+                return records;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+        }
+
+
+        private static int checkedCount(ByteBuffer in, int max) {
+            long count = getVarLong(in);
+            if (count < 0 || count > max) {
+                throw new IllegalArgumentException("Invalid element count " + count);
             }
+            return (int) count;
+        }
+
+        private static long getVarLong(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        private static byte[] getBytes(ByteBuffer in) {
+            byte[] bytes = new byte[checkedCount(in, in.remaining())];
+            in.get(bytes);
+            return bytes;
+        }
+
+        private static String getString(ByteBuffer in) {
+            int length = checkedCount(in, in.remaining());
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
         }
     }
 
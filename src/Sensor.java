@@ -3,27 +3,71 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
 
 public class Sensor implements Runnable {
+    // One client for all sensors in this JVM, so connections to the edge device are shared and kept alive
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(3))
+            .build();
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final boolean BINARY_FORMAT = "binary".equals(System.getenv("WIRE_FORMAT"));
+    // Needed when sending directly to a Cloud Component that has EDGE_TOKEN set
+    private static final String EDGE_TOKEN = System.getenv().getOrDefault("EDGE_TOKEN", "");
+    // Fraction of readings that carry a trace id through the edge device to the cloud
+    private static final double TRACE_SAMPLE = envDouble("TRACE_SAMPLE", 0);
+
     private final String sensorId;
     private final String edgeDeviceUrl;
     private final HttpClient httpClient;
     private final Random random;
     private boolean running;
-    private final String CACHE_FILE; // Change this to a non-static field
+    private final SegmentedLog cache;
+    private final SequenceCounter sequence;
+    private ByteBuffer jsonBuffer = ByteBuffer.allocate(256); // Reused for every reading of this sensor
+    private final ByteBuffer binaryBuffer;
 
-    public Sensor(String sensorId, String edgeDeviceUrl) {
+    public Sensor(String sensorId, String edgeDeviceUrl) throws IOException {
         this.sensorId = sensorId;
         this.edgeDeviceUrl = edgeDeviceUrl;
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = HTTP_CLIENT;
         this.random = new Random();
         this.running = true;
-        this.CACHE_FILE = "sensor_cache_" + sensorId + ".txt"; // Initialize the cache file with sensorId
+        this.binaryBuffer = ByteBuffer.allocate(BinaryCodec.maxEncodedSize(sensorId));
+        this.cache = new SegmentedLog("sensor_cache_" + sensorId, "sensor_cache_" + sensorId + ".txt");
+        this.sequence = new SequenceCounter(new File("sensor_cache_" + sensorId, "sequence"));
 
         // Start a thread to handle retries
         new Thread(this::handleRetries).start();
@@ -34,14 +78,30 @@ public class Sensor implements Runnable {
             try {
                 double temperature = generateTemperature();
                 String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new java.util.Date());
-                String jsonData = "{\"sensorId\":\"" + sensorId
-                        + "\",\"temperature\":" + temperature
-                        + ",\"timestamp\":\"" + timeStamp + "\"}";
+                long seq = nextSequence();
+                String traceId = TRACE_SAMPLE > 0 && random.nextDouble() < TRACE_SAMPLE ? Long.toHexString(random.nextLong() | Long.MIN_VALUE) : null;
+                if (traceId != null) {
+                    System.out.println("Trace " + traceId + ": sent by sensor " + sensorId);
+                }
+
+                boolean sent;
+                if (BINARY_FORMAT) {
+                    binaryBuffer.clear();
+                    BinaryCodec.encode(sensorId, temperature, timeStamp, binaryBuffer);
+                    sent = sendData(seq, traceId, binaryBuffer.array(), binaryBuffer.position(), BinaryCodec.CONTENT_TYPE);
+                } else {
+                    encodeJson(temperature, timeStamp);
+                    sent = sendData(seq, traceId, jsonBuffer.array(), jsonBuffer.position(), "application/json");
+                }
 
-                if (sendData(jsonData)) {
+                if (sent) {
                     System.out.println("Data sent successfully: Sensor ID: " + sensorId + ", Temperature: " + temperature);
                 } else {
-                    cacheData(jsonData);
+                    // The cache always holds JSON, whatever format is used on the wire
+                    if (BINARY_FORMAT) {
+                        encodeJson(temperature, timeStamp);
+                    }
+                    cacheData(seq, jsonBuffer.array(), jsonBuffer.position());
                     System.out.println("Failed to send data: Sensor ID: " + sensorId + ", Temperature: " + temperature);
                 }
 
@@ -53,18 +113,59 @@ public class Sensor implements Runnable {
         }
     }
 
-    private boolean sendData(String jsonData) {
-        HttpRequest request = HttpRequest.newBuilder()
+    private void encodeJson(double temperature, String timeStamp) {
+        int size = SensorDataCodec.maxEncodedSize(sensorId, timeStamp);
+        if (jsonBuffer.capacity() < size) {
+            jsonBuffer = ByteBuffer.allocate(size);
+        }
+        jsonBuffer.clear();
+        SensorDataCodec.encode(sensorId, temperature, timeStamp, jsonBuffer);
+    }
+
+    /**
+     * Number of the next reading, or 0 (unnumbered, so not deduplicated by the edge) if the counter cannot be saved.
+     */
+    private long nextSequence() {
+        try {
+            return sequence.next();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private boolean sendData(long seq, String traceId, byte[] data, int length, String contentType) {
+        return post(seq, traceId, data, length, contentType) == 200;
+    }
+
+    /**
+     * Sends one reading and returns the response status, or -1 if there was no response.
+     */
+    private int post(long seq, String traceId, byte[] data, int length, String contentType) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(edgeDeviceUrl + "/data"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonData))
-                .build();
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", contentType);
+        if (seq > 0) {
+            // Lets the edge device recognize a reading it already received when a retry follows a lost response
+            builder.header("X-Producer-Id", sensorId)
+                    .header("X-Producer-Epoch", Long.toString(sequence.getEpoch()))
+                    .header("X-Seq", Long.toString(seq));
+        }
+        if (!EDGE_TOKEN.isEmpty()) {
+            builder.header("X-Edge-Token", EDGE_TOKEN);
+        }
+        if (traceId != null) {
+            builder.header("X-Trace-Id", traceId)
+                    .header("X-Trace-Start", Long.toString(System.currentTimeMillis()));
+        }
+        HttpRequest request = builder.POST(HttpRequest.BodyPublishers.ofByteArray(data, 0, length)).build();
 
         try {
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            return response.statusCode() == 200;
+            return response.statusCode();
         } catch (Exception e) {
-            return false;
+            return -1;
         }
     }
 
@@ -77,30 +178,34 @@ public class Sensor implements Runnable {
         running = false;
     }
 
-    private void cacheData(String data) {
-        try (FileWriter fw = new FileWriter(CACHE_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            pw.println(data);
+    private void cacheData(long seq, byte[] data, int length) {
+        try {
+            byte[] prefix = seq > 0 ? (seq + " ").getBytes(StandardCharsets.US_ASCII) : new byte[0];
+            byte[] line = Arrays.copyOf(prefix, prefix.length + length);
+            System.arraycopy(data, 0, line, prefix.length, length);
+            cache.append(line, 0, line.length);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void handleRetries() {
-        File file = new File(CACHE_FILE);
-
         while (running) {
             try {
                 TimeUnit.SECONDS.sleep(5);
-                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    int count = 0;
-                    while ((line = br.readLine()) != null && count++ < 25) {
-                        if (sendData(line)) {
+                try {
+                    for (SegmentedLog.Entry entry : cache.peek(25)) {
+                        String line = recordOf(entry.getData());
+                        byte[] jsonData = line.getBytes(StandardCharsets.UTF_8);
+                        int status = post(sequenceOf(entry.getData()), null, jsonData, jsonData.length, "application/json");
+                        if (status == 200) {
                             System.out.println("Retry successful: " + line);
-                            deleteFirstLine(file);
-                        }
-                        else {
+                            cache.ack(entry);
+                        } else if (status == 400) {
+                            // The edge device will never accept this record, retrying it would block all later ones
+                            System.out.println("Dropping cached reading the edge device rejects: " + line);
+                            cache.ack(entry);
+                        } else {
                             break;
                         }
                     }
@@ -114,31 +219,952 @@ public class Sensor implements Runnable {
         }
     }
 
-    private static void deleteFirstLine(File file) throws IOException {
-        List<String> lines = new ArrayList<>();
+    /**
+     * Cache lines are "sequence record"; lines cached before messages were numbered are just the record.
+     */
+    static long sequenceOf(String line) {
+        int space = line.indexOf(' ');
+        if (line.startsWith("{") || space <= 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(line, 0, space, 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String recordOf(String line) {
+        return sequenceOf(line) > 0 ? line.substring(line.indexOf(' ') + 1) : line;
+    }
+
+    /**
+     * Persistent sequence numbers for the messages of one producer, starting at 1. The file also holds a random
+     * epoch, drawn when the file is created, so that receivers can tell a producer that lost its counter (and
+     * starts again at 1) from one that resends old messages. Numbers are reserved in blocks of RESERVATION, and a
+     * block is forced to disk before its first number is handed out; after a crash or power loss the counter
+     * continues behind the last reserved block, so it can skip numbers but never hand one out twice.
+     */
+    static class SequenceCounter {
+        private static final int RESERVATION = 256; // Well inside a receiver's dedup window, so the gap is passed quickly
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+        private final long epoch;
+        private long last;
+        private long reserved;
+
+        SequenceCounter(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.read(buffer, 0) == 16) {
+                buffer.flip();
+                epoch = buffer.getLong();
+                reserved = buffer.getLong();
+                last = reserved;
+            } else {
+                epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+                write();
+            }
+        }
+
+        /**
+         * The next number; it belongs to a reservation that is already on disk.
+         */
+        synchronized long next() throws IOException {
+            if (last == reserved) {
+                reserved += RESERVATION;
+                write();
+            }
+            return ++last;
+        }
+
+        long getEpoch() {
+            return epoch;
+        }
+
+        private void write() throws IOException {
+            buffer.clear();
+            buffer.putLong(epoch).putLong(reserved).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Durable append-only cache used by the retry loop. Records are written to numbered segment files, each as its
+     * length (int32), a CRC-32C of the length and the record (int32) and the record bytes; a small offset file
+     * remembers how far the retry loop has acknowledged, so consuming an entry never rewrites the cache. Segments
+     * that have been fully drained are deleted.
+     * <p>
+     * On startup, one sequential pass checks every record of the pending segments. A partly written record at the
+     * end of the newest segment, left by a crash or power loss, is cut off; corrupt bytes anywhere else are moved
+     * to the quarantine directory and their segment is rewritten without them, so that a damaged record can neither
+     * block the retries nor merge with the next one. Segments in the older newline-separated format are converted.
+     */
+    static class SegmentedLog {
+        private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+        private static final int HEADER_BYTES = 8;
+        private static final String SEGMENT_SUFFIX = ".rec";
+        private static final String LINE_SEGMENT_SUFFIX = ".log";
+
+        private final File directory;
+        private final FileChannel offsetChannel;
+        private final ByteBuffer offsetBuffer = ByteBuffer.allocate(16);
+        private final TreeSet<Long> segments = new TreeSet<>();
+        private final CRC32C crc = new CRC32C();
+
+        private long readSegment;
+        private long readOffset;
+        private long writeSegment;
+        private long writeSize;
+        private FileOutputStream writer;
+
+        SegmentedLog(String directoryName, String legacyFile) throws IOException {
+            this.directory = new File(directoryName);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create cache directory " + directory);
+            }
+
+            TreeSet<Long> lineSegments = new TreeSet<>();
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX) || name.endsWith(LINE_SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    TreeSet<Long> kind = name.endsWith(SEGMENT_SUFFIX) ? segments : lineSegments;
+                    try {
+                        kind.add(Long.parseLong(name.substring(0, name.lastIndexOf('.'))));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring unexpected file in cache directory: " + name);
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(lineSegments.isEmpty() ? 0L : lineSegments.last() + 1);
+            }
+
+            this.offsetChannel = FileChannel.open(new File(directory, "offset").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (offsetChannel.read(offsetBuffer, 0) == 16) {
+                offsetBuffer.flip();
+                readSegment = offsetBuffer.getLong();
+                readOffset = offsetBuffer.getLong();
+            }
+            long lineSegment = readSegment;
+            long lineOffset = readOffset;
+            if (!lineSegments.contains(lineSegment)) {
+                lineSegment = lineSegments.isEmpty() ? 0 : lineSegments.first();
+                lineOffset = 0;
+            }
+            if (!segments.contains(readSegment)) {
+                readSegment = segments.first();
+                readOffset = 0;
+            }
+
+            long start = System.nanoTime();
+            for (long segment : new ArrayList<>(segments.headSet(readSegment))) {
+                // Drained, but not deleted before a crash
+                Files.deleteIfExists(segmentFile(segment).toPath());
+                segments.remove(segment);
+            }
+            long pending = 0;
+            for (long segment : new ArrayList<>(segments)) {
+                pending += recover(segment);
+            }
+            writeSegment = segments.last();
+            File active = segmentFile(writeSegment);
+            writeSize = active.length();
+            writer = new FileOutputStream(active, true);
+            writeOffset();
+            if (pending > 0) {
+                System.out.println("Recovered " + pending + " pending records from " + directory + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+
+            for (long segment : lineSegments.tailSet(lineSegment)) {
+                convertLineSegment(segment, segment == lineSegment ? lineOffset : 0);
+            }
+            for (long segment : lineSegments.headSet(lineSegment)) {
+                Files.deleteIfExists(lineSegmentFile(segment).toPath());
+            }
+            migrateLegacyFile(legacyFile);
+        }
+
+        /**
+         * Appends one record to the active segment, rolling over to a new segment once it is full.
+         */
+        synchronized void append(String record) throws IOException {
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            append(bytes, 0, bytes.length);
+        }
+
+        synchronized void append(byte[] record, int offset, int length) throws IOException {
+            int size = HEADER_BYTES + length;
+            if (writeSize > 0 && writeSize + size > MAX_SEGMENT_BYTES) {
+                writer.close();
+                writeSegment++;
+                segments.add(writeSegment);
+                writeSize = 0;
+                writer = new FileOutputStream(segmentFile(writeSegment), true);
+            }
+            ByteBuffer framed = ByteBuffer.allocate(size);
+            framed.putInt(length).putInt(checksum(length, record, offset)).put(record, offset, length);
+            // One write call per record, so that a crash can only tear the last record
+            writer.write(framed.array());
+            writeSize += size;
+        }
+
+        /**
+         * Returns up to {@code max} unacknowledged records, oldest first, without consuming them. A segment that
+         * turns out to be damaged is recovered first, as on startup.
+         */
+        synchronized List<Entry> peek(int max) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            for (long segment : segments.tailSet(readSegment)) {
+                long offset = segment == readSegment ? readOffset : 0;
+                long size = segment == writeSegment ? writeSize : segmentFile(segment).length();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment))))) {
+                    in.skipNBytes(offset);
+                    while (entries.size() < max && offset < size) {
+                        int length = size - offset >= HEADER_BYTES ? in.readInt() : -1;
+                        if (length < 0 || length > size - offset - HEADER_BYTES) {
+                            return repairAndPeek(segment, max);
+                        }
+                        int checksum = in.readInt();
+                        byte[] record = new byte[length];
+                        in.readFully(record);
+                        if (checksum(length, record, 0) != checksum) {
+                            return repairAndPeek(segment, max);
+                        }
+                        offset += HEADER_BYTES + length;
+                        entries.add(new Entry(new String(record, StandardCharsets.UTF_8), segment, offset));
+                    }
+                }
+                if (entries.size() >= max) {
+                    break;
+                }
+            }
+            return entries;
+        }
+
+        private List<Entry> repairAndPeek(long segment, int max) throws IOException {
+            if (segment == writeSegment) {
+                writer.close();
+            }
+            recover(segment);
+            if (segment == writeSegment) {
+                writeSize = segmentFile(segment).length();
+                writer = new FileOutputStream(segmentFile(segment), true);
+            }
+            writeOffset();
+            return peek(max);
+        }
+
+        /**
+         * Marks everything up to and including {@code entry} as delivered and deletes drained segments.
+         */
+        synchronized void ack(Entry entry) throws IOException {
+            readSegment = entry.segment;
+            readOffset = entry.end;
+            while (readSegment != writeSegment && readOffset >= segmentFile(readSegment).length()) {
+                Files.deleteIfExists(segmentFile(readSegment).toPath());
+                segments.remove(readSegment);
+                readSegment = segments.higher(readSegment);
+                readOffset = 0;
+            }
+            writeOffset();
+        }
+
+        private void writeOffset() throws IOException {
+            offsetBuffer.clear();
+            offsetBuffer.putLong(readSegment).putLong(readOffset).flip();
+            offsetChannel.write(offsetBuffer, 0);
+        }
+
+        /**
+         * Checks every record of a segment and returns the number of pending ones. Bytes after the last valid
+         * record of the newest segment are a torn write and cut off; other invalid bytes, up to the next offset at
+         * which a valid record starts, are quarantined. The read offset is moved back to a record boundary if the
+         * offset file is ahead of what was written.
+         */
+        private long recover(long segment) throws IOException {
+            Path path = segmentFile(segment).toPath();
+            if (!Files.exists(path)) {
+                return 0;
+            }
+            byte[] bytes = Files.readAllBytes(path);
+            boolean newest = segment == segments.last();
+            long acked = segment == readSegment ? readOffset : 0;
+            ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            long boundary = 0;
+            long pending = 0;
+            boolean quarantined = false;
+            int validEnd = 0;
+            int pos = 0;
+            while (pos < bytes.length) {
+                int size = recordSize(bytes, pos);
+                if (size > 0) {
+                    if (pos + size <= acked) {
+                        boundary = pos + size;
+                    } else {
+                        kept.write(bytes, pos, size);
+                        pending++;
+                    }
+                    pos += size;
+                    validEnd = pos;
+                    continue;
+                }
+                int next = pos + 1;
+                while (next < bytes.length && recordSize(bytes, next) < 0) {
+                    next++;
+                }
+                if (next == bytes.length && newest) {
+                    System.out.println("Cut off " + (next - pos) + " bytes of a partly written record at the end of "
+                            + segmentFile(segment));
+                    break;
+                }
+                quarantine(segment, pos, bytes, next);
+                quarantined = true;
+                pos = next;
+            }
+            if (quarantined) {
+                // Rewrite the segment with the valid pending records only
+                Path temp = Path.of(path + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                    kept.writeTo(out);
+                    out.getFD().sync();
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                boundary = 0;
+            } else if (validEnd < bytes.length) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validEnd);
+                }
+            }
+            if (segment == readSegment) {
+                readOffset = boundary;
+            }
+            return pending;
+        }
+
+        /**
+         * The size of the valid record starting at this offset, or -1 if there is none.
+         */
+        private int recordSize(byte[] bytes, int pos) {
+            if (bytes.length - pos < HEADER_BYTES) {
+                return -1;
+            }
+            int length = ByteBuffer.wrap(bytes, pos, HEADER_BYTES).getInt();
+            if (length < 0 || length > bytes.length - pos - HEADER_BYTES) {
+                return -1;
+            }
+            int checksum = ByteBuffer.wrap(bytes, pos + 4, 4).getInt();
+            return checksum(length, bytes, pos + HEADER_BYTES) == checksum ? HEADER_BYTES + length : -1;
+        }
+
+        private int checksum(int length, byte[] record, int offset) {
+            crc.reset();
+            crc.update(length >>> 24);
+            crc.update(length >>> 16);
+            crc.update(length >>> 8);
+            crc.update(length);
+            crc.update(record, offset, length);
+            return (int) crc.getValue();
+        }
+
+        private void quarantine(long segment, int offset, byte[] bytes, int end) throws IOException {
+            File dir = new File(directory, "quarantine");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create quarantine directory " + dir);
+            }
+            File file = new File(dir, String.format("%020d-%d.bad", segment, offset));
+            Files.write(file.toPath(), Arrays.copyOfRange(bytes, offset, end));
+            System.out.println("Quarantined " + (end - offset) + " corrupt bytes of cache segment " + segment
+                    + " at offset " + offset + " to " + file);
+        }
+
+        /**
+         * Appends the complete lines of a segment in the older newline-separated format, from the given offset on,
+         * as records and deletes it. A last line without newline was torn and is dropped.
+         */
+        private void convertLineSegment(long segment, long offset) throws IOException {
+            Path path = lineSegmentFile(segment).toPath();
+            byte[] bytes = Files.readAllBytes(path);
+            int start = (int) Math.min(offset, bytes.length);
+            for (int i = start; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    if (i > start) {
+                        append(bytes, start, i - start);
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start < bytes.length) {
+                System.out.println("Dropped a partly written line at the end of " + path);
+            }
+            Files.delete(path);
+        }
+
+        private void migrateLegacyFile(String legacyFile) throws IOException {
+            File legacy = new File(legacyFile);
+            if (!legacy.isFile()) {
+                return;
+            }
+            try (BufferedReader br = new BufferedReader(new FileReader(legacy))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        append(line);
+                    }
+                }
+            }
+            Files.delete(legacy.toPath());
+        }
+
+        private File segmentFile(long segment) {
+            return new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+        }
+
+        private File lineSegmentFile(long segment) {
+            return new File(directory, String.format("%020d%s", segment, LINE_SEGMENT_SUFFIX));
+        }
+
+        static class Entry {
+            private final String data;
+            private final long segment;
+            private final long end;
+
+            Entry(String data, long segment, long end) {
+                this.data = data;
+                this.segment = segment;
+                this.end = end;
+            }
+
+            public String getData() {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Writes readings as JSON straight into a byte buffer, without concatenating strings. Must stay in sync with
+     * the record layout that the EdgeDevice parses.
+     */
+    static final class SensorDataCodec {
+        private static final byte[] SENSOR_ID_PREFIX = "{\"sensorId\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TEMPERATURE_PREFIX = ",\"temperature\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIMESTAMP_PREFIX = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * Upper bound for the encoded size of a record, assuming every character of the strings needs escaping.
+         */
+        static int maxEncodedSize(String sensorId, String timestamp) {
+            return 64 + 6 * (sensorId.length() + timestamp.length());
+        }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            boolean firstLineSkipped = false;
+        /**
+         * Writes one record as a JSON object at the buffer's position.
+         */
+        static void encode(String sensorId, double temperature, String timestamp, ByteBuffer out) {
+            out.put(SENSOR_ID_PREFIX);
+            writeString(sensorId, out);
+            out.put(TEMPERATURE_PREFIX);
+            String number = Double.toString(temperature);
+            for (int i = 0; i < number.length(); i++) {
+                out.put((byte) number.charAt(i));
+            }
+            out.put(TIMESTAMP_PREFIX);
+            writeString(timestamp, out);
+            out.put((byte) '}');
+        }
 
-            while ((line = br.readLine()) != null) {
-                if (!firstLineSkipped) {
-                    firstLineSkipped = true;
-                    continue; // Skip the first line
+        private static void writeString(String value, ByteBuffer out) {
+            out.put((byte) '"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.put((byte) '\\').put((byte) c);
+                } else if (c < 0x20) {
+                    out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                            .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+                } else if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out.put((byte) (0xF0 | (codePoint >> 18)))
+                            .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                            .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    out.put((byte) '?');
+                } else {
+                    out.put((byte) (0xE0 | (c >> 12)))
+                            .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                            .put((byte) (0x80 | (c & 0x3F)));
                 }
-                lines.add(line);
             }
+            out.put((byte) '"');
         }
+    }
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-            for (String line : lines) {
-                bw.write(line);
-                bw.newLine();
+    /**
+     * Compact binary encoding for readings, used when a request has the {@value #CONTENT_TYPE} content type.
+     * A record is a type byte, the sensor id as varint length plus UTF-8 bytes, the temperature as float64 and
+     * the timestamp as epoch millis (int64) of its wall time read as UTC, so that it arrives unchanged whatever the
+     * time zones of sender and receiver. Must stay in sync with the layout that the EdgeDevice parses.
+     */
+    static final class BinaryCodec {
+        static final String CONTENT_TYPE = "application/x-sensor-data";
+        private static final byte RECORD = 1;
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss");
+
+        static long toEpochMillis(String timestamp) {
+            try {
+                return LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Timestamp is not in yyyy.MM.dd.HH.mm.ss format: " + timestamp);
+            }
+        }
+
+        private static void putVarLong(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
             }
+            out.put((byte) value);
+        }
+
+        private static void putString(ByteBuffer out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(out, bytes.length);
+            out.put(bytes);
+        }
+
+        /**
+         * Upper bound for the encoded size of a single record.
+         */
+        static int maxEncodedSize(String sensorId) {
+            return 1 + 5 + 3 * sensorId.length() + 8 + 8;
+        }
+
+        /**
+         * Writes one record at the buffer's position: type byte, sensor id, temperature, epoch millis.
+         */
+        static void encode(String sensorId, double temperature, String timestamp, ByteBuffer out) {
+            out.put(RECORD);
+            putString(out, sensorId);
+            out.putDouble(temperature);
+            out.putLong(toEpochMillis(timestamp));
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * Load generator for capacity planning, started with {@code java Sensor.java load}. Simulates LOAD_SENSORS
+     * sensors that post to LOAD_URL every LOAD_INTERVAL_MS. Arrivals are "fixed" (each sensor at its own random
+     * phase), "poisson" (exponential gaps) or "burst" (all sensors at the same instants). One scheduler thread
+     * generates the readings and every request runs on its own virtual thread, over a single shared client, with at
+     * most LOAD_MAX_IN_FLIGHT requests in flight. Requests that wait for a slot are late, and response times are
+     * measured from the scheduled send time, so the client's own queueing is included instead of hidden. Beyond
+     * LOAD_MAX_PENDING waiting requests new readings are skipped, since the target evidently cannot keep up.
+     * <p>
+     * Faults are injected on the client side, as the server would see them: LOAD_FAULT_TIMEOUT gives a request a
+     * 1 ms timeout (the reading may still arrive, but the response is lost), LOAD_FAULT_5XX treats a successful
+     * response as a 503, and both are retried with the same sequence number; LOAD_FAULT_DROP never sends the
+     * reading at all. Every LOAD_REPORT_S the throughput, outcomes and latency percentiles are printed.
+     */
+    static class LoadGenerator {
+        enum Arrivals { FIXED, POISSON, BURST }
+
+        enum Values { UNIFORM, NORMAL, WALK, SPIKES }
+
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss")
+                .withZone(ZoneId.systemDefault());
+
+        private final URI uri;
+        private final long intervalNanos;
+        private final Arrivals arrivals;
+        private final Values values;
+        private final double timeoutRate;
+        private final double errorRate;
+        private final double dropRate;
+        private final int maxRetries;
+        private final long retryDelayMillis;
+        private final HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(3))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final int maxInFlight;
+        private final Semaphore inFlight;
+        private final long maxPending;
+        private final AtomicLong pending = new AtomicLong();
+        private final long epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+        private final SimulatedSensor[] sensors;
+
+        private final LatencyHistogram responseTimes = new LatencyHistogram();
+        private final LatencyHistogram serviceTimes = new LatencyHistogram();
+        private final LongAdder generated = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder serverErrors = new LongAdder();
+        private final LongAdder clientErrors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder injectedTimeouts = new LongAdder();
+        private final LongAdder injectedErrors = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder gaveUp = new LongAdder();
+
+        LoadGenerator() {
+            this.uri = URI.create(System.getenv().getOrDefault("LOAD_URL", "http://localhost:8000/data"));
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, envLong("LOAD_INTERVAL_MS", 5000)));
+            this.arrivals = envEnum("LOAD_ARRIVALS", Arrivals.FIXED);
+            this.values = envEnum("LOAD_VALUES", Values.UNIFORM);
+            this.timeoutRate = envDouble("LOAD_FAULT_TIMEOUT", 0);
+            this.errorRate = envDouble("LOAD_FAULT_5XX", 0);
+            this.dropRate = envDouble("LOAD_FAULT_DROP", 0);
+            this.maxRetries = (int) envLong("LOAD_RETRIES", 3);
+            this.retryDelayMillis = envLong("LOAD_RETRY_DELAY_MS", 1000);
+            this.maxInFlight = (int) envLong("LOAD_MAX_IN_FLIGHT", 256);
+            this.inFlight = new Semaphore(maxInFlight);
+            this.maxPending = envLong("LOAD_MAX_PENDING", 100000);
+            this.sensors = new SimulatedSensor[(int) envLong("LOAD_SENSORS", 10000)];
+            for (int i = 0; i < sensors.length; i++) {
+                sensors[i] = new SimulatedSensor("load-" + i);
+            }
+        }
+
+        private static <E extends Enum<E>> E envEnum(String name, E defaultValue) {
+            String value = System.getenv().getOrDefault(name, defaultValue.name());
+            try {
+                return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown " + name + " " + value + ", using " + defaultValue.name().toLowerCase());
+                return defaultValue;
+            }
+        }
+
+        void run(long durationSeconds, long reportSeconds) throws InterruptedException {
+            System.out.println("Load: " + sensors.length + " sensors every " + TimeUnit.NANOSECONDS.toMillis(intervalNanos)
+                    + " ms (" + arrivals.name().toLowerCase() + ", " + values.name().toLowerCase() + " values) to " + uri
+                    + ", " + (BINARY_FORMAT ? "binary" : "JSON"));
+            if (intervalNanos < TimeUnit.SECONDS.toNanos(1)) {
+                System.out.println("Timestamps have whole seconds, so the edge device drops readings of a sensor that share one");
+            }
+
+            long start = System.nanoTime();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (SimulatedSensor sensor : sensors) {
+                long delay = switch (arrivals) {
+                    case FIXED -> random.nextLong(intervalNanos);
+                    case POISSON -> nextGap(random);
+                    case BURST -> 0;
+                };
+                schedule(sensor, start + delay);
+            }
+
+            long reportStart = start;
+            long reportedSent = 0;
+            long end = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+            while (System.nanoTime() < end) {
+                TimeUnit.SECONDS.sleep(Math.max(1, reportSeconds));
+                long now = System.nanoTime();
+                long total = sent.sum();
+                report(String.format("%.1f req/s", (total - reportedSent) * 1e9 / (now - reportStart)), responseTimes.drain());
+                reportStart = now;
+                reportedSent = total;
+            }
+
+            scheduler.shutdownNow();
+            // Give the requests in flight the read timeout to finish
+            inFlight.tryAcquire(maxInFlight, REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            responseTimes.drain();
+            serviceTimes.drain();
+            report(String.format("total %.1f req/s", sent.sum() * 1e9 / (System.nanoTime() - start)), responseTimes.getTotal());
+            System.out.println("Service time (from the actual send): " + serviceTimes.getTotal().describe());
+        }
+
+        private void report(String rate, LatencyHistogram.Snapshot latencies) {
+            System.out.println("Load: " + rate + ", generated " + generated.sum() + ", skipped " + skipped.sum()
+                    + ", sent " + sent.sum() + ", ok " + ok.sum()
+                    + ", rejected " + rejected.sum() + ", 5xx " + serverErrors.sum() + ", 4xx " + clientErrors.sum()
+                    + ", timeouts " + timeouts.sum() + ", errors " + failures.sum()
+                    + ", injected timeout/5xx/drop " + injectedTimeouts.sum() + "/" + injectedErrors.sum() + "/" + dropped.sum()
+                    + ", retries " + retries.sum() + ", gave up " + gaveUp.sum()
+                    + "; response time " + latencies.describe());
+        }
+
+        private long nextGap(ThreadLocalRandom random) {
+            return (long) (-Math.log(1 - random.nextDouble()) * intervalNanos);
+        }
+
+        private void schedule(SimulatedSensor sensor, long dueNanos) {
+            try {
+                scheduler.schedule(() -> fire(sensor, dueNanos), dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+
+        private void fire(SimulatedSensor sensor, long dueNanos) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long seq = ++sensor.seq;
+            byte[] body = encode(sensor.id, sensor.nextValue(values, random), TIMESTAMP_FORMAT.format(Instant.now()));
+            generated.increment();
+            if (random.nextDouble() < dropRate) {
+                dropped.increment();
+            } else if (pending.incrementAndGet() > maxPending) {
+                // The target cannot keep up and the backlog would grow without bound
+                pending.decrementAndGet();
+                skipped.increment();
+            } else {
+                Thread.ofVirtual().start(() -> send(sensor.id, seq, body, dueNanos, 0));
+            }
+            schedule(sensor, dueNanos + (arrivals == Arrivals.POISSON ? nextGap(random) : intervalNanos));
+        }
+
+        private byte[] encode(String sensorId, double temperature, String timestamp) {
+            ByteBuffer buffer;
+            if (BINARY_FORMAT) {
+                buffer = ByteBuffer.allocate(BinaryCodec.maxEncodedSize(sensorId));
+                BinaryCodec.encode(sensorId, temperature, timestamp, buffer);
+            } else {
+                buffer = ByteBuffer.allocate(SensorDataCodec.maxEncodedSize(sensorId, timestamp));
+                SensorDataCodec.encode(sensorId, temperature, timestamp, buffer);
+            }
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        private void send(String sensorId, long seq, byte[] body, long dueNanos, int attempt) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean injectTimeout = random.nextDouble() < timeoutRate;
+            boolean retry;
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                pending.decrementAndGet();
+                return;
+            }
+            long sendNanos = System.nanoTime();
+            try {
+                HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                        .timeout(injectTimeout ? Duration.ofMillis(1) : REQUEST_TIMEOUT)
+                        .header("Content-Type", BINARY_FORMAT ? BinaryCodec.CONTENT_TYPE : "application/json")
+                        .header("X-Producer-Id", sensorId)
+                        .header("X-Producer-Epoch", Long.toString(epoch))
+                        .header("X-Seq", Long.toString(seq));
+                if (!EDGE_TOKEN.isEmpty()) {
+                    builder.header("X-Edge-Token", EDGE_TOKEN);
+                }
+                HttpRequest request = builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+                sent.increment();
+                int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                long now = System.nanoTime();
+                responseTimes.record(TimeUnit.NANOSECONDS.toMicros(now - dueNanos));
+                serviceTimes.record(TimeUnit.NANOSECONDS.toMicros(now - sendNanos));
+                if (status == 200 && random.nextDouble() < errorRate) {
+                    injectedErrors.increment();
+                    retry = true;
+                } else if (status == 200) {
+                    ok.increment();
+                    retry = false;
+                } else if (status == 429 || status == 503) {
+                    rejected.increment();
+                    retry = true;
+                } else if (status >= 500) {
+                    serverErrors.increment();
+                    retry = true;
+                } else {
+                    clientErrors.increment();
+                    retry = false;
+                }
+            } catch (HttpTimeoutException e) {
+                (injectTimeout ? injectedTimeouts : timeouts).increment();
+                retry = true;
+            } catch (IOException e) {
+                failures.increment();
+                retry = true;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                inFlight.release();
+                pending.decrementAndGet();
+            }
+
+            if (retry && attempt < maxRetries) {
+                retries.increment();
+                long retryDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+                pending.incrementAndGet();
+                try {
+                    scheduler.schedule(() -> Thread.ofVirtual().start(() -> send(sensorId, seq, body, retryDue, attempt + 1)),
+                            retryDelayMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                    pending.decrementAndGet();
+                }
+            } else if (retry) {
+                gaveUp.increment();
+            }
+        }
+
+        /**
+         * State of one simulated sensor, only touched by the scheduler thread.
+         */
+        private static class SimulatedSensor {
+            private final String id;
+            private long seq;
+            private double value = 25;
+
+            SimulatedSensor(String id) {
+                this.id = id;
+            }
+
+            double nextValue(Values values, ThreadLocalRandom random) {
+                switch (values) {
+                    case UNIFORM:
+                        return 20.0 + 15.0 * random.nextDouble();
+                    case NORMAL:
+                        return 25.0 + 3.0 * random.nextGaussian();
+                    case WALK:
+                        value = Math.max(10, Math.min(40, value + 0.2 * random.nextGaussian()));
+                        return value;
+                    default:
+                        // Mostly normal, with a hot outlier in one of a hundred readings
+                        return random.nextInt(100) == 0 ? 45.0 + 5.0 * random.nextDouble() : 25.0 + 3.0 * random.nextGaussian();
+                }
+            }
+        }
+    }
+
+    /**
+     * Concurrent histogram of latencies in microseconds, with 32 buckets per power of two (about 3% resolution) up
+     * to about 50 days. Recording is lock-free; {@link #drain} moves the counts into a running total.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final long MAX_VALUE = (1L << 42) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray((42 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+        private final long[] total = new long[counts.length()];
+
+        void record(long micros) {
+            counts.incrementAndGet(index(Math.max(0, Math.min(MAX_VALUE, micros))));
+        }
+
+        /**
+         * The counts since the previous call, which are added to the total.
+         */
+        synchronized Snapshot drain() {
+            long[] interval = new long[counts.length()];
+            for (int i = 0; i < interval.length; i++) {
+                interval[i] = counts.getAndSet(i, 0);
+                total[i] += interval[i];
+            }
+            return new Snapshot(interval);
+        }
+
+        synchronized Snapshot getTotal() {
+            return new Snapshot(total.clone());
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /**
+         * The largest value that falls into the bucket.
+         */
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+            return (subBucket << shift) + (1L << shift) - 1;
+        }
+
+        static class Snapshot {
+            private final long[] counts;
+            private final long count;
+
+            Snapshot(long[] counts) {
+                this.counts = counts;
+                this.count = Arrays.stream(counts).sum();
+            }
+
+            /**
+             * The value below which the fraction p of the recorded values falls, as the bucket's upper bound.
+             */
+            long percentile(double p) {
+                long rank = (long) Math.ceil(p * count);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= Math.max(1, rank)) {
+                        return upperBound(i);
+                    }
+                }
+                return 0;
+            }
+
+            String describe() {
+                if (count == 0) {
+                    return "no responses";
+                }
+                return String.format("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms (%d responses)",
+                        percentile(0.5) / 1000.0, percentile(0.9) / 1000.0, percentile(0.99) / 1000.0,
+                        percentile(0.999) / 1000.0, percentile(1) / 1000.0, count);
+            }
+        }
+    }
+
+    private static double envDouble(String name, double defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("load")) {
+            // Load generation mode for capacity planning, see LoadGenerator
+            new LoadGenerator().run(envLong("LOAD_DURATION_S", 60), envLong("LOAD_REPORT_S", 5));
+            System.exit(0);
+        }
+
         String edgeDeviceUrl = "http://localhost:8000";
         Sensor sensor1 = new Sensor("1", edgeDeviceUrl);
         Sensor sensor2 = new Sensor("2", edgeDeviceUrl);
@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The binary wire format: single records from sensors, batches with an id table, timestamp deltas and window
+ * summaries from the EdgeDevice, and the Cloud Component's header-only record count.
+ */
+class BinaryCodecTest {
+    private static final String TIMESTAMP = "2024.05.01.12.30.45";
+
+    private static byte[] sensorEncode(String sensorId, double temperature, String timestamp) {
+        ByteBuffer out = ByteBuffer.allocate(Sensor.BinaryCodec.maxEncodedSize(sensorId));
+        Sensor.BinaryCodec.encode(sensorId, temperature, timestamp, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    @Test
+    void sensorRecordRoundTrips() {
+        byte[] record = sensorEncode("sensor-ü", -3.75, TIMESTAMP);
+        List<EdgeDevice.SensorData> records = EdgeDevice.BinaryCodec.decode(record, 0, record.length);
+        assertEquals(1, records.size());
+        assertEquals("sensor-ü", records.get(0).getSensorId());
+        assertEquals(-3.75, records.get(0).getTemperature());
+        assertEquals(TIMESTAMP, records.get(0).getTimestamp());
+        assertEquals(1, CloudComponent.BinaryCodec.recordCount(record, 0, record.length));
+    }
+
+    @Test
+    void timestampsDoNotDependOnTheTimeZone() {
+        TimeZone original = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            byte[] record = sensorEncode("1", 20, "2024.03.10.02.30.00"); // Inside the local DST gap
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Kolkata"));
+            assertEquals("2024.03.10.02.30.00", EdgeDevice.BinaryCodec.decode(record, 0, record.length).get(0).getTimestamp());
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+    @Test
+    void batchRoundTripsToCloud() {
+        EdgeDevice.QuantileSketch quantiles = new EdgeDevice.QuantileSketch();
+        quantiles.add(20.5, 10);
+        EdgeDevice.HyperLogLog sensors = new EdgeDevice.HyperLogLog();
+        sensors.addHash(EdgeDevice.HyperLogLog.hash("a"));
+        List<EdgeDevice.SensorData> batch = new ArrayList<>();
+        batch.add(new EdgeDevice.SensorData("a", 20.5, "2024.05.01.12.30.45"));
+        batch.add(new EdgeDevice.SensorData("b", 21.0, "2024.05.01.12.30.40")); // Earlier: negative delta
+        batch.add(new EdgeDevice.SensorData("average", 20.75, "2024.05.01.12.30.50", 10, 20, 21.5, 0.25, quantiles, sensors));
+        batch.add(new EdgeDevice.SensorData("a", 22.0, "1970.01.01.00.00.00"));
+        batch.add(new EdgeDevice.SensorData("b", 23.0, "2099.12.31.23.59.59", 4, 22, 24, 0.5));
+
+        byte[] bytes = EdgeDevice.BinaryCodec.encodeBatch(batch);
+        assertEquals(batch.size(), CloudComponent.BinaryCodec.recordCount(bytes, 0, bytes.length));
+        List<CloudComponent.SensorData> records = CloudComponent.BinaryCodec.decode(bytes, 0, bytes.length);
+        assertEquals(batch.size(), records.size());
+        for (int i = 0; i < batch.size(); i++) {
+            EdgeDevice.SensorData sent = batch.get(i);
+            CloudComponent.SensorData received = records.get(i);
+            assertEquals(sent.getSensorId(), received.getSensorId());
+            assertEquals(sent.getTemperature(), received.getTemperature());
+            assertEquals(sent.getTimestamp(), received.getTimestamp());
+            assertEquals(sent.getCount(), received.getCount());
+            if (sent.isSummary()) {
+                assertEquals(sent.getMin(), received.getMin());
+                assertEquals(sent.getMax(), received.getMax());
+                assertEquals(sent.getVariance(), received.getVariance());
+            }
+        }
+        assertEquals(20.5, records.get(2).getQuantiles().quantile(0.5), 20.5 * 0.01);
+        assertEquals(1, records.get(2).getSensors().estimate());
+        assertNull(records.get(4).getQuantiles());
+        assertNull(records.get(4).getSensors());
+    }
+
+    @Test
+    void emptyBatchRoundTrips() {
+        byte[] bytes = EdgeDevice.BinaryCodec.encodeBatch(List.of());
+        assertEquals(List.of(), EdgeDevice.BinaryCodec.decode(bytes, 0, bytes.length));
+        assertEquals(0, CloudComponent.BinaryCodec.recordCount(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void malformedMessagesAreRejected() {
+        byte[] batch = EdgeDevice.BinaryCodec.encodeBatch(List.of(
+                new EdgeDevice.SensorData("a", 1, TIMESTAMP), new EdgeDevice.SensorData("b", 2, TIMESTAMP)));
+        for (int length = 0; length < batch.length; length++) {
+            int truncated = length;
+            assertThrows(IllegalArgumentException.class, () -> CloudComponent.BinaryCodec.decode(batch, 0, truncated),
+                    "truncated to " + truncated);
+        }
+        byte[] trailing = Arrays.copyOf(batch, batch.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.BinaryCodec.decode(trailing, 0, trailing.length));
+
+        byte[] unknownType = {9, 0, 0};
+        assertThrows(IllegalArgumentException.class, () -> EdgeDevice.BinaryCodec.decode(unknownType, 0, unknownType.length));
+        assertEquals(-1, CloudComponent.BinaryCodec.recordCount(unknownType, 0, unknownType.length));
+
+        // One id, one record that refers to id 5
+        byte[] badIndex = Arrays.copyOf(new byte[] {3, 1, 1, 'a', 1, 5}, 6 + 8 + 1 + 1);
+        assertThrows(IllegalArgumentException.class, () -> EdgeDevice.BinaryCodec.decode(badIndex, 0, badIndex.length));
+
+        // A record count far beyond what the remaining bytes can hold
+        byte[] hugeCount = {2, 0, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        assertThrows(IllegalArgumentException.class, () -> EdgeDevice.BinaryCodec.decode(hugeCount, 0, hugeCount.length));
+        assertEquals(-1, CloudComponent.BinaryCodec.recordCount(hugeCount, 0, hugeCount.length));
+    }
+}
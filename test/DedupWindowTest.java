@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Receiver-side deduplication by sequence number, and the producers' persistent counters. The EdgeDevice and the
+ * Cloud Component have their own copies of DedupWindow; both are checked against the same cases.
+ */
+class DedupWindowTest {
+    private static final int WINDOW = 1024;
+
+    /**
+     * Marks the number as processed if it is new, as the handlers do, and returns whether it was.
+     */
+    private static boolean deliver(EdgeDevice.DedupWindow window, long seq) {
+        boolean isNew = window.isNew(seq);
+        if (isNew) {
+            window.mark(seq);
+        }
+        return isNew;
+    }
+
+    @Test
+    void inOrderNumbersAreNewOnceAndAdvanceTheAck() {
+        EdgeDevice.DedupWindow window = new EdgeDevice.DedupWindow(1);
+        for (long seq = 1; seq <= 3000; seq++) {
+            assertTrue(deliver(window, seq));
+            assertFalse(deliver(window, seq));
+        }
+        assertEquals(3000, window.getContiguous());
+        assertFalse(window.isNew(1));
+        assertFalse(window.isNew(2000));
+    }
+
+    @Test
+    void outOfOrderNumbersWithinTheWindowAreEachNewOnce() {
+        EdgeDevice.DedupWindow window = new EdgeDevice.DedupWindow(1);
+        assertTrue(deliver(window, 3));
+        assertTrue(deliver(window, 5));
+        assertEquals(0, window.getContiguous());
+        assertFalse(deliver(window, 5));
+        assertTrue(deliver(window, 1));
+        assertEquals(1, window.getContiguous());
+        assertTrue(deliver(window, 2));
+        assertEquals(3, window.getContiguous());
+        assertTrue(deliver(window, 4));
+        assertEquals(5, window.getContiguous());
+        assertFalse(deliver(window, 3));
+        assertTrue(deliver(window, 1 + WINDOW + 5));
+        assertTrue(window.isNew(6));
+    }
+
+    @Test
+    void slidingPastAGapKeepsItAcceptableAndEverythingElseDuplicate() {
+        EdgeDevice.DedupWindow window = new EdgeDevice.DedupWindow(1);
+        for (long seq = 1; seq <= 10; seq++) {
+            if (seq != 5) {
+                deliver(window, seq);
+            }
+        }
+        assertEquals(4, window.getContiguous());
+        // 5 and 11 to 3976 are given up on
+        assertTrue(deliver(window, 5000));
+        assertEquals(5000 - WINDOW, window.getContiguous());
+
+        assertFalse(window.isNew(4));
+        assertFalse(window.isNew(6), "delivered before the window moved");
+        assertFalse(window.isNew(10));
+        assertTrue(window.isNew(5));
+        assertTrue(window.isNew(11));
+        assertTrue(window.isNew(5000 - WINDOW));
+        assertFalse(window.isNew(5000));
+
+        assertTrue(deliver(window, 5));
+        assertFalse(deliver(window, 5), "a gap is accepted only once");
+        assertTrue(deliver(window, 100));
+        assertFalse(deliver(window, 100));
+        assertTrue(window.isNew(99));
+        assertTrue(window.isNew(101));
+    }
+
+    @Test
+    void onlyTheNewestGapRangesAreRemembered() {
+        EdgeDevice.DedupWindow window = new EdgeDevice.DedupWindow(1);
+        for (long seq = 2; seq <= 400; seq += 2) {
+            deliver(window, seq);
+        }
+        deliver(window, 2000);
+        // 200 single gaps 1, 3, ..., 399 plus the range 401 to 976: the oldest are forgotten
+        int acceptable = 0;
+        for (long seq = 1; seq < 400; seq += 2) {
+            if (window.isNew(seq)) {
+                acceptable++;
+            }
+        }
+        assertEquals(63, acceptable);
+        assertFalse(window.isNew(1));
+        assertTrue(window.isNew(399));
+        assertTrue(window.isNew(700));
+        assertFalse(window.isNew(400));
+    }
+
+    @Test
+    void cloudCopyBehavesAlike() {
+        CloudComponent.DedupWindow window = new CloudComponent.DedupWindow("42");
+        assertEquals("42", window.getEpoch());
+        window.mark(1);
+        window.mark(3);
+        assertFalse(window.isNew(1));
+        assertTrue(window.isNew(2));
+        assertFalse(window.isNew(3));
+        window.mark(3 + 2 * WINDOW);
+        assertTrue(window.isNew(2), "a gap given up on stays acceptable");
+        assertFalse(window.isNew(3), "a delivered number stays a duplicate");
+        window.mark(2);
+        assertFalse(window.isNew(2));
+        assertEquals(3 + WINDOW, window.getContiguous());
+    }
+
+    @Test
+    void sequenceCounterContinuesBehindItsReservationAfterACrash(@TempDir Path directory) throws IOException {
+        File file = directory.resolve("sequence").toFile();
+        EdgeDevice.SequenceCounter counter = new EdgeDevice.SequenceCounter(file);
+        for (int i = 1; i <= 300; i++) {
+            assertEquals(i, counter.next());
+        }
+        // Opened again without any shutdown, as after a power loss
+        EdgeDevice.SequenceCounter reopened = new EdgeDevice.SequenceCounter(file);
+        assertEquals(counter.getEpoch(), reopened.getEpoch());
+        assertTrue(reopened.next() > 300);
+
+        File other = directory.resolve("other").toFile();
+        assertNotEquals(counter.getEpoch(), new EdgeDevice.SequenceCounter(other).getEpoch());
+    }
+}
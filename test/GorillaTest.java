@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The delta-of-delta timestamp and XOR value compression of the Cloud Component's blocks, read back through
+ * Block.scan as queries do.
+ */
+class GorillaTest {
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) {
+        CloudComponent.GorillaEncoder encoder = new CloudComponent.GorillaEncoder();
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        ByteBuffer block = encoder.toBlock();
+        assertEquals(timestamps.length, block.getInt(4));
+
+        List<Long> decodedTimestamps = new ArrayList<>();
+        List<Double> decodedValues = new ArrayList<>();
+        CloudComponent.Block.scan(block, Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> {
+            decodedTimestamps.add(timestamp);
+            decodedValues.add(value);
+        });
+        assertEquals(timestamps.length, decodedTimestamps.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], decodedTimestamps.get(i), "timestamp " + i);
+            // Bit for bit, so that NaN payloads and -0.0 survive as well
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decodedValues.get(i)), "value " + i);
+        }
+    }
+
+    @Test
+    void singlePoint() {
+        assertRoundTrip(new long[] {1714566645000L}, new double[] {21.5});
+    }
+
+    @Test
+    void everyDeltaOfDeltaBucketAndItsBoundaries() {
+        long[] delta = {5000, 5000, 5000 - 64, 5000, 5000 + 63, 5000, 5000 - 65, 5000 + 64, 5000, 5000 - 256, 5000 + 255,
+                5000 - 257, 5000 + 256, 5000, 5000 - 2048, 5000 + 2047, 5000 - 2049, 5000 + 2048, 0, 0, -86_400_000L,
+                Long.MAX_VALUE / 4, -(Long.MAX_VALUE / 4), 1};
+        long[] timestamps = new long[delta.length + 1];
+        double[] values = new double[timestamps.length];
+        timestamps[0] = 1714566645000L;
+        for (int i = 0; i < delta.length; i++) {
+            timestamps[i + 1] = timestamps[i] + delta[i];
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    void specialValues() {
+        double[] values = {21.5, 21.5, -0.0, 0.0, Double.NaN, Double.longBitsToDouble(0x7ff8000000000123L),
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+                1.0, Double.longBitsToDouble(0x8000000000000001L), 21.5};
+        long[] timestamps = new long[values.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = i * 1000L;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    void randomPointsWithJitter() {
+        Random random = new Random(42);
+        int n = 4096;
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        long timestamp = 1714566645000L;
+        double value = 25;
+        for (int i = 0; i < n; i++) {
+            timestamp += 5000 + random.nextInt(400) - 200 + (random.nextInt(100) == 0 ? 600_000 : 0);
+            value += random.nextGaussian() * 0.3;
+            timestamps[i] = timestamp;
+            // Mostly rounded readings, sometimes raw doubles that use all 64 bits of the XOR
+            values[i] = random.nextInt(10) == 0 ? Double.longBitsToDouble(random.nextLong()) : Math.round(value * 100) / 100.0;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    void regularSteadyPointsTakeAboutTwoBits() {
+        int n = 1000;
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = 1714566645000L + i * 5000L;
+            values[i] = 21.5;
+        }
+        assertRoundTrip(timestamps, values);
+        CloudComponent.GorillaEncoder encoder = new CloudComponent.GorillaEncoder();
+        for (int i = 0; i < n; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        int columnBytes = encoder.toBlock().remaining() - CloudComponent.Block.HEADER_BYTES;
+        // The first timestamp and value take 64 bits each and the first delta up to 68, every further point 2 bits;
+        // each column is padded to whole bytes
+        assertTrue(columnBytes <= (64 + 68 + 64 + 2 * (n - 1)) / 8 + 2, "columns take " + columnBytes + " bytes");
+    }
+
+    @Test
+    void headerHoldsRangesAndSum() {
+        CloudComponent.GorillaEncoder encoder = new CloudComponent.GorillaEncoder();
+        encoder.append(2000, 3.5);
+        encoder.append(1000, -1.5); // Out of order points are kept in arrival order
+        encoder.append(3000, 10);
+        ByteBuffer block = encoder.toBlock();
+        assertEquals(CloudComponent.Block.MAGIC, block.getInt(0));
+        assertEquals(1000, block.getLong(8));
+        assertEquals(3000, block.getLong(16));
+        assertEquals(-1.5, block.getDouble(24));
+        assertEquals(10, block.getDouble(32));
+        assertEquals(12, block.getDouble(40));
+        assertRoundTrip(new long[] {2000, 1000, 3000}, new double[] {3.5, -1.5, 10});
+    }
+}
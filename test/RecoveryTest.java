@@ -0,0 +1,182 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of the logs that survive a restart after a power loss: the EdgeDevice's cache segments, the Cloud
+ * Component's warning outbox and the write-ahead log of a series head. Each is abandoned without closing, as after
+ * a crash, and its file is torn or corrupted before it is opened again.
+ */
+class RecoveryTest {
+
+    private static List<String> pending(EdgeDevice.SegmentedLog log) throws IOException {
+        List<String> data = new ArrayList<>();
+        for (EdgeDevice.SegmentedLog.Entry entry : log.peek(100)) {
+            data.add(entry.getData());
+        }
+        return data;
+    }
+
+    private static void appendBytes(Path file, byte[] bytes) throws IOException {
+        Files.write(file, bytes, StandardOpenOption.APPEND);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    @Test
+    void segmentedLogCutsATornLastRecord(@TempDir Path directory) throws IOException {
+        EdgeDevice.SegmentedLog log = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        log.append("record-1");
+        log.append("record-2");
+        log.append("record-3");
+        Path segment = directory.resolve(String.format("%020d.rec", 0));
+        long intact = Files.size(segment);
+        // The header of a 100 byte record and the first 10 bytes of it
+        appendBytes(segment, ByteBuffer.allocate(18).putInt(100).putInt(0x12345678).array());
+
+        EdgeDevice.SegmentedLog reopened = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        assertEquals(List.of("record-1", "record-2", "record-3"), pending(reopened));
+        assertEquals(intact, Files.size(segment));
+
+        // New records follow the intact ones instead of the cut bytes
+        reopened.append("record-4");
+        reopened = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        assertEquals(List.of("record-1", "record-2", "record-3", "record-4"), pending(reopened));
+    }
+
+    @Test
+    void segmentedLogCutsATornHeader(@TempDir Path directory) throws IOException {
+        EdgeDevice.SegmentedLog log = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        log.append("record-1");
+        appendBytes(directory.resolve(String.format("%020d.rec", 0)), new byte[] {0, 0, 0});
+
+        EdgeDevice.SegmentedLog reopened = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        assertEquals(List.of("record-1"), pending(reopened));
+        assertFalse(Files.exists(directory.resolve("quarantine")), "a torn tail is not quarantined");
+    }
+
+    @Test
+    void segmentedLogQuarantinesACorruptRecordAndKeepsTheOthers(@TempDir Path directory) throws IOException {
+        EdgeDevice.SegmentedLog log = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        log.append("record-1");
+        log.append("record-2");
+        log.append("record-3");
+        Path segment = directory.resolve(String.format("%020d.rec", 0));
+        byte[] bytes = Files.readAllBytes(segment);
+        int recordBytes = 8 + "record-1".length();
+        bytes[recordBytes + 8 + 2] ^= 1; // A flipped bit in the body of the second record
+        Files.write(segment, bytes);
+
+        EdgeDevice.SegmentedLog reopened = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        assertEquals(List.of("record-1", "record-3"), pending(reopened));
+        try (var files = Files.list(directory.resolve("quarantine"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void segmentedLogKeepsItsAcknowledgedOffset(@TempDir Path directory) throws IOException {
+        EdgeDevice.SegmentedLog log = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        log.append("record-1");
+        log.append("record-2");
+        log.append("record-3");
+        log.ack(log.peek(2).get(1));
+        appendBytes(directory.resolve(String.format("%020d.rec", 0)), ByteBuffer.allocate(12).putInt(40).array());
+
+        EdgeDevice.SegmentedLog reopened = new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString());
+        assertEquals(List.of("record-3"), pending(reopened));
+        reopened.ack(reopened.peek(1).get(0));
+        assertTrue(reopened.isEmpty());
+        assertTrue(new EdgeDevice.SegmentedLog(directory.toString(), directory.resolve("none.txt").toString()).isEmpty());
+    }
+
+    @Test
+    void warningOutboxQuarantinesATornLastLine(@TempDir Path directory) throws IOException {
+        String file = directory.resolve("outbox.log").toString();
+        CloudComponent.WarningOutbox outbox = new CloudComponent.WarningOutbox(file, 1000, 1000, 60000);
+        for (int i = 1; i <= 3; i++) {
+            outbox.add(outbox.nextSequence(), "edge-1", "sensor-" + i, "Temperature too high: " + i, "2024.05.01.12.30.4" + i);
+            if (i == 2) {
+                outbox.acknowledge("edge-1", 1);
+            }
+        }
+        // The last line, that of the third warning, lost its end
+        Path path = Path.of(file);
+        truncate(path, Files.size(path) - 10);
+
+        CloudComponent.WarningOutbox reopened = new CloudComponent.WarningOutbox(file, 1000, 1000, 60000);
+        List<CloudComponent.WarningOutbox.Entry> due = reopened.due("edge-1", 10);
+        assertEquals(1, due.size());
+        assertEquals(2, due.get(0).getId());
+        assertEquals("Temperature too high: 2", due.get(0).getMessage());
+        assertTrue(Files.size(Path.of(file + ".corrupt")) > 0);
+
+        // The rewritten log takes new warnings after the intact ones, and numbers continue behind the lost one
+        long seq = reopened.nextSequence();
+        assertTrue(seq > 3);
+        reopened.add(seq, "edge-1", "sensor-4", "Temperature too high: 4", "2024.05.01.12.30.50");
+        due = new CloudComponent.WarningOutbox(file, 1000, 1000, 60000).due("edge-1", 10);
+        assertEquals(2, due.size());
+        assertEquals(seq, due.get(1).getId());
+    }
+
+    private static List<Long> points(CloudComponent.Series series) {
+        List<Long> timestamps = new ArrayList<>();
+        series.scan(Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> {
+            assertEquals(timestamp / 1000.0, value);
+            timestamps.add(timestamp);
+        });
+        return timestamps;
+    }
+
+    @Test
+    void seriesReplaysItsWalWithoutATornLastRecord(@TempDir Path directory) throws IOException {
+        CloudComponent.Series series = new CloudComponent.Series(directory, 4096, Long.MAX_VALUE, 0);
+        for (long i = 1; i <= 5; i++) {
+            series.append(i * 1000, i);
+        }
+        Path wal = directory.resolve("head.wal");
+        appendBytes(wal, new byte[10]);
+
+        CloudComponent.Series reopened = new CloudComponent.Series(directory, 4096, Long.MAX_VALUE, 0);
+        assertEquals(List.of(1000L, 2000L, 3000L, 4000L, 5000L), points(reopened));
+        assertEquals(8 + 16 * 5, Files.size(wal));
+
+        reopened.append(6000, 6);
+        reopened = new CloudComponent.Series(directory, 4096, Long.MAX_VALUE, 0);
+        assertEquals(List.of(1000L, 2000L, 3000L, 4000L, 5000L, 6000L), points(reopened));
+    }
+
+    @Test
+    void seriesDropsAStaleWalAfterItsBlockWasWritten(@TempDir Path directory) throws IOException {
+        CloudComponent.Series series = new CloudComponent.Series(directory, 4096, Long.MAX_VALUE, 0);
+        for (long i = 1; i <= 3; i++) {
+            series.append(i * 1000, i);
+        }
+        Path wal = directory.resolve("head.wal");
+        byte[] beforeFlush = Files.readAllBytes(wal);
+        series.flush();
+        // As if the crash came between writing the block and truncating the log
+        Files.write(wal, beforeFlush);
+
+        CloudComponent.Series reopened = new CloudComponent.Series(directory, 4096, Long.MAX_VALUE, 0);
+        assertEquals(List.of(1000L, 2000L, 3000L), points(reopened));
+        assertEquals(8, Files.size(wal));
+    }
+}
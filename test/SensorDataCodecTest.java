@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The JSON codecs of the three components against each other: sensors write single readings, the EdgeDevice reads
+ * them and writes readings and window summaries, the Cloud Component reads those.
+ */
+class SensorDataCodecTest {
+    private static final String TIMESTAMP = "2024.05.01.12.30.45";
+
+    private static byte[] sensorEncode(String sensorId, double temperature, String timestamp) {
+        ByteBuffer out = ByteBuffer.allocate(Sensor.SensorDataCodec.maxEncodedSize(sensorId, timestamp));
+        Sensor.SensorDataCodec.encode(sensorId, temperature, timestamp, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sensorReadingRoundTripsThroughEdge() {
+        double[] temperatures = {0.0, -0.0, 21.5, -12.25, 25.000000000000004, 1e-7, 123456789.123, 1.7976931348623157e308,
+                4.9e-324, 0.1 + 0.2};
+        for (double temperature : temperatures) {
+            EdgeDevice.SensorData data = EdgeDevice.SensorDataCodec.decode(sensorEncode("1", temperature, TIMESTAMP));
+            assertEquals("1", data.getSensorId());
+            assertEquals(temperature, data.getTemperature(), "temperature " + temperature);
+            assertEquals(TIMESTAMP, data.getTimestamp());
+            assertEquals(0, data.getCount());
+        }
+    }
+
+    @Test
+    void escapedSensorIdsRoundTrip() {
+        String[] ids = {"quote\"d", "back\\slash", "tab\tand\nnewline", "\u0001control", "ümlaut", "emoji \uD83C\uDF21", "/"};
+        for (String id : ids) {
+            assertEquals(id, EdgeDevice.SensorDataCodec.decode(sensorEncode(id, 20, TIMESTAMP)).getSensorId());
+            assertEquals(id, CloudComponent.SensorDataCodec.decode(EdgeDevice.SensorDataCodec.encode(
+                    new EdgeDevice.SensorData(id, 20, TIMESTAMP))).getSensorId());
+        }
+    }
+
+    @Test
+    void windowSummaryRoundTripsToCloud() {
+        EdgeDevice.QuantileSketch quantiles = new EdgeDevice.QuantileSketch();
+        EdgeDevice.HyperLogLog sensors = new EdgeDevice.HyperLogLog();
+        for (int i = 1; i <= 100; i++) {
+            quantiles.add(i);
+            sensors.addHash(EdgeDevice.HyperLogLog.hash("sensor-" + i));
+        }
+        byte[] json = EdgeDevice.SensorDataCodec.encode(
+                new EdgeDevice.SensorData("average", 50.5, TIMESTAMP, 100, 1, 100, 833.25, quantiles, sensors));
+
+        CloudComponent.SensorData data = CloudComponent.SensorDataCodec.decode(json);
+        assertEquals("average", data.getSensorId());
+        assertEquals(50.5, data.getTemperature());
+        assertEquals(100, data.getCount());
+        assertEquals(1, data.getMin());
+        assertEquals(100, data.getMax());
+        assertEquals(833.25, data.getVariance());
+        assertEquals(quantiles.quantile(0.99), data.getQuantiles().quantile(0.99));
+        assertEquals(sensors.estimate(), data.getSensors().estimate());
+    }
+
+    @Test
+    void readingWithoutSketchesHasNone() {
+        CloudComponent.SensorData data = CloudComponent.SensorDataCodec.decode(EdgeDevice.SensorDataCodec.encode(
+                new EdgeDevice.SensorData("7", 22, TIMESTAMP, 3, 21, 23, 1)));
+        assertEquals(3, data.getCount());
+        assertNull(data.getQuantiles());
+        assertNull(data.getSensors());
+    }
+
+    @Test
+    void unknownFieldsAndWhitespaceAreSkipped() {
+        EdgeDevice.SensorData data = EdgeDevice.SensorDataCodec.decode(bytes(
+                " { \"extra\" : {\"nested\": [1, \"]\", {\"a\": null}]}, \"timestamp\":\"" + TIMESTAMP
+                        + "\",\n\"temperature\" : 2.5E1 , \"flag\": true, \"sensorId\":\"x\" } "));
+        assertEquals("x", data.getSensorId());
+        assertEquals(25.0, data.getTemperature());
+        assertEquals(TIMESTAMP, data.getTimestamp());
+    }
+
+    @Test
+    void arraysDecodeAndCount() {
+        byte[] empty = bytes(" [ ] ");
+        assertEquals(List.of(), EdgeDevice.SensorDataCodec.decodeArray(empty, 0, empty.length));
+        assertEquals(0, CloudComponent.SensorDataCodec.countArray(empty, 0, empty.length));
+
+        String record = new String(sensorEncode("a,b", 1.5, TIMESTAMP), StandardCharsets.UTF_8);
+        byte[] array = bytes("[" + record + ",\n " + record.replace("a,b", "c}") + "]");
+        List<CloudComponent.SensorData> records = CloudComponent.SensorDataCodec.decodeArray(array, 0, array.length);
+        assertEquals(2, records.size());
+        assertEquals("a,b", records.get(0).getSensorId());
+        assertEquals("c}", records.get(1).getSensorId());
+        assertEquals(2, CloudComponent.SensorDataCodec.countArray(array, 0, array.length));
+        assertEquals(-1, CloudComponent.SensorDataCodec.countArray(bytes(record), 0, record.length()));
+    }
+
+    @Test
+    void decodesFromOffset() {
+        byte[] record = sensorEncode("5", 19.75, TIMESTAMP);
+        byte[] padded = new byte[record.length + 6];
+        System.arraycopy(record, 0, padded, 3, record.length);
+        assertEquals(19.75, EdgeDevice.SensorDataCodec.decode(padded, 3, record.length).getTemperature());
+    }
+
+    @Test
+    void malformedInputIsRejected() {
+        String[] inputs = {
+                "",
+                "{",
+                "{\"sensorId\":\"1\",\"temperature\":20}",
+                "{\"sensorId\":\"1\",\"temperature\":\"20\",\"timestamp\":\"" + TIMESTAMP + "\"}",
+                "{\"sensorId\":\"1\",\"temperature\":2-0,\"timestamp\":\"" + TIMESTAMP + "\"}",
+                "{\"sensorId\":\"1\",\"temperature\":20,\"timestamp\":\"" + TIMESTAMP + "\"} x",
+                "{\"sensorId\":\"1\" \"temperature\":20,\"timestamp\":\"" + TIMESTAMP + "\"}",
+                "{\"sensorId\":\"\\u12\",\"temperature\":20,\"timestamp\":\"" + TIMESTAMP + "\"}",
+                "{\"sensorId\":\"1\",\"temperature\":20,\"timestamp\":\"" + TIMESTAMP,
+                "[{\"sensorId\":\"1\",\"temperature\":20,\"timestamp\":\"" + TIMESTAMP + "\"}",
+        };
+        for (String input : inputs) {
+            assertThrows(IllegalArgumentException.class, () -> EdgeDevice.SensorDataCodec.decode(bytes(input)), input);
+            assertThrows(IllegalArgumentException.class, () -> CloudComponent.SensorDataCodec.decode(bytes(input)), input);
+        }
+        byte[] notAnArray = bytes("{\"sensorId\":\"1\",\"temperature\":20,\"timestamp\":\"" + TIMESTAMP + "\"}");
+        assertThrows(IllegalArgumentException.class,
+                () -> EdgeDevice.SensorDataCodec.decodeArray(notAnArray, 0, notAnArray.length));
+    }
+}
@@ -0,0 +1,180 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The quantile and distinct-count sketches of the window summaries: their error bounds, lossless merging and
+ * their serialized form, which the EdgeDevice writes and the Cloud Component reads.
+ */
+class SketchTest {
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1};
+
+    private static void assertWithinRelativeError(double[] values, EdgeDevice.QuantileSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES) {
+            double exact = sorted[(int) (q * (sorted.length - 1))];
+            double estimate = sketch.quantile(q);
+            assertEquals(exact, estimate, Math.abs(exact) * 0.01 + 1e-9, "quantile " + q);
+        }
+    }
+
+    @Test
+    void emptySketchHasNoQuantiles() {
+        EdgeDevice.QuantileSketch sketch = new EdgeDevice.QuantileSketch();
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+        sketch.add(Double.NaN);
+        assertEquals(0, sketch.getCount());
+    }
+
+    @Test
+    void quantilesAreWithinOnePercent() {
+        Random random = new Random(7);
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            // Temperatures around 25 with a long upper tail, and some below zero
+            values[i] = random.nextInt(50) == 0 ? 40 + random.nextDouble() * 60 : 25 + random.nextGaussian() * 8;
+            if (Math.abs(values[i]) < 0.01) {
+                values[i] = 0.01; // Magnitudes below 0.001 count as zero
+            }
+        }
+        EdgeDevice.QuantileSketch sketch = new EdgeDevice.QuantileSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+        assertEquals(values.length, sketch.getCount());
+        assertWithinRelativeError(values, sketch);
+    }
+
+    @Test
+    void mergingLosesNothing() {
+        Random random = new Random(11);
+        EdgeDevice.QuantileSketch whole = new EdgeDevice.QuantileSketch();
+        EdgeDevice.QuantileSketch merged = new EdgeDevice.QuantileSketch();
+        for (int part = 0; part < 10; part++) {
+            EdgeDevice.QuantileSketch partial = new EdgeDevice.QuantileSketch();
+            for (int i = 0; i < 1000; i++) {
+                double value = (part - 5) * 10 + random.nextDouble() * 10;
+                whole.add(value);
+                partial.add(value);
+            }
+            merged.merge(partial);
+        }
+        assertEquals(whole.getCount(), merged.getCount());
+        for (double q : QUANTILES) {
+            assertEquals(whole.quantile(q), merged.quantile(q), "quantile " + q);
+        }
+    }
+
+    @Test
+    void weightedAddEqualsRepeatedAdd() {
+        EdgeDevice.QuantileSketch weighted = new EdgeDevice.QuantileSketch();
+        EdgeDevice.QuantileSketch repeated = new EdgeDevice.QuantileSketch();
+        weighted.add(20, 5);
+        weighted.add(30, 3);
+        for (int i = 0; i < 5; i++) {
+            repeated.add(20);
+        }
+        for (int i = 0; i < 3; i++) {
+            repeated.add(30);
+        }
+        assertEquals(Arrays.toString(repeated.toBytes()), Arrays.toString(weighted.toBytes()));
+    }
+
+    @Test
+    void quantileSketchRoundTripsToCloud() {
+        EdgeDevice.QuantileSketch sketch = new EdgeDevice.QuantileSketch();
+        for (int i = -500; i <= 1500; i++) {
+            sketch.add(i / 10.0);
+        }
+        CloudComponent.QuantileSketch received = CloudComponent.QuantileSketch.fromBytes(sketch.toBytes());
+        assertEquals(sketch.getCount(), received.getCount());
+        for (double q : QUANTILES) {
+            assertEquals(sketch.quantile(q), received.quantile(q), "quantile " + q);
+        }
+        assertEquals(0, CloudComponent.QuantileSketch.fromBytes(new EdgeDevice.QuantileSketch().toBytes()).getCount());
+    }
+
+    @Test
+    void invalidQuantileSketchesAreRejected() {
+        EdgeDevice.QuantileSketch sketch = new EdgeDevice.QuantileSketch();
+        sketch.add(21.5, 4);
+        sketch.add(-3, 2);
+        byte[] bytes = sketch.toBytes();
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.QuantileSketch.fromBytes(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.QuantileSketch.fromBytes(new byte[] {9}));
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudComponent.QuantileSketch.fromBytes(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudComponent.QuantileSketch.fromBytes(Arrays.copyOf(bytes, bytes.length + 1)));
+    }
+
+    private static EdgeDevice.HyperLogLog distinct(int from, int to) {
+        EdgeDevice.HyperLogLog sketch = new EdgeDevice.HyperLogLog();
+        for (int i = from; i < to; i++) {
+            sketch.addHash(EdgeDevice.HyperLogLog.hash("edge-1/sensor-" + i));
+        }
+        return sketch;
+    }
+
+    @Test
+    void distinctCountsAreWithinTheExpectedError() {
+        assertEquals(0, new EdgeDevice.HyperLogLog().estimate());
+        assertEquals(1, distinct(0, 1).estimate());
+        assertEquals(10, distinct(0, 10).estimate(), 1);
+        for (int n : new int[] {100, 1000, 10000, 100000}) {
+            // Three standard errors of about 3.3%
+            assertEquals(n, distinct(0, n).estimate(), n * 0.1, "n = " + n);
+        }
+    }
+
+    @Test
+    void repeatedIdsAreCountedOnce() {
+        EdgeDevice.HyperLogLog sketch = distinct(0, 500);
+        long estimate = sketch.estimate();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 500; i++) {
+                sketch.addHash(EdgeDevice.HyperLogLog.hash("edge-1/sensor-" + i));
+            }
+        }
+        assertEquals(estimate, sketch.estimate());
+    }
+
+    @Test
+    void mergingEqualsCountingTheUnion() {
+        EdgeDevice.HyperLogLog merged = distinct(0, 6000);
+        merged.merge(distinct(4000, 10000));
+        assertEquals(Arrays.toString(distinct(0, 10000).toBytes()), Arrays.toString(merged.toBytes()));
+    }
+
+    @Test
+    void sparseAndDenseSketchesRoundTripToCloud() {
+        for (int n : new int[] {0, 5, 300, 5000}) {
+            EdgeDevice.HyperLogLog sketch = distinct(0, n);
+            byte[] bytes = sketch.toBytes();
+            if (n <= 5) {
+                assertTrue(bytes.length < 20, "few registers are written sparsely");
+            }
+            assertEquals(sketch.estimate(), CloudComponent.HyperLogLog.fromBytes(bytes).estimate(), "n = " + n);
+        }
+    }
+
+    @Test
+    void invalidDistinctCountSketchesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.HyperLogLog.fromBytes(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.HyperLogLog.fromBytes(new byte[] {9}));
+        // Sparse with a register index beyond the 1024 registers
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudComponent.HyperLogLog.fromBytes(new byte[] {1, 1, (byte) 0x80, 0x08, 1}));
+        // Sparse with a register value no 64-bit hash can produce
+        assertThrows(IllegalArgumentException.class, () -> CloudComponent.HyperLogLog.fromBytes(new byte[] {1, 1, 0, 60}));
+        byte[] dense = distinct(0, 5000).toBytes();
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudComponent.HyperLogLog.fromBytes(Arrays.copyOf(dense, dense.length - 1)));
+    }
+}